@@ -108,7 +108,11 @@ public class VpnStats {
     }
 
     public static void increaseSessionStatsOut(byte[] packet) {
-        increaseSessionBytesOut(packet.length);
+        increaseSessionStatsOut(packet.length);
+    }
+
+    public static void increaseSessionStatsOut(int packetLength) {
+        increaseSessionBytesOut(packetLength);
         increaseSessionPackets(1);
     }
 
@@ -15,12 +15,18 @@ interface ConnectionDao {
     @Update
     suspend fun update(vararg connections: Connection)
 
-    @Query("UPDATE Connection SET bytesOut = bytesIn + :delta WHERE id = :id")
+    @Query("UPDATE Connection SET bytesOut = bytesOut + :delta WHERE id = :id")
     suspend fun updateBytesOut(id: Long, delta: Int)
 
     @Query("UPDATE Connection SET bytesIn = bytesIn + :delta WHERE id = :id")
     suspend fun updateBytesIn(id: Long, delta: Int)
 
+    @Query("UPDATE Connection SET bytesIn = bytesIn + :deltaIn, bytesOut = bytesOut + :deltaOut WHERE id = :id")
+    suspend fun updateBytes(id: Long, deltaIn: Long, deltaOut: Long)
+
+    @Query("SELECT MAX(id) FROM Connection")
+    suspend fun getMaxId(): Long?
+
     @Query("SELECT * FROM Connection")
     suspend fun getAll(): List<Connection>
 }
\ No newline at end of file
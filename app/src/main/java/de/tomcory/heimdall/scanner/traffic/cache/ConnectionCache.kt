@@ -1,81 +1,76 @@
 package de.tomcory.heimdall.scanner.traffic.cache
 
+import de.tomcory.heimdall.scanner.traffic.connection.inetLayer.PacketView
 import de.tomcory.heimdall.scanner.traffic.connection.transportLayer.TransportLayerConnection
-import org.pcap4j.packet.IpPacket
-import org.pcap4j.packet.TransportPacket
 import timber.log.Timber
-import java.net.InetAddress
 
+/**
+ * Maps flows to their [TransportLayerConnection]s, keyed on the flows' full 5-tuple (see [ConnectionTable]). Connections are looked up and added by the
+ * outbound traffic handler shards and removed by whichever thread closes them, so the cache is safe for concurrent use. Lookups take no lock.
+ */
 class ConnectionCache {
-    private val connections = HashMap<Int, TransportLayerConnection>()
+    private val connections = ConnectionTable<TransportLayerConnection>()
 
     companion object {
         private val cache = ConnectionCache()
 
-        fun findConnection(ipPacket: IpPacket): TransportLayerConnection? {
-            return cache.connections[getKey(
-                ipPacket
-            )]
-        }
-
-        fun findConnection(key: Int): TransportLayerConnection? {
-            return cache.connections[key]
+        /**
+         * Looks up the connection of an outbound packet's flow, i.e. the packet's source is the connection's local end.
+         */
+        fun findConnection(packet: PacketView): TransportLayerConnection? {
+            return cache.connections.get(
+                packet.srcAddressHigh,
+                packet.srcAddressLow,
+                packet.dstAddressHigh,
+                packet.dstAddressLow,
+                ConnectionTable.meta(packet.ipVersion, packet.protocol, packet.srcPort, packet.dstPort)
+            )
         }
 
         fun addConnection(connection: TransportLayerConnection) {
-            val key = getKey(
+            val localAddress = connection.ipPacketBuilder.localAddress.address
+            val remoteAddress = connection.ipPacketBuilder.remoteAddressBytes
+            val oldConnection = cache.connections.put(
+                ConnectionTable.addressHigh(localAddress),
+                ConnectionTable.addressLow(localAddress),
+                ConnectionTable.addressHigh(remoteAddress),
+                ConnectionTable.addressLow(remoteAddress),
+                getMeta(connection),
                 connection
             )
-            val oldConnection = cache.connections.put(key, connection)
-            if (oldConnection != null) {
+            if (oldConnection != null && oldConnection !== connection) {
                 Timber.e("Flow overwritten: $oldConnection $connection")
             }
         }
 
         fun removeConnection(connection: TransportLayerConnection) {
+            // only remove the entry if it still maps to this connection, it may have been replaced by a new connection of the same flow in the meantime
+            val localAddress = connection.ipPacketBuilder.localAddress.address
+            val remoteAddress = connection.ipPacketBuilder.remoteAddressBytes
             cache.connections.remove(
-                getKey(
-                    connection
-                )
+                ConnectionTable.addressHigh(localAddress),
+                ConnectionTable.addressLow(localAddress),
+                ConnectionTable.addressHigh(remoteAddress),
+                ConnectionTable.addressLow(remoteAddress),
+                getMeta(connection),
+                connection
             )
         }
 
         fun closeAllAndClear() {
-            for (connection in cache.connections.values) {
+            for (connection in cache.connections.values()) {
                 connection.closeSoft()
             }
             cache.connections.clear()
         }
 
-        private fun getKey(ipPacket: IpPacket): Int {
-            val remoteAddress = ipPacket.header.dstAddr
-            val transportPacket = ipPacket.payload as TransportPacket
-            val localPort = transportPacket.header.srcPort.valueAsInt()
-            val remotePort = transportPacket.header.dstPort.valueAsInt()
-            val protocol = ipPacket.header.protocol.value()
-            return getKey(
-                remoteAddress,
-                protocol.toInt(),
-                localPort,
-                remotePort
+        private fun getMeta(connection: TransportLayerConnection): Long {
+            return ConnectionTable.meta(
+                if (connection.ipPacketBuilder.remoteAddressBytes.size == 4) 4 else 6,
+                connection.ipPacketBuilder.transportProtocol.value().toInt(),
+                connection.localPort,
+                connection.remotePort
             )
         }
-
-        private fun getKey(connection: TransportLayerConnection): Int {
-            val remoteAddress = connection.ipPacketBuilder.remoteAddress
-            val localPort = connection.localPort
-            val remotePort = connection.remotePort
-            val protocol = connection.ipPacketBuilder.transportProtocol.value()
-            return getKey(
-                remoteAddress,
-                protocol.toInt(),
-                localPort,
-                remotePort
-            )
-        }
-
-        private fun getKey(remoteAddress: InetAddress, protocol: Int, localPort: Int, remotePort: Int): Int {
-            return remoteAddress.hashCode() xor (protocol shl 16) xor (localPort shl 8) xor remotePort
-        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,249 @@
+package de.tomcory.heimdall.scanner.traffic.cache
+
+import java.util.concurrent.atomic.AtomicLongArray
+import java.util.concurrent.atomic.AtomicReferenceArray
+
+/**
+ * Open-addressing hash table keyed on the full 5-tuple of a flow, so that distinct flows never share an entry and lookups neither allocate nor box.
+ *
+ * A key consists of five longs: the high and low halves of the local and the remote address (IPv4 addresses only use the low half, see [addressHigh]
+ * and [addressLow]) and a meta word holding the IP version, the transport protocol and both ports (see [meta]).
+ *
+ * Lookups are wait-free: they take no lock and visit every slot at most once. A slot's key is written before its value is published, and a reader
+ * reads the value again after comparing the key, so a slot that is reused while the reader looks at it is skipped instead of matched.
+ * Writers are serialised by the table's monitor. Removed entries leave a tombstone until the next resize.
+ *
+ * @param initialCapacity Number of slots of a new or cleared table, rounded up to a power of two.
+ */
+class ConnectionTable<V : Any>(initialCapacity: Int = 1024) {
+
+    private class Slots(val capacity: Int) {
+        val keys = AtomicLongArray(capacity * KEY_LONGS)
+        val values = AtomicReferenceArray<Any?>(capacity)
+    }
+
+    private val initialCapacity = Integer.highestOneBit((initialCapacity - 1).coerceAtLeast(1)) shl 1
+
+    @Volatile
+    private var slots = Slots(this.initialCapacity)
+
+    /**
+     * Number of slots holding an entry or a tombstone. Guarded by the table's monitor.
+     */
+    private var usedSlots = 0
+
+    /**
+     * Number of entries in the table.
+     */
+    @Volatile
+    var size = 0
+        private set
+
+    /**
+     * Returns the value mapped to the key, or null if there is none. Wait-free and safe to call from any thread.
+     */
+    fun get(localHigh: Long, localLow: Long, remoteHigh: Long, remoteLow: Long, meta: Long): V? {
+        val slots = slots
+        val mask = slots.capacity - 1
+        var index = hash(localHigh, localLow, remoteHigh, remoteLow, meta) and mask
+        for (probe in 0 until slots.capacity) {
+            // an empty slot ends the probe sequence, slots are only ever emptied by swapping in new slots
+            val value = slots.values.get(index) ?: return null
+            if (value !== TOMBSTONE
+                && keyEquals(slots, index, localHigh, localLow, remoteHigh, remoteLow, meta)
+                && slots.values.get(index) === value) {
+                @Suppress("UNCHECKED_CAST")
+                return value as V
+            }
+            index = (index + 1) and mask
+        }
+        return null
+    }
+
+    /**
+     * Maps the key to the value.
+     *
+     * @return the value that was previously mapped to the key, or null if there was none.
+     */
+    @Synchronized
+    fun put(localHigh: Long, localLow: Long, remoteHigh: Long, remoteLow: Long, meta: Long, value: V): V? {
+        if ((usedSlots + 1) * 2 > slots.capacity) {
+            resize()
+        }
+
+        val slots = slots
+        val mask = slots.capacity - 1
+        var index = hash(localHigh, localLow, remoteHigh, remoteLow, meta) and mask
+        var freeIndex = -1
+        while (true) {
+            val current = slots.values.get(index)
+            if (current == null) {
+                break
+            } else if (current === TOMBSTONE) {
+                if (freeIndex < 0) {
+                    freeIndex = index
+                }
+            } else if (keyEquals(slots, index, localHigh, localLow, remoteHigh, remoteLow, meta)) {
+                slots.values.set(index, value)
+                @Suppress("UNCHECKED_CAST")
+                return current as V
+            }
+            index = (index + 1) and mask
+        }
+
+        if (freeIndex < 0) {
+            freeIndex = index
+            usedSlots++
+        }
+        setKey(slots, freeIndex, localHigh, localLow, remoteHigh, remoteLow, meta)
+        slots.values.set(freeIndex, value)
+        size++
+        return null
+    }
+
+    /**
+     * Removes the key's entry if it is mapped to the supplied value.
+     *
+     * @return true if the entry was removed.
+     */
+    @Synchronized
+    fun remove(localHigh: Long, localLow: Long, remoteHigh: Long, remoteLow: Long, meta: Long, value: V): Boolean {
+        val slots = slots
+        val mask = slots.capacity - 1
+        var index = hash(localHigh, localLow, remoteHigh, remoteLow, meta) and mask
+        while (true) {
+            val current = slots.values.get(index) ?: return false
+            if (current !== TOMBSTONE && keyEquals(slots, index, localHigh, localLow, remoteHigh, remoteLow, meta)) {
+                if (current !== value) {
+                    return false
+                }
+                slots.values.set(index, TOMBSTONE)
+                size--
+                return true
+            }
+            index = (index + 1) and mask
+        }
+    }
+
+    /**
+     * Returns a snapshot of the values in the table.
+     */
+    fun values(): List<V> {
+        val slots = slots
+        val values = ArrayList<V>(size)
+        for (i in 0 until slots.capacity) {
+            val value = slots.values.get(i)
+            if (value != null && value !== TOMBSTONE) {
+                @Suppress("UNCHECKED_CAST")
+                values.add(value as V)
+            }
+        }
+        return values
+    }
+
+    /**
+     * Removes all entries and shrinks the table to its initial capacity.
+     */
+    @Synchronized
+    fun clear() {
+        slots = Slots(initialCapacity)
+        usedSlots = 0
+        size = 0
+    }
+
+    /**
+     * Copies the entries into new slots, dropping the tombstones. The table only grows if it is more than a quarter full,
+     * otherwise the tombstones alone have used up the free slots.
+     */
+    private fun resize() {
+        val oldSlots = slots
+        val newSlots = Slots(if ((size + 1) * 4 > oldSlots.capacity) oldSlots.capacity * 2 else oldSlots.capacity)
+        val mask = newSlots.capacity - 1
+        for (i in 0 until oldSlots.capacity) {
+            val value = oldSlots.values.get(i)
+            if (value == null || value === TOMBSTONE) {
+                continue
+            }
+            val key = i * KEY_LONGS
+            val localHigh = oldSlots.keys.get(key)
+            val localLow = oldSlots.keys.get(key + 1)
+            val remoteHigh = oldSlots.keys.get(key + 2)
+            val remoteLow = oldSlots.keys.get(key + 3)
+            val meta = oldSlots.keys.get(key + 4)
+            var index = hash(localHigh, localLow, remoteHigh, remoteLow, meta) and mask
+            while (newSlots.values.get(index) != null) {
+                index = (index + 1) and mask
+            }
+            setKey(newSlots, index, localHigh, localLow, remoteHigh, remoteLow, meta)
+            newSlots.values.set(index, value)
+        }
+
+        // readers still probing the old slots see the entries as they were before the resize
+        slots = newSlots
+        usedSlots = size
+    }
+
+    private fun keyEquals(slots: Slots, index: Int, localHigh: Long, localLow: Long, remoteHigh: Long, remoteLow: Long, meta: Long): Boolean {
+        val key = index * KEY_LONGS
+        return slots.keys.get(key + 4) == meta
+                && slots.keys.get(key + 3) == remoteLow
+                && slots.keys.get(key + 2) == remoteHigh
+                && slots.keys.get(key + 1) == localLow
+                && slots.keys.get(key) == localHigh
+    }
+
+    private fun setKey(slots: Slots, index: Int, localHigh: Long, localLow: Long, remoteHigh: Long, remoteLow: Long, meta: Long) {
+        val key = index * KEY_LONGS
+        slots.keys.set(key, localHigh)
+        slots.keys.set(key + 1, localLow)
+        slots.keys.set(key + 2, remoteHigh)
+        slots.keys.set(key + 3, remoteLow)
+        slots.keys.set(key + 4, meta)
+    }
+
+    companion object {
+        private const val KEY_LONGS = 5
+
+        private const val HASH_MULTIPLIER = -0x61c8864680b583ebL
+
+        private val TOMBSTONE = Any()
+
+        /**
+         * Packs the IP version, transport protocol and ports of a flow into the meta word of its key.
+         */
+        fun meta(ipVersion: Int, protocol: Int, localPort: Int, remotePort: Int): Long {
+            return (ipVersion.toLong() shl 48) or (protocol.toLong() shl 32) or (localPort.toLong() shl 16) or remotePort.toLong()
+        }
+
+        /**
+         * High 64 bits of a raw IPv6 address, or 0 for an IPv4 address.
+         */
+        fun addressHigh(address: ByteArray): Long {
+            return if (address.size == 4) 0 else readLong(address, 0)
+        }
+
+        /**
+         * Low 64 bits of a raw IPv6 address, or the whole (unsigned) IPv4 address.
+         */
+        fun addressLow(address: ByteArray): Long {
+            return if (address.size == 4) readLong(address, 0) ushr 32 else readLong(address, 8)
+        }
+
+        private fun readLong(address: ByteArray, offset: Int): Long {
+            var value = 0L
+            for (i in offset until minOf(offset + 8, address.size)) {
+                value = value or ((address[i].toLong() and 0xFF) shl (56 - 8 * (i - offset)))
+            }
+            return value
+        }
+
+        private fun hash(localHigh: Long, localLow: Long, remoteHigh: Long, remoteLow: Long, meta: Long): Int {
+            var hash = meta
+            hash = (hash xor remoteLow) * HASH_MULTIPLIER
+            hash = (hash xor remoteHigh) * HASH_MULTIPLIER
+            hash = (hash xor localLow) * HASH_MULTIPLIER
+            hash = (hash xor localHigh) * HASH_MULTIPLIER
+            return (hash xor (hash ushr 32)).toInt()
+        }
+    }
+}
@@ -5,14 +5,20 @@ import android.net.VpnService
 import android.system.ErrnoException
 import android.system.Os
 import de.tomcory.heimdall.R
+import de.tomcory.heimdall.persistence.database.HeimdallDatabase
 import de.tomcory.heimdall.scanner.traffic.cache.ConnectionCache
+import de.tomcory.heimdall.scanner.traffic.connection.transportLayer.DnsForwarder
 import de.tomcory.heimdall.scanner.traffic.metadata.AppFinder
+import de.tomcory.heimdall.scanner.traffic.metadata.DnsAnswerCache
 import de.tomcory.heimdall.scanner.traffic.metadata.DnsCache
 import de.tomcory.heimdall.scanner.traffic.metadata.TlsPassthroughCache
+import de.tomcory.heimdall.scanner.traffic.metadata.TrackerHostIndex
 import de.tomcory.heimdall.scanner.traffic.mitm.Authority
 import de.tomcory.heimdall.scanner.traffic.mitm.CertificateSniffingMitmManager
 import de.tomcory.heimdall.scanner.traffic.mitm.VpnComponentLaunchException
+import de.tomcory.heimdall.util.Histogram
 import de.tomcory.heimdall.util.Trie
+import kotlinx.coroutines.runBlocking
 import org.pcap4j.packet.IllegalRawDataException
 import org.pcap4j.packet.IpV4Packet
 import org.pcap4j.packet.TcpPacket
@@ -21,127 +27,330 @@ import org.pcap4j.packet.namednumber.TcpPort
 import org.pcap4j.packet.namednumber.UdpPort
 import timber.log.Timber
 import java.io.*
-import java.nio.channels.Selector
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
 
 /**
  * Manages the lifecycle of the traffic-handling components of the VPN.
  *
+ * @param outboundStream the packets sent by the device, or null to run the components without polling a device (e.g. in tests that drive the connections directly).
  * @throws VpnComponentLaunchException if the component initialisation failed.
  */
 class ComponentManager(
-    private val outboundStream: FileInputStream,
+    private val outboundStream: FileInputStream?,
     private val inboundStream: FileOutputStream,
     val vpnService: VpnService?,
     val doMitm: Boolean = false,
     val maxPacketSize: Int = 16413,
-    private val trackerTrie: Trie<String> = Trie { it.split(".").reversed() }
+    val mtu: Int = 1500,
+    packetBufferCount: Int = 512,
+    outboundShardCount: Int = Runtime.getRuntime().availableProcessors(),
+    inboundSelectorCount: Int = Runtime.getRuntime().availableProcessors() / 2,
+    val pendingWriteThreshold: Int = 256 * 1024,
+    val delayedAckMillis: Long = 40,
+    val tcpHandshakeTimeoutMillis: Long = 30_000,
+    val tcpIdleTimeoutMillis: Long = 2 * 60 * 60_000,
+    val tcpClosingTimeoutMillis: Long = 60_000,
+    val udpIdleTimeoutMillis: Long = 60_000,
+    val attributionTimeoutMillis: Long = 200,
+    private val trackerTrie: Trie<String> = Trie { it.split(".").reversed() },
+    private val startupTimings: StartupTimings = StartupTimings()
 ) {
 
-    private var devicePollThread: DevicePollThread? = null
-    private var deviceWriteThread: DeviceWriteThread? = null
-    private var outboundTrafficHandler: OutboundTrafficHandler? = null
-    private var inboundTrafficHandler: InboundTrafficHandler? = null
+    private val devicePollThread: DevicePollThread?
+    private val deviceWriteThread: DeviceWriteThread
+    private val outboundTrafficHandlers: List<OutboundTrafficHandler>
+    private val inboundTrafficHandlers: List<InboundTrafficHandler>
 
-    private val interrupter: FileDescriptor
-    private val interrupted: FileDescriptor
+    private val nextInboundIndex = AtomicInteger(0)
+
+    /**
+     * Memory-mapped index of tracking hosts used to label traffic. If it is not available, the [trackerTrie] is built from the raw host list instead.
+     * Set once the labelling phase of the startup completes, until then connections are not labelled.
+     */
+    @Volatile
+    private var trackerHostIndex: TrackerHostIndex? = null
+
+    @Volatile
+    private var trackerTrieReady = false
+
+    private val interrupter: FileDescriptor?
+    private val interrupted: FileDescriptor?
+
+    /**
+     * Runs the startup phases that packet forwarding does not depend on, see [startBackgroundPhases].
+     */
+    private val startupExecutor = Executors.newFixedThreadPool(3) { runnable ->
+        Thread(runnable, "ComponentStartup").apply { isDaemon = true }
+    }
+
+    /**
+     * Pool of reusable buffers that carry packets read from the device through the outbound traffic handler.
+     */
+    val outboundPacketPool = PacketBufferPool(packetBufferCount, mtu)
+
+    /**
+     * Pool of reusable buffers that carry packets from the connections to the [DeviceWriteThread].
+     */
+    val inboundPacketPool = PacketBufferPool(packetBufferCount, mtu)
+
+    /**
+     * Queues between the [DevicePollThread] and the [OutboundTrafficHandler] shards, one per shard.
+     */
+    val outboundQueues: List<PacketQueue> = List(outboundShardCount.coerceAtLeast(1)) {
+        SpscPacketQueue(packetBufferCount, BusySpinParkWaitStrategy())
+    }
+
+    /**
+     * Queue between the connections (written to by both traffic handlers) and the [DeviceWriteThread].
+     */
+    val deviceWriteQueue: PacketQueue = FanInPacketQueue(packetBufferCount, BusySpinParkWaitStrategy())
+
+    /**
+     * Durations (in ms) of the periods in which a connection's writes were blocked because the channel's send buffer was full.
+     */
+    val blockedWrites = Histogram()
+
+    private val blockedWriteNanos = AtomicLong(0)
+
+    /**
+     * Timer used by the TCP connections to send delayed ACKs to the device.
+     */
+    val delayedAckTimer: ScheduledExecutorService = Executors.newSingleThreadScheduledExecutor { runnable ->
+        Thread(runnable, "DelayedAckTimer").apply { isDaemon = true }
+    }
+
+    /**
+     * Closes the connections that exceed the idle timeout of their protocol and state.
+     */
+    val idleConnectionReaper = IdleConnectionReaper()
+
+    /**
+     * Writes the traffic volumes counted by the connections to their database entries in batches.
+     */
+    val trafficVolumeWriter = TrafficVolumeWriter()
+
+    private val deviceDataSegments = AtomicLong(0)
+
+    private val devicePureAcks = AtomicLong(0)
 
     val appFinder = AppFinder(vpnService)
 
+    /**
+     * Highest connection ID in the database, looked up in the background so that packet forwarding doesn't wait for the database.
+     * Submitted before the other background phases, so it is usually done before the first connection, which has to wait for a DNS round trip first.
+     */
+    private val connectionIdSeed: CompletableFuture<Long> = CompletableFuture.supplyAsync({
+        try {
+            startupTimings.measure("connectionIds") { runBlocking { HeimdallDatabase.instance?.connectionDao?.getMaxId() } ?: 0 }
+        } catch (e: Exception) {
+            Timber.e(e, "Error looking up the highest connection ID")
+            0
+        }
+    }, startupExecutor)
+
+    /**
+     * Number of connection IDs handed out after the [connectionIdSeed], so that a connection knows its ID while its entry is still being written.
+     */
+    private val connectionIds = AtomicLong(0)
+
+    /**
+     * Resolves the apps behind new connections, so that the traffic handlers don't wait for the [appFinder].
+     */
+    val attributionExecutor: ExecutorService = Executors.newFixedThreadPool(2) { runnable ->
+        Thread(runnable, "AppAttribution").apply { isDaemon = true }
+    }
+
     val dnsCache = DnsCache()
 
+    /**
+     * Answers repeated DNS queries without a round trip to the resolver.
+     */
+    val dnsAnswerCache = DnsAnswerCache()
+
+    /**
+     * Forwards the device's DNS queries over UDP, multiplexed on one socket per resolver.
+     */
+    val dnsForwarder = DnsForwarder(this)
+
     val tlsPassthroughCache = TlsPassthroughCache()
 
     //TODO: get strings from config/secure
     val authority = Authority.getDefaultInstance(vpnService?.applicationContext)
 
-    // set up the man-in-the-middle manager
-    val mitmManager: CertificateSniffingMitmManager = CertificateSniffingMitmManager(authority)
-
-    // set up the NIO selector that is used to poll the outgoing sockets for incoming packets
-    val selector: Selector = try {
-        Selector.open()
-    } catch (e: IOException) {
-        throw VpnComponentLaunchException("Error opening selector", e)
+    /**
+     * Creates the man-in-the-middle manager in the background, loading the [authority]'s keystore is slow. Completes with null if MITM is disabled or failed.
+     */
+    private val mitmManagerFuture: CompletableFuture<CertificateSniffingMitmManager?> = if (doMitm) {
+        CompletableFuture.supplyAsync({
+            try {
+                startupTimings.measure("mitm") { CertificateSniffingMitmManager(authority) }
+            } catch (e: Exception) {
+                Timber.e(e, "Error creating MITM manager, TLS connections will not be intercepted")
+                null
+            }
+        }, startupExecutor)
+    } else {
+        CompletableFuture.completedFuture(null)
     }
 
+    /**
+     * The man-in-the-middle manager, or null if MITM is disabled or the manager is not ready yet.
+     * TLS connections that start before the manager is ready are passed through without interception.
+     */
+    val mitmManager: CertificateSniffingMitmManager?
+        get() = mitmManagerFuture.getNow(null)
+
     init {
         // set up the pipes that are used to poll the VPN interface for new outgoing packets
-        val pipes = try {
-            Os.pipe()
-        } catch (e: ErrnoException) {
-            throw VpnComponentLaunchException("Error getting pipes from OS", e)
+        val pipes = outboundStream?.let {
+            try {
+                Os.pipe()
+            } catch (e: ErrnoException) {
+                throw VpnComponentLaunchException("Error getting pipes from OS", e)
+            }
         }
-        interrupter = pipes[0]
-        interrupted = pipes[1]
+        interrupter = pipes?.get(0)
+        interrupted = pipes?.get(1)
 
-        // initialise the pcap4j configuration now to improve performance during traffic handling
-        initialisePcap4j()
-
-        // prepare the trie of tracking hosts used to label traffic
-        vpnService?.let {
-            Timber.d("Building tracking hosts trie")
-            populateTrieFromRawFile(it.applicationContext, R.raw.adhosts, trackerTrie)
-        }
+        val forwardingStart = System.nanoTime()
 
         /*
-         * Create and start the traffic handler threads. Since the threads rely on handlers to pass messages to each other
-         * and the handler is instantiated asynchronously within the threads, this needs to be wrapped in callbacks.
-         * The threads are created and started in the following order:
+         * Create and start the traffic handler threads. The threads pass packets to each other through PacketQueues,
+         * so they can be started in reverse order of the packet flow without waiting for each other:
          * 1 - DeviceWriteThread
-         * 2 - Inbound- & OutboundTrafficHandler (both with the DeviceWriteThread's handler)
-         * 3 - DevicePollThread (with the OutboundTrafficHandler's handler)
+         * 2 - InboundTrafficHandler & OutboundTrafficHandler shards (all writing to the DeviceWriteThread)
+         * 3 - DevicePollThread (feeding the OutboundTrafficHandler shards, each flow always goes to the same shard)
          */
         deviceWriteThread = DeviceWriteThread(
             "DeviceWriteThread",
-            inboundStream
-        ) { deviceWriter ->
-            inboundTrafficHandler =
-                InboundTrafficHandler(
-                    "InboundTrafficHandler",
-                    this
-                )
-            outboundTrafficHandler =
-                OutboundTrafficHandler(
-                    "OutboundTrafficHandler",
-                    deviceWriter,
-                    this
-                ) { outHandler ->
-                    devicePollThread =
-                        DevicePollThread(
-                            "DevicePollThread",
-                            outboundStream,
-                            interrupter,
-                            outHandler
-                        )
-                    devicePollThread?.start()
-                    Timber.d("Traffic handlers initialised")
-                }
-            inboundTrafficHandler?.start()
-            outboundTrafficHandler?.start()
+            inboundStream,
+            deviceWriteQueue,
+            inboundPacketPool
+        )
+        // each InboundTrafficHandler runs its own NIO selector that polls a subset of the outgoing sockets for incoming packets
+        inboundTrafficHandlers = List(inboundSelectorCount.coerceAtLeast(1)) {
+            InboundTrafficHandler("InboundTrafficHandler-$it")
+        }
+        outboundTrafficHandlers = outboundQueues.mapIndexed { index, queue ->
+            OutboundTrafficHandler(
+                "OutboundTrafficHandler-$index",
+                queue,
+                deviceWriteThread,
+                this
+            )
+        }
+        devicePollThread = if (outboundStream != null && interrupter != null) {
+            DevicePollThread(
+                "DevicePollThread",
+                outboundStream,
+                interrupter,
+                outboundQueues,
+                outboundPacketPool,
+                startupTimings
+            )
+        } else {
+            null
+        }
+
+        deviceWriteThread.start()
+        inboundTrafficHandlers.forEach { it.start() }
+        outboundTrafficHandlers.forEach { it.start() }
+        devicePollThread?.start()
+        startupTimings.record("forwarding", forwardingStart)
+        Timber.d("Traffic handlers initialised with ${outboundTrafficHandlers.size} outbound shards and ${inboundTrafficHandlers.size} selectors")
+
+        startBackgroundPhases()
+    }
+
+    /**
+     * Starts the startup phases that only improve the traffic handling once they are done, so packets can already flow while they run:
+     * the pcap4j warm-up, the tracker labelling data and (if enabled) the MITM manager, which is started with the [mitmManagerFuture].
+     * The lookup of the [connectionIdSeed] is started with its future as well.
+     */
+    private fun startBackgroundPhases() {
+        val pcap4j = CompletableFuture.runAsync({
+            try {
+                startupTimings.measure("pcap4j", ::initialisePcap4j)
+            } catch (e: VpnComponentLaunchException) {
+                // pcap4j initialises itself on first use instead
+                Timber.w(e, "Error warming up pcap4j")
+            }
+        }, startupExecutor)
+
+        val labelling = CompletableFuture.runAsync({
+            vpnService?.let { startupTimings.measure("labelling") { prepareTrackerLabelling(it.applicationContext) } }
+        }, startupExecutor)
+
+        CompletableFuture.allOf(connectionIdSeed, pcap4j, labelling, mitmManagerFuture).whenComplete { _, _ ->
+            startupExecutor.shutdown()
+            Timber.i("Startup completed: $startupTimings")
+        }
+    }
+
+    /**
+     * Maps the index of tracking hosts used to label traffic, falling back to building the trie if the index is missing.
+     */
+    private fun prepareTrackerLabelling(context: Context) {
+        val index = TrackerHostIndex.open(context)
+        if (index != null) {
+            Timber.d("Mapped tracker host index with ${index.size} entries")
+            trackerHostIndex = index
+        } else {
+            Timber.d("Building tracking hosts trie")
+            populateTrieFromRawFile(context, R.raw.adhosts, trackerTrie)
+            trackerTrieReady = true
         }
-        deviceWriteThread?.start()
     }
 
     fun stopComponents() {
+        startupExecutor.shutdownNow()
+        delayedAckTimer.shutdownNow()
+        idleConnectionReaper.stop()
+        dnsForwarder.close()
+        appFinder.close()
+
         // closing the interrupter pipe stops the DevicePollThread's polling
         try {
-            Os.close(interrupter)
+            interrupter?.let { Os.close(it) }
         } catch (e: ErrnoException) {
             Timber.w(e, "Error closing interrupter pipe")
         }
 
-        outboundTrafficHandler?.quitSafely()
-        inboundTrafficHandler?.interrupt()
-        deviceWriteThread?.quitSafely()
+        outboundTrafficHandlers.forEach { it.interrupt() }
+        inboundTrafficHandlers.forEach { it.interrupt() }
+        deviceWriteThread.interrupt()
 
         try {
-            outboundStream.close()
+            outboundStream?.close()
             inboundStream.close()
         } catch (e: IOException) {
             Timber.w(e, "Error closing VPN interface streams")
         }
 
         ConnectionCache.closeAllAndClear()
+
+        // the connections are closed, so their byte counts are final
+        trafficVolumeWriter.stop()
+        attributionExecutor.shutdown()
+
+        Timber.d("Outbound packet buffers: $outboundPacketPool")
+        Timber.d("Inbound packet buffers: $inboundPacketPool")
+        outboundQueues.forEachIndexed { index, queue ->
+            Timber.d("Outbound queue $index: depth ${queue.depth}, max. depth ${queue.maxDepth}")
+        }
+        Timber.d("Device write queue: depth ${deviceWriteQueue.depth}, max. depth ${deviceWriteQueue.maxDepth}")
+        Timber.d("Device writes: $deviceWriteThread")
+        Timber.d("Device-bound TCP segments: ${deviceDataSegments.get()} with data, ${devicePureAcks.get()} pure ACKs (ACK-to-data ratio ${"%.2f".format(ackToDataRatio)})")
+        Timber.d("Idle connections: $idleConnectionReaper")
+        Timber.d("DNS forwarding: $dnsForwarder")
+        Timber.d("DNS hostnames: $dnsCache")
+        Timber.d("App attribution: $appFinder")
+        Timber.d("Blocked writes: ${blockedWrites.count} times for ${blockedWriteNanos.get() / 1_000_000}ms in total, durations (ms): $blockedWrites")
     }
 
     /**
@@ -232,9 +441,39 @@ class ComponentManager(
         Timber.d("Inserted $lineCounter entries into trie in ${System.currentTimeMillis() - startTime}ms")
     }
 
-    fun labelConnection(remoteHost: String) = trackerTrie.search(remoteHost) != null
+    /**
+     * Returns the ID for a new connection's database entry, continuing after the highest ID in the database.
+     * Only waits if the connection comes before the lookup of that ID is done, see [connectionIdSeed].
+     */
+    fun nextConnectionId() = connectionIdSeed.join() + connectionIds.incrementAndGet()
+
+    fun labelConnection(remoteHost: String) = trackerHostIndex?.contains(remoteHost) ?: (trackerTrieReady && trackerTrie.search(remoteHost) != null)
 
-    companion object {
-        val selectorMonitor: Any = Any()
+    /**
+     * Counts a TCP segment sent to the device, either carrying data (and a piggybacked ACK) or a pure ACK.
+     */
+    fun recordDeviceSegment(pureAck: Boolean) {
+        if (pureAck) devicePureAcks.incrementAndGet() else deviceDataSegments.incrementAndGet()
+    }
+
+    /**
+     * Number of pure ACKs sent to the device per data segment.
+     */
+    val ackToDataRatio: Double
+        get() = devicePureAcks.get().toDouble() / deviceDataSegments.get().coerceAtLeast(1)
+
+    /**
+     * Records a period in which a connection's writes were blocked by a full send buffer.
+     */
+    fun recordBlockedWrite(nanos: Long) {
+        blockedWrites.record((nanos / 1_000_000).toInt())
+        blockedWriteNanos.addAndGet(nanos)
+    }
+
+    /**
+     * Picks the [InboundTrafficHandler] for a new connection's channel, spreading the channels evenly across the handlers.
+     */
+    fun nextInboundTrafficHandler(): InboundTrafficHandler {
+        return inboundTrafficHandlers[Math.floorMod(nextInboundIndex.getAndIncrement(), inboundTrafficHandlers.size)]
     }
 }
\ No newline at end of file
@@ -1,13 +1,11 @@
 package de.tomcory.heimdall.scanner.traffic.components
 
-import android.os.Handler
 import android.os.Process
 import android.system.ErrnoException
 import android.system.Os
 import android.system.OsConstants
 import android.system.StructPollfd
 import de.tomcory.heimdall.persistence.VpnStats
-import org.pcap4j.packet.*
 import timber.log.Timber
 import java.io.FileDescriptor
 import java.io.FileInputStream
@@ -17,7 +15,9 @@ class DevicePollThread internal constructor(
     name: String,
     private val inputStream: FileInputStream,
     private val interrupter: FileDescriptor,
-    private val outboundTrafficHandler: Handler
+    private val outboundQueues: List<PacketQueue>,
+    private val packetPool: PacketBufferPool,
+    private val startupTimings: StartupTimings
 ) : Thread(name) {
 
     init {
@@ -28,10 +28,6 @@ class DevicePollThread internal constructor(
     override fun run() {
         Timber.d("Thread started")
 
-        // allocate the buffer for a single packet and reuse it for all packets (yay, performance!)
-        //TODO: actually implement a reusable buffer
-        val packet = ByteArray(1500)
-
         // prepare to poll the inputStream
         val deviceFd = StructPollfd()
         try {
@@ -55,14 +51,14 @@ class DevicePollThread internal constructor(
 
         // continuously poll until interrupted via the interrupter pipe (in which case poll() returns false)
         while (true) {
-            if (!poll(packet, polls)) {
+            if (!poll(polls)) {
                 break
             }
         }
         Timber.d("Thread shut down")
     }
 
-    private fun poll(packetPlaceholder: ByteArray, polls: Array<StructPollfd?>): Boolean {
+    private fun poll(polls: Array<StructPollfd?>): Boolean {
         val deviceFd = polls[0]
         val interruptFd = polls[1]
 
@@ -89,32 +85,29 @@ class DevicePollThread internal constructor(
         // the POLLIN event was written to the deviceFd Filedescriptor, meaning we need to read a packet from the device
         if ((deviceFd!!.revents.toInt() and OsConstants.POLLIN) != 0) {
 
-            // read the raw bytes of the packet and forward the ByteArray to the OutboundInternetHandler
-            val rawPacket = try {
-                readPacket(inputStream, packetPlaceholder)
+            // read the raw bytes of the packet into a pooled buffer, which is returned to the pool once the packet is handled
+            val buffer = packetPool.acquire()
+            try {
+                readPacket(inputStream, buffer)
             } catch (e: IOException) {
+                packetPool.release(buffer)
                 return false
             }
 
-            if(rawPacket.isNotEmpty()) {
-                //Timber.w("Read %s bytes from device", rawPacket.size)
-                val parsedPacket = parsePacket(rawPacket)
-
-                // forward packet to traffic handler
-                if (parsedPacket != null) {
-                    val transportProtocol = when(parsedPacket.payload) {
-                        is TcpPacket -> 6
-                        is UdpPacket -> 17
-                        else -> 0
-                    }
-                    outboundTrafficHandler.sendMessage(outboundTrafficHandler.obtainMessage(transportProtocol, parsedPacket))
-                }
+            // forward the buffer to the traffic handler shard responsible for the packet's flow
+            if(buffer.length > 0 && isValidPacket(buffer)) {
+                //Timber.w("Read %s bytes from device", buffer.length)
+                startupTimings.markFirstPacket()
+                outboundQueues[getShardIndex(buffer)].put(buffer)
+            } else {
+                packetPool.release(buffer)
             }
         }
         return true
     }
 
-    private fun parsePacket(rawPacket: ByteArray): IpPacket? {
+    private fun isValidPacket(buffer: PacketBuffer): Boolean {
+        val rawPacket = buffer.data
 
         // determine the IP version (4 or 6) of the packet
         val ipVersion = rawPacket[0].toInt() shr 4
@@ -122,7 +115,7 @@ class DevicePollThread internal constructor(
         // make sure the version is correct
         if(ipVersion != 4 && ipVersion != 6) {
             Timber.e("Illegal IP version: %s", ipVersion)
-            return null
+            return false
         }
 
         // make sure we got the whole packet
@@ -131,15 +124,15 @@ class DevicePollThread internal constructor(
         } else {
             (rawPacket[4].toInt() shl 8 and 0xFFFF) + (rawPacket[5].toInt() and 0xFF) + 40
         }
-        if (statedLength != rawPacket.size) {
-            Timber.e("Packet length mismatch (IPv%s): Stated: %s - Actual: %s - Difference: %s", ipVersion, statedLength, rawPacket.size, (rawPacket.size - statedLength))
-            return null
+        if (statedLength != buffer.length) {
+            Timber.e("Packet length mismatch (IPv%s): Stated: %s - Actual: %s - Difference: %s", ipVersion, statedLength, buffer.length, (buffer.length - statedLength))
+            return false
         }
 
         // make sure the transport-layer protocol is TCP or UDP and drop anything else (sorry, ICMP!)
         rawPacket[if(ipVersion == 4) 9 else 6].toInt().let {
             if(it != 6 && it != 17) {
-                return null
+                return false
             }
         }
 
@@ -149,34 +142,63 @@ class DevicePollThread internal constructor(
             && rawPacket[17].toInt() == 0xFF
             && rawPacket[18].toInt() == 0xFF
             && rawPacket[19].toInt() == 0xFF) {
-            return null
+            return false
         }
 
-        // parse the packet to a pcap4j packet
-        val parsedPacket: IpPacket =
-            if (ipVersion == 4) {
-                IpV4Packet.newPacket(rawPacket, 0, rawPacket.size)
-            } else {
-                IpV6Packet.newPacket(rawPacket, 0, rawPacket.size)
-            }
-
         // update the Statistics singleton's data
-        VpnStats.increaseSessionStatsOut(rawPacket)
+        VpnStats.increaseSessionStatsOut(buffer.length)
 
-        return parsedPacket
+        return true
     }
 
-    private fun readPacket(inputStream: FileInputStream, packet: ByteArray): ByteArray {
-
-        // Read the outgoing packet from the input stream.
-        val length = inputStream.read(packet)
+    /**
+     * Maps the packet to an outbound traffic handler shard using a hash of its 5-tuple, so that all packets of a flow are handled by the same thread.
+     * The packet has already been validated by [isValidPacket], so the IPv6 header is known to be directly followed by a TCP or UDP header.
+     */
+    private fun getShardIndex(buffer: PacketBuffer): Int {
+        if (outboundQueues.size == 1) {
+            return 0
+        }
 
-        // no need to process completely empty or failed packets
-        return if (length == 0) {
-            ByteArray(0)
+        val rawPacket = buffer.data
+        var hash: Int
+        val transportOffset: Int
+        if (rawPacket[0].toInt() shr 4 == 4) {
+            // protocol, source and destination address
+            hash = rawPacket[9].toInt()
+            for (i in 12 until 20) {
+                hash = 31 * hash + rawPacket[i]
+            }
+            transportOffset = (rawPacket[0].toInt() and 0x0F) * 4
         } else {
-            // continue with a copy of the packet, preventing access and garbage collection problems
-            packet.copyOfRange(0, length)
+            // next header, source and destination address
+            hash = rawPacket[6].toInt()
+            for (i in 8 until 40) {
+                hash = 31 * hash + rawPacket[i]
+            }
+            transportOffset = 40
+        }
+
+        // source and destination port
+        if (buffer.length >= transportOffset + 4) {
+            for (i in transportOffset until transportOffset + 4) {
+                hash = 31 * hash + rawPacket[i]
+            }
         }
+
+        // spread the bits (MurmurHash3 finaliser) so that similar tuples don't end up on the same shard
+        hash = hash xor (hash ushr 16)
+        hash *= -0x7a143595
+        hash = hash xor (hash ushr 13)
+        hash *= -0x3d4d51cb
+        hash = hash xor (hash ushr 16)
+
+        return (hash and Int.MAX_VALUE) % outboundQueues.size
+    }
+
+    private fun readPacket(inputStream: FileInputStream, buffer: PacketBuffer) {
+
+        // Read the outgoing packet from the input stream straight into the pooled buffer, no copy required
+        buffer.length = maxOf(inputStream.read(buffer.data), 0)
     }
 }
\ No newline at end of file
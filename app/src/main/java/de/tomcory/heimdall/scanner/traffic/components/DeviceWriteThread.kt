@@ -1,67 +1,76 @@
 package de.tomcory.heimdall.scanner.traffic.components
 
-import android.os.Handler
-import android.os.HandlerThread
-import android.os.Message
 import android.os.Process
-import org.pcap4j.packet.IpPacket
+import de.tomcory.heimdall.util.Histogram
 import timber.log.Timber
 import java.io.FileOutputStream
 import java.io.IOException
 
+/**
+ * Writes the packets produced by the traffic handlers to the device's VPN interface.
+ * Any thread may call [write], each of them gets its own ring in the [FanInPacketQueue].
+ *
+ * The TUN device takes exactly one packet per write() and the [FileOutputStream] is unbuffered, so writes cannot be coalesced:
+ * every packet costs one syscall. The thread therefore writes each packet as soon as it is taken from the queue.
+ */
 class DeviceWriteThread(
     name: String,
     private val outputStream: FileOutputStream,
-    private val handlerReadyListener: (handler: Handler) -> Unit
-) : HandlerThread(
-    name,
-    Process.THREAD_PRIORITY_FOREGROUND
-) {
+    private val queue: PacketQueue,
+    private val packetPool: PacketBufferPool
+) : Thread(name) {
 
-    lateinit var handler: Handler
+    /**
+     * Distribution of the queue depth seen when a packet is taken, i.e. how far the device writes lag behind the traffic handlers.
+     */
+    val queueDepths = Histogram()
+
+    /**
+     * Number of write() calls on the device, one per packet.
+     */
+    @Volatile
+    var writeCount = 0L
+        private set
+
+    /**
+     * Number of write() calls that failed.
+     */
+    @Volatile
+    var failedWriteCount = 0L
         private set
 
     init {
         Timber.d("Thread created")
     }
 
-    override fun onLooperPrepared() {
-        handler = object : Handler(looper) {
-            override fun handleMessage(msg: Message) = handleMessageImpl(msg)
-        }
-        Timber.d("Looper prepared")
-        // signal looper prepared
-        handlerReadyListener.invoke(handler)
-    }
+    override fun run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_FOREGROUND)
+        Timber.d("Thread started")
 
-    override fun quit(): Boolean {
-        Timber.d("Thread shut down")
-        return super.quit()
-    }
-
-    override fun quitSafely(): Boolean {
+        while (!isInterrupted) {
+            val buffer = queue.take() ?: break
+            queueDepths.record(queue.depth + 1)
+            try {
+                writeCount++
+                outputStream.write(buffer.data, 0, buffer.length)
+            } catch (e: IOException) {
+                failedWriteCount++
+                Timber.e(e, "Error writing packet of size ${buffer.length} to device")
+            } finally {
+                packetPool.release(buffer)
+            }
+        }
         Timber.d("Thread shut down")
-        return super.quitSafely()
     }
 
-    private fun handleMessageImpl(msg: Message) {
-        if (msg.obj !is IpPacket) {
-            Timber.e("Got unknown message type: %s (should be org.pcap4j.packet.IpV4Packet)", msg.obj.javaClass.name)
-            return
-        }
-
-        val packet = msg.obj as IpPacket
-
-        try {
-            outputStream.write(packet.rawData)
-            outputStream.flush()
-        } catch (e: IOException) {
-            Timber.e(e, "Error writing packet of size ${packet.length()} to device")
-        }
+    /**
+     * Queues a packet built into a buffer of the [packetPool] to be written to the device. The buffer is returned to the pool once it is written.
+     */
+    fun write(packet: PacketBuffer) {
+        queue.put(packet)
     }
 
-    companion object {
-        const val WRITE_TCP = 0
-        const val WRITE_UDP = 1
+    override fun toString(): String {
+        return "DeviceWriteThread(writes=$writeCount, failed=$failedWriteCount, queueDepths=$queueDepths)"
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,76 @@
+package de.tomcory.heimdall.scanner.traffic.components
+
+import java.util.concurrent.CopyOnWriteArrayList
+
+/**
+ * Multi-producer/single-consumer [PacketQueue] built from one [SpscPacketQueue] per producing thread.
+ * Every producer writes to its own ring, so producers never contend with each other. The consumer drains the rings round-robin.
+ *
+ * @param ringCapacity Capacity of each producer's ring.
+ * @param waitStrategy Strategy used by the consumer to wait for new buffers, shared by all rings.
+ */
+class FanInPacketQueue(
+    private val ringCapacity: Int,
+    private val waitStrategy: WaitStrategy
+) : PacketQueue {
+
+    private val rings = CopyOnWriteArrayList<SpscPacketQueue>()
+
+    private val producerRing = object : ThreadLocal<SpscPacketQueue>() {
+        override fun initialValue(): SpscPacketQueue {
+            val ring = SpscPacketQueue(ringCapacity, waitStrategy)
+            rings.add(ring)
+            return ring
+        }
+    }
+
+    private var nextRing = 0
+
+    /**
+     * Number of producing threads that have written to this queue.
+     */
+    val producerCount: Int get() = rings.size
+
+    override val depth: Int get() {
+        var depth = 0
+        for (i in 0 until rings.size) {
+            depth += rings[i].depth
+        }
+        return depth
+    }
+
+    override val maxDepth: Int get() {
+        var maxDepth = 0
+        for (i in 0 until rings.size) {
+            maxDepth = maxOf(maxDepth, rings[i].maxDepth)
+        }
+        return maxDepth
+    }
+
+    override fun put(buffer: PacketBuffer) {
+        producerRing.get()!!.put(buffer)
+    }
+
+    override fun poll(): PacketBuffer? {
+        val ringCount = rings.size
+        for (i in 0 until ringCount) {
+            val index = (nextRing + i) % ringCount
+            val buffer = rings[index].poll()
+            if (buffer != null) {
+                // continue with the next ring, so that a busy producer cannot starve the others
+                nextRing = index + 1
+                return buffer
+            }
+        }
+        return null
+    }
+
+    override fun take(): PacketBuffer? {
+        var idleCounter = 0
+        while (!Thread.currentThread().isInterrupted) {
+            poll()?.let { return it }
+            idleCounter = waitStrategy.idle(idleCounter, this)
+        }
+        return null
+    }
+}
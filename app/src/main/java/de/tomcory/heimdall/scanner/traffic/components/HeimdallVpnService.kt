@@ -21,6 +21,8 @@ import de.tomcory.heimdall.ui.main.preferencesStore
 import de.tomcory.heimdall.scanner.traffic.mitm.VpnComponentLaunchException
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.async
+import kotlinx.coroutines.coroutineScope
 import kotlinx.coroutines.flow.first
 import kotlinx.coroutines.launch
 import kotlinx.coroutines.withContext
@@ -55,11 +57,13 @@ class HeimdallVpnService : VpnService() {
 
                 Timber.d("Received %s", if(useProxy) "START_SERVICE_PROXY" else "START_SERVICE")
 
+                val startupTimings = StartupTimings()
+
                 // promote this service to the foreground to prevent it from being put to sleep
                 startForeground(ONGOING_NOTIFICATION_ID, createForegroundNotification())
 
                 CoroutineScope(Dispatchers.IO).launch {
-                    val insertedIds = HeimdallDatabase.instance?.sessionDao?.insert(Session())
+                    val insertedIds = startupTimings.measure("session") { HeimdallDatabase.instance?.sessionDao?.insert(Session()) }
                     sessionId = if(!insertedIds.isNullOrEmpty()) {
                         insertedIds.first()
                     } else {
@@ -68,7 +72,7 @@ class HeimdallVpnService : VpnService() {
 
                     if(sessionId > 0) {
                         Timber.d("VpnService startup: got session, launching service components")
-                        launchServiceComponents(useProxy)
+                        launchServiceComponents(useProxy, startupTimings)
                         Timber.d("VpnService started")
                         isVpnActive = true
                     } else {
@@ -115,34 +119,38 @@ class HeimdallVpnService : VpnService() {
             .build()
     }
 
-    private suspend fun launchServiceComponents(useProxy: Boolean) {
-
-        val dataStore = applicationContext.preferencesStore
-        val doMitm = dataStore.data.first().mitmEnable
+    private suspend fun launchServiceComponents(useProxy: Boolean, startupTimings: StartupTimings) = coroutineScope {
 
-        // (re)initialise the Statistics singleton
-        VpnStats.initialise(applicationContext)
-        Timber.d("VpnStats initialised")
+        // the preferences and statistics are not needed to establish the interface, so load them in the meantime
+        val doMitm = async { startupTimings.measure("preferences") { applicationContext.preferencesStore.data.first().mitmEnable } }
+        val stats = async(Dispatchers.IO) {
+            // (re)initialise the Statistics singleton
+            startupTimings.measure("stats") { VpnStats.initialise(applicationContext) }
+            Timber.d("VpnStats initialised")
+        }
 
         // establish the VPN interface
-        if (!establishInterface(useProxy)) {
+        if (!startupTimings.measure("interface") { establishInterface(useProxy) }) {
             Timber.e("Unable to establish interface")
+            stats.await()
             stopSelf()
-            return
+            return@coroutineScope
         }
+        stats.await()
 
-        // launch the traffic-handling components through the ComponentManager
+        // launch the traffic-handling components through the ComponentManager, which only waits for what packet forwarding needs
         try {
             componentManager = ComponentManager(
                 FileInputStream(vpnInterface?.fileDescriptor),
                 FileOutputStream(vpnInterface?.fileDescriptor),
-                this,
-                doMitm
+                this@HeimdallVpnService,
+                doMitm.await(),
+                startupTimings = startupTimings
             )
         } catch (e: VpnComponentLaunchException) {
             Timber.e("Failed to initialise traffic handlers")
             stopVpnComponents()
-            return
+            return@coroutineScope
         }
 
         // getting to this point means that everything was established and launched successfully
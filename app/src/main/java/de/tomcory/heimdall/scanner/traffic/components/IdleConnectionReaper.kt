@@ -0,0 +1,122 @@
+package de.tomcory.heimdall.scanner.traffic.components
+
+import android.os.SystemClock
+import de.tomcory.heimdall.scanner.traffic.connection.transportLayer.TransportLayerConnection
+import de.tomcory.heimdall.util.TimerWheel
+import timber.log.Timber
+import java.util.IdentityHashMap
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Closes connections that have been idle for longer than the timeout of their protocol and state (see [TransportLayerConnection.idleTimeoutMillis]),
+ * e.g. UDP flows other than DNS or TCP flows whose app died half-way through a handshake.
+ *
+ * Every connection has a timer in a [TimerWheel] that is driven by the reaper's own thread, so no thread ever scans the [ConnectionCache][de.tomcory.heimdall.scanner.traffic.cache.ConnectionCache].
+ * The traffic handlers only record the time of a connection's last activity (see [clockMillis]); when its timer expires, the reaper either
+ * closes the connection or moves the timer to the connection's new deadline.
+ *
+ * @param tickMillis Resolution of the idle timeouts.
+ */
+class IdleConnectionReaper(private val tickMillis: Long = 1000) {
+
+    private val executor = Executors.newSingleThreadScheduledExecutor { runnable ->
+        Thread(runnable, "IdleConnectionReaper").apply { isDaemon = true }
+    }
+
+    /**
+     * Coarse clock (in [SystemClock.elapsedRealtime], so it keeps running while the device sleeps) that is updated once per tick.
+     * Cheap enough to be read for every packet, which is how the connections record their last activity.
+     */
+    @Volatile
+    var clockMillis = SystemClock.elapsedRealtime()
+        private set
+
+    private val wheel = TimerWheel<TransportLayerConnection>(tickMillis, clockMillis)
+
+    /**
+     * Timers of the connections in the [wheel]. Only accessed by the reaper's thread.
+     */
+    private val timers = IdentityHashMap<TransportLayerConnection, TimerWheel.Timer<TransportLayerConnection>>()
+
+    private val registrations = ConcurrentLinkedQueue<TransportLayerConnection>()
+
+    private val deregistrations = ConcurrentLinkedQueue<TransportLayerConnection>()
+
+    /**
+     * Number of reaped connections per protocol and state.
+     */
+    private val reaped = ConcurrentHashMap<String, AtomicLong>()
+
+    init {
+        executor.scheduleWithFixedDelay(::tick, tickMillis, tickMillis, TimeUnit.MILLISECONDS)
+    }
+
+    /**
+     * Starts tracking the idle time of a new connection. Safe to call from any thread.
+     */
+    fun register(connection: TransportLayerConnection) {
+        registrations.add(connection)
+    }
+
+    /**
+     * Stops tracking a connection that was closed or removed from the cache. Safe to call from any thread.
+     */
+    fun deregister(connection: TransportLayerConnection) {
+        deregistrations.add(connection)
+    }
+
+    /**
+     * Total number of reaped connections.
+     */
+    val reapedCount: Long
+        get() = reaped.values.sumOf { it.get() }
+
+    fun stop() {
+        executor.shutdownNow()
+    }
+
+    private fun tick() {
+        try {
+            val now = SystemClock.elapsedRealtime()
+            clockMillis = now
+
+            // registrations first, a connection may have been closed right after it was created
+            while (true) {
+                val connection = registrations.poll() ?: break
+                timers[connection] = wheel.schedule(connection, connection.lastActivityMillis + connection.idleTimeoutMillis)
+            }
+            while (true) {
+                val connection = deregistrations.poll() ?: break
+                timers.remove(connection)?.let { wheel.cancel(it) }
+            }
+
+            wheel.advance(now) { timer ->
+                val connection = timer.item
+                val deadline = connection.lastActivityMillis + connection.idleTimeoutMillis
+                if (deadline > now) {
+                    // the connection was active since the timer was set, or its state changed to one with a longer timeout
+                    wheel.reschedule(timer, deadline)
+                } else {
+                    reap(connection)
+                }
+            }
+        } catch (e: Exception) {
+            // keep the reaper running, an exception would cancel the scheduled task
+            Timber.e(e, "Error reaping idle connections")
+        }
+    }
+
+    private fun reap(connection: TransportLayerConnection) {
+        timers.remove(connection)
+        reaped.getOrPut("${connection.protocol}/${connection.state}") { AtomicLong() }.incrementAndGet()
+        connection.closeIdle()
+    }
+
+    override fun toString(): String {
+        return "$reapedCount reaped ${reaped.entries.sortedBy { it.key }.joinToString(", ", "(", ")") { "${it.key}: ${it.value.get()}" }}, ${wheel.size} tracked"
+    }
+}
@@ -1,53 +1,151 @@
 package de.tomcory.heimdall.scanner.traffic.components
 
 import android.os.Process
+import de.tomcory.heimdall.scanner.traffic.connection.transportLayer.DnsForwarder
 import de.tomcory.heimdall.scanner.traffic.connection.transportLayer.TransportLayerConnection
+import de.tomcory.heimdall.scanner.traffic.mitm.VpnComponentLaunchException
 import timber.log.Timber
 import java.io.IOException
+import java.nio.channels.SelectableChannel
+import java.nio.channels.SelectionKey
+import java.nio.channels.Selector
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.atomic.AtomicBoolean
 
+/**
+ * One of the selector threads that poll the connections' outward-facing channels for inbound data.
+ * Each handler owns its [Selector] and the channels registered with it, so no locking is required around the selection process.
+ */
 class InboundTrafficHandler(
-    name: String,
-    private val componentManager: ComponentManager
+    name: String
 ) : Thread(name) {
 
+    /**
+     * Channel registration requested by another thread, carried out by the handler before its next selection.
+     */
+    private class Registration(
+        val attachment: Any,
+        val channel: SelectableChannel,
+        val ops: Int
+    )
+
+    private val selector: Selector = try {
+        Selector.open()
+    } catch (e: IOException) {
+        throw VpnComponentLaunchException("Error opening selector", e)
+    }
+
+    private val pendingRegistrations = ConcurrentLinkedQueue<Registration>()
+
+    /**
+     * Set when a registration woke up the selector, so that concurrent registrations don't wake it up again before it has drained the queue.
+     */
+    private val wakeupPending = AtomicBoolean(false)
+
     init {
         Process.setThreadPriority(Process.THREAD_PRIORITY_FOREGROUND)
         Timber.d("InboundTrafficHandler created")
     }
 
+    /**
+     * Registers the connection's channel with this handler's [Selector]. Can be called from any thread.
+     * Once the registration is done, the connection is notified through [TransportLayerConnection.onChannelRegistered].
+     */
+    fun register(connection: TransportLayerConnection, channel: SelectableChannel, ops: Int) {
+        enqueueRegistration(Registration(connection, channel, ops))
+    }
+
+    /**
+     * Registers the channel of a [DnsForwarder.Upstream] for OP_READ with this handler's [Selector]. Can be called from any thread.
+     */
+    fun register(upstream: DnsForwarder.Upstream) {
+        enqueueRegistration(Registration(upstream, upstream.channel, SelectionKey.OP_READ))
+    }
+
+    private fun enqueueRegistration(registration: Registration) {
+        pendingRegistrations.offer(registration)
+        if (wakeupPending.compareAndSet(false, true)) {
+            selector.wakeup()
+        }
+    }
+
+    /**
+     * Wakes up the handler's [Selector], e.g. after another thread changed the interest set of one of its keys.
+     */
+    fun wakeup() {
+        selector.wakeup()
+    }
+
     override fun run() {
         Timber.d("InboundTrafficHandler started")
         var selectedChannels: Int
 
         while (!interrupted()) {
+            // carry out the registrations requested since the last selection
+            wakeupPending.set(false)
+            processRegistrations()
+
             selectedChannels = 0
             try {
-                selectedChannels = componentManager.selector.select()
+                selectedChannels = selector.select()
             } catch (e: IOException) {
                 Timber.e(e, "Error during selection process")
             }
 
-            synchronized(ComponentManager.selectorMonitor) {
-                if (selectedChannels > 0) {
-                    val iterator = componentManager.selector.selectedKeys().iterator()
-                    while (iterator.hasNext()) {
-                        val key = iterator.next()
-                        val attachment = key.attachment()
-                        if (attachment == null) {
-                            Timber.e("Channel has null attachment")
-                            key.cancel()
-                            continue
+            if (selectedChannels > 0) {
+                val iterator = selector.selectedKeys().iterator()
+                while (iterator.hasNext()) {
+                    val key = iterator.next()
+                    val attachment = key.attachment()
+                    if (attachment == null) {
+                        Timber.e("Channel has null attachment")
+                        key.cancel()
+                        continue
+                    }
+                    if (attachment is TransportLayerConnection) {
+                        attachment.markActive()
+
+                        // flush the writes that were queued while the channel's send buffer was full
+                        if (key.isValid && key.isWritable) {
+                            attachment.flushPendingWrites()
                         }
-                        if (attachment is TransportLayerConnection) {
+                        if (!key.isValid || key.readyOps() and SelectionKey.OP_WRITE.inv() != 0) {
                             attachment.unwrapInbound()
-                        } else {
-                            Timber.e("Invalid attachment %s", attachment.javaClass)
                         }
-                        iterator.remove()
+                    } else if (attachment is DnsForwarder.Upstream) {
+                        if (key.isValid && key.isReadable) {
+                            attachment.readAnswers()
+                        }
+                    } else {
+                        Timber.e("Invalid attachment %s", attachment.javaClass)
                     }
+                    iterator.remove()
                 }
             }
         }
+
+        try {
+            selector.close()
+        } catch (e: IOException) {
+            Timber.w(e, "Error closing selector")
+        }
         Timber.d("Thread shut down")
     }
-}
\ No newline at end of file
+
+    private fun processRegistrations() {
+        while (true) {
+            val registration = pendingRegistrations.poll() ?: return
+            try {
+                val selectionKey = registration.channel.register(selector, registration.ops, registration.attachment)
+                (registration.attachment as? TransportLayerConnection)?.onChannelRegistered(selectionKey, this)
+            } catch (e: Exception) {
+                // most likely the connection was closed before its channel could be registered
+                Timber.w(e, "Error registering SelectableChannel")
+                when (val attachment = registration.attachment) {
+                    is TransportLayerConnection -> attachment.closeHard()
+                    is DnsForwarder.Upstream -> attachment.close()
+                }
+            }
+        }
+    }
+}
@@ -1,47 +1,55 @@
 package de.tomcory.heimdall.scanner.traffic.components
 
-import android.os.Handler
-import android.os.HandlerThread
-import android.os.Message
 import android.os.Process
+import de.tomcory.heimdall.scanner.traffic.connection.inetLayer.PacketView
 import de.tomcory.heimdall.scanner.traffic.connection.transportLayer.TransportLayerConnection
-import org.pcap4j.packet.IpPacket
 import timber.log.Timber
 
+/**
+ * One shard of the outbound traffic handling. Each shard drains its own queue, which the [DevicePollThread] fills with the packets of the flows assigned to it.
+ */
 class OutboundTrafficHandler(
     name: String,
-    private val deviceWriter: Handler,
-    private val componentManager: ComponentManager,
-    private val handlerReadyListener: (handler: Handler) -> Unit
-) : HandlerThread(
-    name,
-    Process.THREAD_PRIORITY_FOREGROUND
-) {
+    private val queue: PacketQueue,
+    private val deviceWriter: DeviceWriteThread,
+    private val componentManager: ComponentManager
+) : Thread(name) {
+
+    /**
+     * Flyweight header accessor that is pointed at each packet in turn, so that the headers can be read without parsing the packet into objects.
+     */
+    private val packetView = PacketView()
 
     init {
         Timber.d("OutboundTrafficHandler created")
     }
 
-    lateinit var handler: Handler private set
+    override fun run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_FOREGROUND)
+        Timber.d("OutboundTrafficHandler started")
 
-    override fun onLooperPrepared() {
-        handler = object : Handler(looper) {
-            override fun handleMessage(msg: Message) {
-                handleMessageImpl(msg)
-            }
+        while (!isInterrupted) {
+            val buffer = queue.take() ?: break
+            handlePacket(buffer)
         }
-        Timber.d("OutboundTrafficHandler started")
-        // signal looper prepared
-        handlerReadyListener.invoke(handler)
+        Timber.d("Thread shut down")
     }
 
     /**
-     * Handles the message based on its transport protocol.
+     * Handles the packet based on its transport protocol and returns its buffer to the pool once it is handled.
      */
-    private fun handleMessageImpl(msg: Message) {
-        if((msg.what == 6 || msg.what == 17) && msg.obj is IpPacket) {
-            val ipPacket = msg.obj as IpPacket
-            TransportLayerConnection.getInstance(ipPacket, componentManager, deviceWriter)?.unwrapOutbound(ipPacket.payload)
+    private fun handlePacket(buffer: PacketBuffer) {
+        try {
+            if (packetView.wrap(buffer)) {
+                TransportLayerConnection.getInstance(packetView, componentManager, deviceWriter)?.let {
+                    it.markActive()
+                    it.unwrapOutbound(packetView)
+                }
+            } else {
+                Timber.e("Error parsing packet of size ${buffer.length}")
+            }
+        } finally {
+            componentManager.outboundPacketPool.release(buffer)
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,110 @@
+package de.tomcory.heimdall.scanner.traffic.components
+
+import timber.log.Timber
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Reusable holder for the raw bytes of a single IP packet.
+ *
+ * @property data Backing array, only the first [length] bytes are valid.
+ * @property isPooled Whether the buffer belongs to a [PacketBufferPool] or was allocated as a fallback.
+ */
+class PacketBuffer internal constructor(
+    capacity: Int,
+    val isPooled: Boolean
+) {
+    val data = ByteArray(capacity)
+
+    /**
+     * Number of valid bytes in [data].
+     */
+    var length = 0
+}
+
+/**
+ * Fixed-size pool of [PacketBuffer]s that are handed from one traffic-handling component to the next and returned once the packet is handled.
+ * If the pool runs dry, fallback buffers are allocated so that no packet has to be dropped.
+ *
+ * @param bufferCount Number of buffers held by the pool.
+ * @param bufferSize Capacity of each buffer in bytes.
+ */
+class PacketBufferPool(
+    private val bufferCount: Int,
+    val bufferSize: Int
+) {
+
+    private val available = ArrayBlockingQueue<PacketBuffer>(bufferCount)
+
+    private val exhausted = AtomicBoolean(false)
+
+    private val exhaustions = AtomicLong(0)
+
+    private val fallbackAllocations = AtomicLong(0)
+
+    /**
+     * Number of times the pool ran out of buffers.
+     */
+    val exhaustionCount: Long get() = exhaustions.get()
+
+    /**
+     * Number of buffers that had to be allocated because the pool was exhausted.
+     */
+    val fallbackAllocationCount: Long get() = fallbackAllocations.get()
+
+    /**
+     * Number of buffers currently available in the pool.
+     */
+    val availableCount: Int get() = available.size
+
+    init {
+        repeat(bufferCount) {
+            available.offer(PacketBuffer(bufferSize, true))
+        }
+        Timber.d("PacketBufferPool initialised with $bufferCount buffers of $bufferSize bytes")
+    }
+
+    /**
+     * Takes a buffer from the pool or allocates a fallback buffer if the pool is exhausted.
+     */
+    fun acquire(): PacketBuffer {
+        val buffer = available.poll()
+        if (buffer != null) {
+            exhausted.set(false)
+            return buffer
+        }
+
+        // count each exhaustion only once until the pool recovers
+        if (exhausted.compareAndSet(false, true)) {
+            exhaustions.incrementAndGet()
+        }
+        fallbackAllocations.incrementAndGet()
+        return PacketBuffer(bufferSize, false)
+    }
+
+    /**
+     * Takes a buffer that can hold at least [minCapacity] bytes. Oversized packets always get a fallback buffer.
+     */
+    fun acquire(minCapacity: Int): PacketBuffer {
+        if (minCapacity <= bufferSize) {
+            return acquire()
+        }
+        fallbackAllocations.incrementAndGet()
+        return PacketBuffer(minCapacity, false)
+    }
+
+    /**
+     * Returns the buffer to the pool. Fallback buffers are left to the garbage collector.
+     */
+    fun release(buffer: PacketBuffer) {
+        buffer.length = 0
+        if (buffer.isPooled) {
+            available.offer(buffer)
+        }
+    }
+
+    override fun toString(): String {
+        return "PacketBufferPool(size=$bufferCount, available=$availableCount, exhaustions=$exhaustionCount, fallbackAllocations=$fallbackAllocationCount)"
+    }
+}
@@ -0,0 +1,34 @@
+package de.tomcory.heimdall.scanner.traffic.components
+
+/**
+ * Bounded queue that hands [PacketBuffer]s from one traffic-handling stage to the next.
+ * Implementations decide how many producers are supported, but there is always exactly one consumer.
+ */
+interface PacketQueue {
+
+    /**
+     * Number of buffers currently waiting in the queue.
+     */
+    val depth: Int
+
+    /**
+     * Highest number of buffers that were waiting in the queue at the same time.
+     */
+    val maxDepth: Int
+
+    /**
+     * Enqueues the buffer, waiting for free capacity if the queue is full.
+     */
+    fun put(buffer: PacketBuffer)
+
+    /**
+     * Dequeues the next buffer without waiting. Returns null if the queue is empty.
+     */
+    fun poll(): PacketBuffer?
+
+    /**
+     * Dequeues the next buffer, waiting for one to arrive if the queue is empty.
+     * Returns null if the consuming thread is interrupted while waiting.
+     */
+    fun take(): PacketBuffer?
+}
@@ -0,0 +1,105 @@
+package de.tomcory.heimdall.scanner.traffic.components
+
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicReferenceArray
+import java.util.concurrent.locks.LockSupport
+
+/**
+ * Lock-free, bounded single-producer/single-consumer ring buffer.
+ * The slots carry references to pooled [PacketBuffer]s, so handing a packet over does not allocate anything.
+ *
+ * @param capacity Requested number of slots, rounded up to the next power of two.
+ * @param waitStrategy Strategy used by the consumer to wait for new buffers.
+ */
+class SpscPacketQueue(
+    capacity: Int,
+    private val waitStrategy: WaitStrategy
+) : PacketQueue {
+
+    private val mask: Int
+
+    private val slots: AtomicReferenceArray<PacketBuffer?>
+
+    /**
+     * Index of the next slot to be read, only advanced by the consumer.
+     */
+    private val head = AtomicLong(0)
+
+    /**
+     * Index of the next slot to be written, only advanced by the producer.
+     */
+    private val tail = AtomicLong(0)
+
+    @Volatile
+    private var highWaterMark = 0
+
+    init {
+        var size = 1
+        while (size < capacity) {
+            size = size shl 1
+        }
+        mask = size - 1
+        slots = AtomicReferenceArray(size)
+    }
+
+    override val depth: Int get() = (tail.get() - head.get()).toInt()
+
+    override val maxDepth: Int get() = highWaterMark
+
+    /**
+     * Enqueues the buffer without waiting. Returns false if the queue is full.
+     */
+    fun offer(buffer: PacketBuffer): Boolean {
+        val currentTail = tail.get()
+        val currentDepth = (currentTail - head.get()).toInt()
+        if (currentDepth > mask) {
+            return false
+        }
+        slots.lazySet(currentTail.toInt() and mask, buffer)
+        // the volatile write publishes the slot and orders it before the consumer's wake-up check
+        tail.set(currentTail + 1)
+        if (currentDepth + 1 > highWaterMark) {
+            highWaterMark = currentDepth + 1
+        }
+        return true
+    }
+
+    override fun put(buffer: PacketBuffer) {
+        var rounds = 0
+        while (!offer(buffer)) {
+            // the consumer is lagging behind, back off until it frees a slot
+            if (rounds++ < PRODUCER_SPIN_ROUNDS) {
+                Thread.yield()
+            } else {
+                LockSupport.parkNanos(PRODUCER_PARK_NANOS)
+            }
+        }
+        waitStrategy.signal()
+    }
+
+    override fun poll(): PacketBuffer? {
+        val currentHead = head.get()
+        if (currentHead == tail.get()) {
+            return null
+        }
+        val index = currentHead.toInt() and mask
+        val buffer = slots.get(index)
+        slots.lazySet(index, null)
+        head.lazySet(currentHead + 1)
+        return buffer
+    }
+
+    override fun take(): PacketBuffer? {
+        var idleCounter = 0
+        while (!Thread.currentThread().isInterrupted) {
+            poll()?.let { return it }
+            idleCounter = waitStrategy.idle(idleCounter, this)
+        }
+        return null
+    }
+
+    companion object {
+        private const val PRODUCER_SPIN_ROUNDS = 10
+        private const val PRODUCER_PARK_NANOS = 50_000L
+    }
+}
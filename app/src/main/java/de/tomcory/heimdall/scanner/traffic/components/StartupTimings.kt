@@ -0,0 +1,54 @@
+package de.tomcory.heimdall.scanner.traffic.components
+
+import timber.log.Timber
+import java.util.concurrent.ConcurrentLinkedQueue
+
+/**
+ * Records how long the phases of the VPN startup take, relative to the moment the service was asked to start.
+ * Phases may run concurrently on different threads. Every phase is logged when it completes, so startup regressions show up in the logs.
+ */
+class StartupTimings {
+
+    private val startTime = System.nanoTime()
+
+    private val phases = ConcurrentLinkedQueue<String>()
+
+    @Volatile
+    private var firstPacketSeen = false
+
+    /**
+     * Runs the block as the named phase and records its duration, including the phases that fail.
+     */
+    inline fun <T> measure(phase: String, block: () -> T): T {
+        val phaseStart = System.nanoTime()
+        try {
+            return block()
+        } finally {
+            record(phase, phaseStart)
+        }
+    }
+
+    /**
+     * Records a phase that started at [phaseStart] (in [System.nanoTime]) and ended now.
+     */
+    fun record(phase: String, phaseStart: Long) {
+        val now = System.nanoTime()
+        val entry = "$phase ${(now - phaseStart) / 1_000_000}ms (done at ${(now - startTime) / 1_000_000}ms)"
+        phases.add(entry)
+        Timber.d("Startup phase $entry")
+    }
+
+    /**
+     * Records the time-to-first-packet, i.e. the time until the first packet was read from the VPN interface. Only the first call has an effect.
+     */
+    fun markFirstPacket() {
+        if (!firstPacketSeen) {
+            firstPacketSeen = true
+            Timber.i("Time to first packet: ${(System.nanoTime() - startTime) / 1_000_000}ms")
+        }
+    }
+
+    override fun toString(): String {
+        return phases.joinToString(", ")
+    }
+}
@@ -0,0 +1,123 @@
+package de.tomcory.heimdall.scanner.traffic.components
+
+import androidx.room.withTransaction
+import de.tomcory.heimdall.persistence.database.HeimdallDatabase
+import de.tomcory.heimdall.scanner.traffic.connection.transportLayer.TransportLayerConnection
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.cancelAndJoin
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.isActive
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
+import timber.log.Timber
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Writes the traffic volumes of the connections to their database entries. The traffic handlers only count the bytes in memory
+ * ([TransportLayerConnection.bytesIn] and [TransportLayerConnection.bytesOut]), the writer periodically adds the bytes counted since its last flush
+ * to the entries in a single transaction. A closed connection is flushed one last time and then no longer tracked.
+ *
+ * @param flushIntervalMillis Time between two flushes.
+ */
+class TrafficVolumeWriter(private val flushIntervalMillis: Long = 5000) {
+
+    private class Entry(val connection: TransportLayerConnection) {
+        @Volatile
+        var closed = false
+        var flushedIn = 0L
+        var flushedOut = 0L
+        var pendingIn = 0L
+        var pendingOut = 0L
+    }
+
+    private val entries = ConcurrentHashMap<Long, Entry>()
+
+    private val scope = CoroutineScope(Dispatchers.IO + SupervisorJob())
+
+    /**
+     * Keeps the periodic and the final flush from running at the same time. Only the flushing coroutine touches an entry's counters.
+     */
+    private val flushLock = Mutex()
+
+    private val flushJob = scope.launch {
+        while (isActive) {
+            delay(flushIntervalMillis)
+            flush()
+        }
+    }
+
+    /**
+     * Starts tracking the traffic volume of a connection that has a database entry. Safe to call from any thread.
+     */
+    fun register(connection: TransportLayerConnection) {
+        if (connection.id > 0) {
+            entries.putIfAbsent(connection.id, Entry(connection))
+        }
+    }
+
+    /**
+     * Marks the connection as closed, so that the next flush is its last one. Safe to call from any thread.
+     */
+    fun onConnectionClosed(connection: TransportLayerConnection) {
+        entries[connection.id]?.closed = true
+    }
+
+    /**
+     * Stops the periodic flushes and flushes all connections one last time. Blocks until the final flush is written.
+     */
+    fun stop() {
+        runBlocking {
+            flushJob.cancelAndJoin()
+            flush()
+        }
+    }
+
+    private suspend fun flush() = flushLock.withLock {
+        val flushed = ArrayList<Entry>()
+        val closed = ArrayList<Entry>()
+        for (entry in entries.values) {
+            // read the flag first, so that the counters read afterwards include everything counted before the connection closed
+            if (entry.closed) {
+                closed.add(entry)
+            }
+            entry.pendingIn = entry.connection.bytesIn - entry.flushedIn
+            entry.pendingOut = entry.connection.bytesOut - entry.flushedOut
+            if (entry.pendingIn != 0L || entry.pendingOut != 0L) {
+                flushed.add(entry)
+            }
+        }
+
+        if (flushed.isNotEmpty()) {
+            val database = HeimdallDatabase.instance ?: return@withLock
+            val connectionDao = database.connectionDao ?: return@withLock
+            try {
+                database.withTransaction {
+                    for (entry in flushed) {
+                        connectionDao.updateBytes(entry.connection.id, entry.pendingIn, entry.pendingOut)
+                    }
+                }
+            } catch (e: Exception) {
+                // keep the deltas and the closed connections, the next flush tries again
+                Timber.e(e, "Error writing traffic volumes of ${flushed.size} connections")
+                return@withLock
+            }
+
+            for (entry in flushed) {
+                entry.flushedIn += entry.pendingIn
+                entry.flushedOut += entry.pendingOut
+            }
+        }
+
+        for (entry in closed) {
+            entries.remove(entry.connection.id)
+        }
+    }
+
+    override fun toString(): String {
+        return "${entries.size} connections tracked"
+    }
+}
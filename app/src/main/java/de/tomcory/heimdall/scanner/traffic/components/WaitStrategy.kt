@@ -0,0 +1,65 @@
+package de.tomcory.heimdall.scanner.traffic.components
+
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.locks.LockSupport
+
+/**
+ * Determines how the consumer of a [PacketQueue] waits for new buffers and how producers wake it up again.
+ */
+interface WaitStrategy {
+
+    /**
+     * Called by the consumer whenever it finds the queue empty.
+     *
+     * @param counter Number of consecutive idle rounds so far (0 for the first one).
+     * @param queue The queue the consumer is waiting on.
+     * @return The counter to pass to the next call.
+     */
+    fun idle(counter: Int, queue: PacketQueue): Int
+
+    /**
+     * Called by producers after they enqueued a buffer.
+     */
+    fun signal()
+}
+
+/**
+ * Busy-spins for a number of rounds, then yields the CPU for a number of rounds and finally parks the consumer until a producer signals new data.
+ * Spinning keeps the latency low under load, while parking makes sure that an idle VPN does not burn the battery.
+ *
+ * @param spinRounds Number of idle rounds spent busy-spinning.
+ * @param yieldRounds Number of idle rounds spent yielding after spinning.
+ * @param maxParkNanos Upper bound for a single park, so that the consumer re-checks its interrupt state regularly.
+ */
+class BusySpinParkWaitStrategy(
+    private val spinRounds: Int = 100,
+    private val yieldRounds: Int = 10,
+    private val maxParkNanos: Long = TimeUnit.MILLISECONDS.toNanos(100)
+) : WaitStrategy {
+
+    @Volatile
+    private var parkedThread: Thread? = null
+
+    override fun idle(counter: Int, queue: PacketQueue): Int {
+        when {
+            counter < spinRounds -> {
+                // busy spin
+            }
+            counter < spinRounds + yieldRounds -> Thread.yield()
+            else -> {
+                // announce the park before re-checking the queue, so that a concurrent producer cannot miss it
+                parkedThread = Thread.currentThread()
+                if (queue.depth == 0) {
+                    LockSupport.parkNanos(this, maxParkNanos)
+                }
+                parkedThread = null
+                return counter
+            }
+        }
+        return counter + 1
+    }
+
+    override fun signal() {
+        parkedThread?.let { LockSupport.unpark(it) }
+    }
+}
@@ -2,8 +2,6 @@ package de.tomcory.heimdall.scanner.traffic.connection.appLayer
 
 import de.tomcory.heimdall.scanner.traffic.components.ComponentManager
 import de.tomcory.heimdall.scanner.traffic.connection.encryptionLayer.EncryptionLayerConnection
-import org.pcap4j.packet.DnsPacket
-import org.pcap4j.packet.Packet
 
 abstract class AppLayerConnection(
     val id: Long,
@@ -16,8 +14,6 @@ abstract class AppLayerConnection(
      */
     abstract fun unwrapOutbound(payload: ByteArray)
 
-    abstract fun unwrapOutbound(packet: Packet)
-
     /**
      * Receives an inbound payload from the encryption layer, processes it and passes it back down to the encryption layer by calling its wrapInbound() method.
      */
@@ -46,26 +42,5 @@ abstract class AppLayerConnection(
                 RawConnection(id, encryptionLayer, componentManager)
             }
         }
-
-        /**
-         * Creates an [AppLayerConnection] instance based on the application protocol of the supplied payload (must be the very first application-layer payload of the connection).
-         * You still need to call [unwrapOutbound] to actually process the payload once the instance is created.
-         * @param packet
-         * @param id
-         * @param encryptionLayer
-         */
-        fun getInstance(packet: Packet, id: Long, encryptionLayer: EncryptionLayerConnection, componentManager: ComponentManager): AppLayerConnection {
-            return try {
-                if(packet is DnsPacket) {
-                    DnsConnection(id, encryptionLayer, componentManager)
-                } else if(packet.rawData.size > 7 && HTTP_KEYWORDS.any { String(packet.rawData.sliceArray(0..10), Charsets.UTF_8).contains(it) }) {
-                    HttpConnection(id, encryptionLayer, componentManager)
-                } else {
-                    RawConnection(id, encryptionLayer, componentManager)
-                }
-            } catch (e: Exception) {
-                RawConnection(id, encryptionLayer, componentManager)
-            }
-        }
     }
 }
\ No newline at end of file
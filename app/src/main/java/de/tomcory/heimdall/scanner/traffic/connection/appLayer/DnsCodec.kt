@@ -0,0 +1,193 @@
+package de.tomcory.heimdall.scanner.traffic.connection.appLayer
+
+/**
+ * Minimal DNS message codec that works on the raw message bytes. It only understands what the scanner needs: the question name and the
+ * A, AAAA and CNAME records of the answer section. All positions are relative to the start of the message at `offset`.
+ */
+object DnsCodec {
+    /**
+     * Length of the DNS header.
+     */
+    const val HEADER_LENGTH = 12
+
+    const val TYPE_A = 1
+    const val TYPE_CNAME = 5
+    const val TYPE_AAAA = 28
+    const val TYPE_OPT = 41
+    const val CLASS_IN = 1
+
+    /**
+     * Number of compression pointers followed while reading a name, which stops pointer loops in malformed messages.
+     */
+    private const val MAX_POINTERS = 16
+
+    /**
+     * Number of CNAME records followed from the question name to an address record.
+     */
+    private const val MAX_CNAME_CHAIN = 8
+
+    /**
+     * Computes the length of the message's first question (its name, type and class) without parsing the message.
+     *
+     * @return the length, or -1 if the message has no complete question.
+     */
+    fun questionLength(message: ByteArray, offset: Int, length: Int): Int {
+        if (length < HEADER_LENGTH || readShort(message, offset + 4) == 0) {
+            return -1
+        }
+        // the name is followed by the question's type and class
+        val position = skipName(message, offset, HEADER_LENGTH, length)
+        return if (position >= 0 && position + 4 <= length) position + 4 - HEADER_LENGTH else -1
+    }
+
+    /**
+     * Skips the name starting at [position].
+     *
+     * @return the position following the name, or -1 if the name is malformed.
+     */
+    fun skipName(message: ByteArray, offset: Int, position: Int, length: Int): Int {
+        var current = position
+        while (current < length) {
+            val labelLength = message[offset + current].toInt() and 0xFF
+            when {
+                labelLength == 0 -> return current + 1
+                // a compression pointer ends the name
+                labelLength and 0xC0 == 0xC0 -> return if (current + 2 <= length) current + 2 else -1
+                labelLength and 0xC0 != 0 -> return -1
+                else -> current += labelLength + 1
+            }
+        }
+        return -1
+    }
+
+    /**
+     * Reads the name starting at [position], following compression pointers, in lower case and without the trailing dot.
+     *
+     * @return the name, or null if the name is malformed.
+     */
+    fun readName(message: ByteArray, offset: Int, position: Int, length: Int): String? {
+        val name = StringBuilder(64)
+        var current = position
+        var pointers = 0
+        while (current < length) {
+            val labelLength = message[offset + current].toInt() and 0xFF
+            when {
+                labelLength == 0 -> return name.toString()
+                labelLength and 0xC0 == 0xC0 -> {
+                    if (current + 2 > length || ++pointers > MAX_POINTERS) {
+                        return null
+                    }
+                    current = (labelLength and 0x3F shl 8) or (message[offset + current + 1].toInt() and 0xFF)
+                }
+                labelLength and 0xC0 != 0 || current + 1 + labelLength > length -> return null
+                else -> {
+                    if (name.isNotEmpty()) {
+                        name.append('.')
+                    }
+                    for (i in offset + current + 1..offset + current + labelLength) {
+                        val c = message[i].toInt() and 0xFF
+                        name.append((if (c in 'A'.code..'Z'.code) c + 0x20 else c).toChar())
+                    }
+                    current += labelLength + 1
+                }
+            }
+        }
+        return null
+    }
+
+    /**
+     * Reads the A and AAAA records of an answer and passes each address to [onAddress], together with the name of the answer's question and the
+     * record's TTL in seconds. Addresses of the aliases the question name resolves to through CNAME records are attributed to the question name
+     * as well, with the lowest TTL along the chain. Records that belong to neither are skipped, as are malformed messages.
+     */
+    fun readAddresses(message: ByteArray, offset: Int, length: Int, onAddress: (hostname: String, address: ByteArray, ttl: Long) -> Unit) {
+        val questionLength = questionLength(message, offset, length)
+        if (questionLength < 0) {
+            return
+        }
+        val hostname = readName(message, offset, HEADER_LENGTH, length) ?: return
+        val answerCount = readShort(message, offset + 6)
+
+        // the aliases on the chain from the question name, with the lowest TTL of the CNAME records leading to them
+        var aliases: Array<String?>? = null
+        var aliasTtls: LongArray? = null
+        var aliasCount = 0
+
+        var position = HEADER_LENGTH + questionLength
+        for (i in 0 until answerCount) {
+            val namePosition = position
+            position = skipName(message, offset, position, length)
+            if (position < 0 || position + 10 > length) {
+                return
+            }
+            val type = readShort(message, offset + position)
+            val recordClass = readShort(message, offset + position + 2)
+            val ttl = readInt(message, offset + position + 4)
+            val dataLength = readShort(message, offset + position + 8)
+            val dataPosition = position + 10
+            position = dataPosition + dataLength
+            if (position > length) {
+                return
+            } else if (recordClass != CLASS_IN) {
+                continue
+            }
+
+            val addressLength = when (type) {
+                TYPE_A -> 4
+                TYPE_AAAA -> 16
+                TYPE_CNAME -> 0
+                else -> continue
+            }
+            if (type != TYPE_CNAME && dataLength != addressLength) {
+                continue
+            }
+
+            // resolvers list the chain in order, so the owner is either the question name or an alias seen before
+            val owner = readName(message, offset, namePosition, length) ?: return
+            val chainTtl = if (owner == hostname) {
+                Long.MAX_VALUE
+            } else {
+                val index = aliases?.let { indexOf(it, aliasCount, owner) } ?: -1
+                if (index < 0) continue else aliasTtls!![index]
+            }
+
+            if (type == TYPE_CNAME) {
+                if (aliasCount < MAX_CNAME_CHAIN) {
+                    val target = readName(message, offset, dataPosition, length) ?: return
+                    if (aliases == null) {
+                        aliases = arrayOfNulls(MAX_CNAME_CHAIN)
+                        aliasTtls = LongArray(MAX_CNAME_CHAIN)
+                    }
+                    aliases[aliasCount] = target
+                    aliasTtls!![aliasCount] = minOf(chainTtl, ttl)
+                    aliasCount++
+                }
+            } else {
+                onAddress(hostname, message.copyOfRange(offset + dataPosition, offset + dataPosition + addressLength), minOf(chainTtl, ttl))
+            }
+        }
+    }
+
+    private fun indexOf(names: Array<String?>, count: Int, name: String): Int {
+        for (i in 0 until count) {
+            if (names[i] == name) {
+                return i
+            }
+        }
+        return -1
+    }
+
+    fun readShort(data: ByteArray, offset: Int) = (data[offset].toInt() and 0xFF shl 8) or (data[offset + 1].toInt() and 0xFF)
+
+    fun writeShort(data: ByteArray, offset: Int, value: Int) {
+        data[offset] = (value shr 8).toByte()
+        data[offset + 1] = value.toByte()
+    }
+
+    fun readInt(data: ByteArray, offset: Int): Long {
+        return ((data[offset].toLong() and 0xFF) shl 24) or
+                ((data[offset + 1].toLong() and 0xFF) shl 16) or
+                ((data[offset + 2].toLong() and 0xFF) shl 8) or
+                (data[offset + 3].toLong() and 0xFF)
+    }
+}
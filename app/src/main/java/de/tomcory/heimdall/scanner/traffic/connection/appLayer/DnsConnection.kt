@@ -2,11 +2,9 @@ package de.tomcory.heimdall.scanner.traffic.connection.appLayer
 
 import de.tomcory.heimdall.scanner.traffic.components.ComponentManager
 import de.tomcory.heimdall.scanner.traffic.connection.encryptionLayer.EncryptionLayerConnection
-import org.pcap4j.packet.DnsPacket
-import org.pcap4j.packet.DnsRDataA
-import org.pcap4j.packet.DnsRDataAaaa
-import org.pcap4j.packet.Packet
+import de.tomcory.heimdall.scanner.traffic.metadata.DnsCache
 import timber.log.Timber
+import java.net.InetAddress
 
 class DnsConnection(
     id: Long,
@@ -25,38 +23,22 @@ class DnsConnection(
     }
 
     override fun unwrapOutbound(payload: ByteArray) {
-        unwrapOutbound(DnsPacket.newPacket(payload, 0, payload.size))
-    }
-
-    override fun unwrapOutbound(packet: Packet) {
-        val dnsPacket = packet as DnsPacket
-        encryptionLayer.wrapOutbound(dnsPacket.rawData)
+        encryptionLayer.wrapOutbound(payload)
     }
 
     override fun unwrapInbound(payload: ByteArray) {
-        val dnsPacket = DnsPacket.newPacket(payload, 0, payload.size)
-        val hostname = dnsPacket.header.questions.first().qName.name
-
-        dnsPacket.header.answers.forEach {
-            val ip = when(it.rData) {
-                is DnsRDataA -> {
-                    val data = it.rData as DnsRDataA
-                    data.address.hostAddress
-                }
-
-                is DnsRDataAaaa -> {
-                    val data = it.rData as DnsRDataAaaa
-                    data.address.hostAddress
-                }
-
-                else -> ""
-            }
+        cacheAnswers(payload, 0, payload.size, componentManager.dnsCache)
+        encryptionLayer.wrapInbound(payload)
+    }
 
-            if(ip.isNotEmpty()) {
-                componentManager.dnsCache.put(ip, hostname, it.ttlAsLong)
+    companion object {
+        /**
+         * Stores the addresses of the answer's A and AAAA records in the [DnsCache], mapped to the name of the answer's question.
+         */
+        fun cacheAnswers(payload: ByteArray, offset: Int, length: Int, dnsCache: DnsCache) {
+            DnsCodec.readAddresses(payload, offset, length) { hostname, address, ttl ->
+                dnsCache.put(InetAddress.getByAddress(address).hostAddress ?: return@readAddresses, hostname, ttl)
             }
         }
-
-        encryptionLayer.wrapInbound(dnsPacket.rawData)
     }
-}
\ No newline at end of file
+}
@@ -8,7 +8,6 @@ import de.tomcory.heimdall.scanner.traffic.connection.encryptionLayer.Encryption
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.launch
-import org.pcap4j.packet.Packet
 import timber.log.Timber
 
 class HttpConnection(
@@ -37,10 +36,6 @@ class HttpConnection(
         handleData(payload, true)
     }
 
-    override fun unwrapOutbound(packet: Packet) {
-        unwrapOutbound(packet.rawData)
-    }
-
     override fun unwrapInbound(payload: ByteArray) {
         handleData(payload, false)
     }
@@ -141,6 +136,7 @@ class HttpConnection(
         //Timber.e("http$id HTTP ${if(isOutbound) "REQUEST by" else "RESPONSE to"} ${encryptionLayer.transportLayer.appPackage} ${if(isOutbound) "to" else "from"} ${encryptionLayer.transportLayer.remoteHost}:\n${statusLine?.get(0)} ${statusLine?.get(1)}, ${statusLine?.get(2)}\n${headers.map { "${it.key}: ${it.value}" }.reduce { acc, s -> "$acc$s\n" }}> Content length: ${body.length}")
 
         CoroutineScope(Dispatchers.IO).launch {
+            val appId = encryptionLayer.transportLayer.awaitAppId(componentManager.attributionTimeoutMillis)
             val id = if(isOutbound) {
                 HeimdallDatabase.instance?.requestDao?.insert(
                     Request(
@@ -156,7 +152,7 @@ class HttpConnection(
                         remotePort = encryptionLayer.transportLayer.remotePort,
                         localIp = encryptionLayer.transportLayer.ipPacketBuilder.localAddress.hostAddress ?: "",
                         localPort = encryptionLayer.transportLayer.localPort,
-                        initiatorId = encryptionLayer.transportLayer.appId ?: 0,
+                        initiatorId = appId ?: 0,
                         initiatorPkg = encryptionLayer.transportLayer.appPackage ?: ""
                     )
                 )
@@ -175,7 +171,7 @@ class HttpConnection(
                         remotePort = encryptionLayer.transportLayer.remotePort,
                         localIp = encryptionLayer.transportLayer.ipPacketBuilder.localAddress.hostAddress ?: "",
                         localPort = encryptionLayer.transportLayer.localPort,
-                        initiatorId = encryptionLayer.transportLayer.appId ?: 0,
+                        initiatorId = appId ?: 0,
                         initiatorPkg = encryptionLayer.transportLayer.appPackage ?: ""
                     )
                 )
@@ -2,7 +2,6 @@ package de.tomcory.heimdall.scanner.traffic.connection.appLayer
 
 import de.tomcory.heimdall.scanner.traffic.components.ComponentManager
 import de.tomcory.heimdall.scanner.traffic.connection.encryptionLayer.EncryptionLayerConnection
-import org.pcap4j.packet.Packet
 import timber.log.Timber
 
 class RawConnection(
@@ -29,11 +28,6 @@ class RawConnection(
         encryptionLayer.wrapOutbound(payload)
     }
 
-    override fun unwrapOutbound(packet: Packet) {
-        //TODO: implement
-        unwrapOutbound(packet.rawData)
-    }
-
     override fun unwrapInbound(payload: ByteArray) {
         //TODO: implement
         if(encryptionLayer.doMitm) {
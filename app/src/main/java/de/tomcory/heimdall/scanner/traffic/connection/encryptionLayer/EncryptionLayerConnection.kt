@@ -2,8 +2,8 @@ package de.tomcory.heimdall.scanner.traffic.connection.encryptionLayer
 
 import de.tomcory.heimdall.scanner.traffic.components.ComponentManager
 import de.tomcory.heimdall.scanner.traffic.connection.appLayer.AppLayerConnection
+import de.tomcory.heimdall.scanner.traffic.connection.appLayer.RawConnection
 import de.tomcory.heimdall.scanner.traffic.connection.transportLayer.TransportLayerConnection
-import org.pcap4j.packet.Packet
 import timber.log.Timber
 
 abstract class EncryptionLayerConnection(
@@ -17,8 +17,28 @@ abstract class EncryptionLayerConnection(
      */
     private var appLayer: AppLayerConnection? = null
 
+    /**
+     * Whether the connection is intercepted. Set by the outbound traffic handler, or by the attribution thread if the decision has to wait for the
+     * connection's app (see [TlsConnection]), and read by both traffic handlers.
+     */
+    @Volatile
     var doMitm = componentManager.doMitm
 
+    /**
+     * Whether the layer passes payloads through unmodified, i.e. it neither decrypts nor inspects them.
+     */
+    protected open val isOpaque: Boolean = true
+
+    /**
+     * Whether the layer holds an incomplete outbound payload that it is waiting to complete.
+     */
+    protected open val hasPendingOutboundData: Boolean = false
+
+    /**
+     * Whether the layer holds an incomplete inbound payload that it is waiting to complete.
+     */
+    protected open val hasPendingInboundData: Boolean = false
+
     fun passOutboundToAppLayer(payload: ByteArray) {
         if(appLayer == null) {
             appLayer = AppLayerConnection.getInstance(payload, id, this, componentManager)
@@ -26,13 +46,6 @@ abstract class EncryptionLayerConnection(
         appLayer?.unwrapOutbound(payload)
     }
 
-        fun passOutboundToAppLayer(packet: Packet) {
-        if(appLayer == null) {
-            appLayer = AppLayerConnection.getInstance(packet, id, this, componentManager)
-        }
-        appLayer?.unwrapOutbound(packet)
-    }
-
     fun passInboundToAppLayer(payload: ByteArray) {
         if(appLayer == null) {
             Timber.e("$id Inbound data without an application layer instance!")
@@ -42,13 +55,22 @@ abstract class EncryptionLayerConnection(
         }
     }
 
+    /**
+     * Whether the transport layer may relay outbound payloads straight to its channel, bypassing this layer and the application layer.
+     * This is the case once both layers are known to pass the payloads through unmodified and nothing is buffered in this layer.
+     */
+    fun canRelayOutbound() = isOpaque && appLayer is RawConnection && !hasPendingOutboundData
+
+    /**
+     * Whether the transport layer may relay inbound payloads straight to the device, bypassing this layer and the application layer.
+     */
+    fun canRelayInbound() = isOpaque && appLayer is RawConnection && !hasPendingInboundData
+
     /**
      * Receives an outbound payload from the transport layer, processes it and passes it up to the application layer.
      */
     abstract fun unwrapOutbound(payload: ByteArray)
 
-    abstract fun unwrapOutbound(packet: Packet)
-
     /**
      * Receives an inbound payload from the transport layer, processes it and passes it up to the application layer.
      */
@@ -85,10 +107,6 @@ abstract class EncryptionLayerConnection(
             }
         }
 
-        fun getInstance(id: Long, transportLayer: TransportLayerConnection, componentManager: ComponentManager, packet: Packet): EncryptionLayerConnection {
-            return getInstance(id, transportLayer, componentManager, packet.rawData)
-        }
-
         private fun detectTls(rawPayload: ByteArray): Boolean {
             return rawPayload[0].toInt() == 0x16
                     && rawPayload.size > 6
@@ -2,7 +2,6 @@ package de.tomcory.heimdall.scanner.traffic.connection.encryptionLayer
 
 import de.tomcory.heimdall.scanner.traffic.components.ComponentManager
 import de.tomcory.heimdall.scanner.traffic.connection.transportLayer.TransportLayerConnection
-import org.pcap4j.packet.Packet
 import timber.log.Timber
 
 class PlaintextConnection(
@@ -31,11 +30,6 @@ class PlaintextConnection(
         passInboundToAppLayer(payload)
     }
 
-    override fun unwrapOutbound(packet: Packet) {
-        //TODO: implement
-        passOutboundToAppLayer(packet)
-    }
-
     override fun wrapOutbound(payload: ByteArray) {
         //TODO: implement
         transportLayer.wrapOutbound(payload)
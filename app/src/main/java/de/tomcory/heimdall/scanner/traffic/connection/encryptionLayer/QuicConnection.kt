@@ -2,7 +2,6 @@ package de.tomcory.heimdall.scanner.traffic.connection.encryptionLayer
 
 import de.tomcory.heimdall.scanner.traffic.components.ComponentManager
 import de.tomcory.heimdall.scanner.traffic.connection.transportLayer.TransportLayerConnection
-import org.pcap4j.packet.Packet
 import timber.log.Timber
 
 class QuicConnection(
@@ -27,11 +26,6 @@ class QuicConnection(
         passOutboundToAppLayer(payload)
     }
 
-    override fun unwrapOutbound(packet: Packet) {
-        //TODO: implement
-        passOutboundToAppLayer(packet)
-    }
-
     override fun unwrapInbound(payload: ByteArray) {
         //TODO: implement
         passInboundToAppLayer(payload)
@@ -6,7 +6,6 @@ import de.tomcory.heimdall.util.ByteUtils
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.launch
-import org.pcap4j.packet.Packet
 import timber.log.Timber
 import java.nio.ByteBuffer
 import javax.net.ssl.SSLEngine
@@ -50,6 +49,13 @@ class TlsConnection(
 
     private var sni: String? = null
 
+    /**
+     * Outbound records that arrived while the MITM decision for the CLIENT HELLO waits for the connection's attribution (see [continueClientHello]),
+     * null unless a decision is pending. Guarded by the connection's monitor.
+     */
+    @Volatile
+    private var deferredOutboundRecords: ArrayDeque<Pair<ByteArray, RecordType>>? = null
+
     private lateinit var serverAppBuffer: ByteBuffer
 
     private lateinit var serverNetBuffer: ByteBuffer
@@ -58,6 +64,15 @@ class TlsConnection(
 
     private lateinit var clientNetBuffer: ByteBuffer
 
+    override val isOpaque: Boolean
+        get() = !doMitm
+
+    override val hasPendingOutboundData: Boolean
+        get() = outboundSnippet != null || remainingOutboundBytes > 0 || deferredOutboundRecords != null
+
+    override val hasPendingInboundData: Boolean
+        get() = inboundSnippet != null || remainingInboundBytes > 0
+
     ////////////////////////////////////////////////////////////////////////
     ///// Inherited methods ///////////////////////////////////////////////
     //////////////////////////////////////////////////////////////////////
@@ -66,10 +81,6 @@ class TlsConnection(
         prepareRecords(payload, true)
     }
 
-    override fun unwrapOutbound(packet: Packet) {
-        prepareRecords(packet.rawData, true)
-    }
-
     override fun unwrapInbound(payload: ByteArray) {
         prepareRecords(payload, false)
     }
@@ -152,15 +163,54 @@ class TlsConnection(
     private fun handleOutboundRecord(record: ByteArray, recordType: RecordType) {
         //Timber.w("tls$id ----- handleOutboundRecord $recordType in state $state -----")
 
+        // records that follow a CLIENT HELLO whose MITM decision is still pending have to wait for it
+        synchronized(this) {
+            deferredOutboundRecords?.let {
+                it.addLast(record to recordType)
+                return
+            }
+        }
+
         // grab the remote hostname from the CLIENT HELLO message
         if (recordType == RecordType.HANDSHAKE_CLIENT_HELLO) {
             sni = findSni(record)
             sni?.let { hostname = it }
 
-            // update the doMitm flag if the connection is marked for passthroughs
-            doMitm = doMitm && !(transportLayer.appId?.let { componentManager.tlsPassthroughCache.get(it, hostname) } ?: false)
+            // the connection is not intercepted if the MITM manager is not ready (yet)
+            doMitm = doMitm && componentManager.mitmManager != null
+
+            // if some app is marked for passthroughs to the host, the decision depends on the connection's app, which may not be resolved yet
+            if (doMitm && componentManager.tlsPassthroughCache.containsHostname(hostname)) {
+                synchronized(this) {
+                    deferredOutboundRecords = ArrayDeque()
+                }
+                transportLayer.onAttribution { appId -> continueClientHello(record, hostname, appId) }
+                return
+            }
+        }
+
+        processOutboundRecord(record, recordType)
+    }
+
+    /**
+     * Decides whether to intercept the connection once its app is known and processes the CLIENT HELLO and the records deferred in the meantime.
+     * Runs on the thread that resolves the attribution, or right away on the traffic handler's thread if it is already resolved.
+     */
+    private fun continueClientHello(clientHello: ByteArray, hostname: String, appId: Int?) {
+        synchronized(this) {
+            try {
+                doMitm = appId?.let { componentManager.tlsPassthroughCache.get(it, hostname) } != true
+                processOutboundRecord(clientHello, RecordType.HANDSHAKE_CLIENT_HELLO)
+                deferredOutboundRecords?.forEach { (record, recordType) -> processOutboundRecord(record, recordType) }
+            } catch (e: Exception) {
+                Timber.e(e, "tls$id Error processing the CLIENT HELLO")
+            } finally {
+                deferredOutboundRecords = null
+            }
         }
+    }
 
+    private fun processOutboundRecord(record: ByteArray, recordType: RecordType) {
         // if we don't want to MITM, we can hand the unprocessed record straight to the application layer
         if (!doMitm) {
             passOutboundToAppLayer(record)
@@ -525,7 +575,7 @@ class TlsConnection(
         //Timber.d("tls$id setupServerSSLEngine")
 
         // create a new SSLEngine to handle the TLS session facing the remote host
-        serverSSLEngine = componentManager.mitmManager.createServerSSLEngine(sni, transportLayer.remotePort)
+        serverSSLEngine = componentManager.mitmManager?.createServerSSLEngine(sni, transportLayer.remotePort)
 
         // allocate the application and network buffers used by the serverSSLEngine
         serverAppBuffer = ByteBuffer.allocate(serverSSLEngine?.session?.applicationBufferSize ?: 0)
@@ -540,7 +590,7 @@ class TlsConnection(
         //Timber.d("tls$id setupClientSSLEngine")
 
         // create a new SSLEngine to handle the TLS session facing the local client
-        clientSSLEngine = serverSSLEngine?.session?.let { componentManager.mitmManager.createClientSSLEngineFor(it) }
+        clientSSLEngine = serverSSLEngine?.session?.let { componentManager.mitmManager?.createClientSSLEngineFor(it) }
 
         // allocate the application and network buffers used by the clientSSLEngine
         clientAppBuffer = ByteBuffer.allocate(clientSSLEngine?.session?.applicationBufferSize ?: 0)
@@ -0,0 +1,72 @@
+package de.tomcory.heimdall.scanner.traffic.connection.inetLayer
+
+/**
+ * Internet checksum (RFC 1071) helpers used to build packets in place.
+ * Sums are accumulated as unfolded [Long]s, so partial sums of constant header fields can be precomputed once per flow and extended for each packet.
+ */
+object Checksum {
+
+    /**
+     * Adds the supplied bytes to the running sum as big-endian 16-bit words. An odd trailing byte is padded with zero.
+     * The bytes must start at an even offset relative to the start of the checksummed data.
+     */
+    fun add(sum: Long, data: ByteArray, offset: Int, length: Int): Long {
+        var result = sum
+        var i = offset
+        val end = offset + length - 1
+        while (i < end) {
+            result += ((data[i].toInt() and 0xFF) shl 8) or (data[i + 1].toInt() and 0xFF)
+            i += 2
+        }
+        if (i == end) {
+            result += (data[i].toInt() and 0xFF) shl 8
+        }
+        return result
+    }
+
+    /**
+     * Adds a 32-bit value to the running sum as two 16-bit words.
+     */
+    fun addInt(sum: Long, value: Long): Long {
+        return sum + (value ushr 16 and 0xFFFF) + (value and 0xFFFF)
+    }
+
+    /**
+     * Folds the running sum into 16 bits and returns its ones' complement, i.e. the value of the checksum field.
+     */
+    fun finish(sum: Long): Int {
+        var result = sum
+        while (result ushr 16 != 0L) {
+            result = (result and 0xFFFF) + (result ushr 16)
+        }
+        return result.inv().toInt() and 0xFFFF
+    }
+
+    /**
+     * Updates a checksum after a 16-bit word of the checksummed data changed from [oldWord] to [newWord] (RFC 1624, eqn. 3).
+     */
+    fun update(checksum: Int, oldWord: Int, newWord: Int): Int {
+        var sum = (checksum.inv() and 0xFFFF) + (oldWord.inv() and 0xFFFF) + (newWord and 0xFFFF)
+        sum = (sum and 0xFFFF) + (sum ushr 16)
+        sum = (sum and 0xFFFF) + (sum ushr 16)
+        return sum.inv() and 0xFFFF
+    }
+
+    /**
+     * Writes a 16-bit value to the array in network byte order.
+     */
+    fun writeShort(data: ByteArray, offset: Int, value: Int) {
+        data[offset] = (value ushr 8).toByte()
+        data[offset + 1] = value.toByte()
+    }
+
+    /**
+     * Writes a 32-bit value to the array in network byte order.
+     */
+    fun writeInt(data: ByteArray, offset: Int, value: Long) {
+        data[offset] = (value ushr 24).toByte()
+        data[offset + 1] = (value ushr 16).toByte()
+        data[offset + 2] = (value ushr 8).toByte()
+        data[offset + 3] = value.toByte()
+    }
+}
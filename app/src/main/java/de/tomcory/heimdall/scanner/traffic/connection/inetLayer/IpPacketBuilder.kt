@@ -1,60 +1,188 @@
 package de.tomcory.heimdall.scanner.traffic.connection.inetLayer
 
 import de.tomcory.heimdall.scanner.traffic.cache.ConnectionCache
-import org.pcap4j.packet.IpPacket
-import org.pcap4j.packet.IpV4Packet
-import org.pcap4j.packet.IpV6Packet
-import org.pcap4j.packet.Packet
+import de.tomcory.heimdall.scanner.traffic.components.PacketBuffer
+import de.tomcory.heimdall.scanner.traffic.components.PacketBufferPool
 import org.pcap4j.packet.namednumber.IpNumber
-import timber.log.Timber
 import java.net.InetAddress
 
 /**
  * Base class for all internet-layer connection holders.
  *
+ * Packets are built in place into pooled [PacketBuffer]s. The header fields that never change for a flow are kept in a per-flow header template,
+ * so only the varying fields and the payload are written (once) for each packet, and the checksums are derived from precomputed partial sums.
+ *
  * @property localAddress Intercepted client's IP address.
  * @property remoteAddress Remote host's IP address.
  * @property transportProtocol Transport protocol used by this connection.
+ * @property localPort Client-side port of the connection.
+ * @property remotePort Remote host's port of the connection.
+ * @property ipHeaderLength Length of the IP header written by this builder.
  */
 abstract class IpPacketBuilder protected constructor(
     val localAddress: InetAddress,
     val remoteAddress: InetAddress,
-    val transportProtocol: IpNumber) {
+    val transportProtocol: IpNumber,
+    val localPort: Int,
+    val remotePort: Int,
+    val ipHeaderLength: Int) {
+
+    /**
+     * Raw bytes of [remoteAddress], used to match packets to the connection without allocating.
+     */
+    val remoteAddressBytes: ByteArray = remoteAddress.address
+
+    /**
+     * Header template of the packets sent to the client: the IP header (filled in by the subclasses) followed by the transport-layer ports.
+     */
+    protected val template = ByteArray(ipHeaderLength + 4)
+
+    /**
+     * Partial transport-layer checksum over the constant pseudo-header fields (addresses and protocol) and the ports.
+     */
+    private val transportTemplateSum: Long
+
+    init {
+        // packets sent to the client originate from the remote host's port
+        Checksum.writeShort(template, ipHeaderLength, remotePort)
+        Checksum.writeShort(template, ipHeaderLength + 2, localPort)
+
+        var sum = Checksum.add(0, remoteAddressBytes, 0, remoteAddressBytes.size)
+        sum = Checksum.add(sum, localAddress.address, 0, remoteAddressBytes.size)
+        sum += transportProtocol.value().toInt() and 0xFF
+        transportTemplateSum = Checksum.add(sum, template, ipHeaderLength, 4)
+    }
+
+    /**
+     * Completes the IP header copied from the [template] for a packet carrying [transportLength] bytes of transport-layer header and payload.
+     */
+    protected abstract fun writeIpHeader(data: ByteArray, transportLength: Int)
 
     /**
-     * Constructs an [IpPacket] around the supplied transport-layer payload [Packet.Builder].
-     * If no payload builder is supplied, an empty packet is constructed.
+     * Builds a TCP segment to the client into a buffer taken from the supplied pool.
+     *
+     * @param flags TCP flags, see [TcpConnection][de.tomcory.heimdall.scanner.traffic.connection.transportLayer.TcpConnection]'s companion.
+     * @param options Raw TCP options, padded to a multiple of 4 bytes.
+     * @param timestampValue TSval of a timestamps option appended to the [options] (padded with two NOPs), or -1 to send no timestamps option.
+     * @param timestampEcho TSecr of the timestamps option.
      */
-    abstract fun buildPacket(payloadBuilder: Packet.Builder?) : IpPacket
+    fun buildTcpPacket(
+        pool: PacketBufferPool,
+        sequenceNumber: Long,
+        acknowledgmentNumber: Long,
+        flags: Int,
+        window: Int,
+        payload: ByteArray,
+        payloadOffset: Int = 0,
+        payloadLength: Int = payload.size - payloadOffset,
+        options: ByteArray = NO_OPTIONS,
+        timestampValue: Long = -1,
+        timestampEcho: Long = 0
+    ): PacketBuffer {
+        val headerLength = TCP_HEADER_LENGTH + options.size + if (timestampValue >= 0) TCP_TIMESTAMPS_LENGTH else 0
+        require(headerLength and 3 == 0 && headerLength <= 60) { "Invalid TCP options length" }
+
+        val tcpLength = headerLength + payloadLength
+        val buffer = pool.acquire(ipHeaderLength + tcpLength)
+        val data = buffer.data
+        val offset = ipHeaderLength
+
+        System.arraycopy(template, 0, data, 0, template.size)
+        writeIpHeader(data, tcpLength)
+
+        Checksum.writeInt(data, offset + 4, sequenceNumber)
+        Checksum.writeInt(data, offset + 8, acknowledgmentNumber)
+        data[offset + 12] = (headerLength / 4 shl 4).toByte()
+        data[offset + 13] = flags.toByte()
+        Checksum.writeShort(data, offset + 14, window)
+        Checksum.writeShort(data, offset + 16, 0)
+        Checksum.writeShort(data, offset + 18, 0)
+
+        var optionsOffset = offset + TCP_HEADER_LENGTH
+        System.arraycopy(options, 0, data, optionsOffset, options.size)
+        optionsOffset += options.size
+        if (timestampValue >= 0) {
+            data[optionsOffset] = 1 // NOP
+            data[optionsOffset + 1] = 1 // NOP
+            data[optionsOffset + 2] = 8 // kind: timestamps
+            data[optionsOffset + 3] = 10 // length
+            Checksum.writeInt(data, optionsOffset + 4, timestampValue)
+            Checksum.writeInt(data, optionsOffset + 8, timestampEcho)
+        }
+        System.arraycopy(payload, payloadOffset, data, offset + headerLength, payloadLength)
+
+        var sum = transportTemplateSum + tcpLength
+        sum = Checksum.addInt(sum, sequenceNumber and 0xFFFFFFFFL)
+        sum = Checksum.addInt(sum, acknowledgmentNumber and 0xFFFFFFFFL)
+        sum += ((headerLength / 4 shl 12) or (flags and 0xFF)) + (window and 0xFFFF)
+        sum = Checksum.add(sum, data, offset + TCP_HEADER_LENGTH, headerLength - TCP_HEADER_LENGTH + payloadLength)
+        Checksum.writeShort(data, offset + 16, Checksum.finish(sum))
+
+        buffer.length = ipHeaderLength + tcpLength
+        return buffer
+    }
+
+    /**
+     * Builds a UDP datagram to the client into a buffer taken from the supplied pool.
+     *
+     * @param localPort Client-side port the datagram is sent to, which may differ from the builder's [localPort] if the builder is shared by several flows.
+     */
+    fun buildUdpPacket(
+        pool: PacketBufferPool,
+        payload: ByteArray,
+        payloadOffset: Int = 0,
+        payloadLength: Int = payload.size - payloadOffset,
+        localPort: Int = this.localPort
+    ): PacketBuffer {
+        val udpLength = UDP_HEADER_LENGTH + payloadLength
+        val buffer = pool.acquire(ipHeaderLength + udpLength)
+        val data = buffer.data
+        val offset = ipHeaderLength
+
+        System.arraycopy(template, 0, data, 0, template.size)
+        writeIpHeader(data, udpLength)
+
+        Checksum.writeShort(data, offset + 2, localPort)
+        Checksum.writeShort(data, offset + 4, udpLength)
+        Checksum.writeShort(data, offset + 6, 0)
+        System.arraycopy(payload, payloadOffset, data, offset + UDP_HEADER_LENGTH, payloadLength)
+
+        // the length is part of both the pseudo-header and the UDP header, the port replaces the template's port in the partial sum
+        var sum = transportTemplateSum - this.localPort + localPort + udpLength + udpLength
+        sum = Checksum.add(sum, data, offset + UDP_HEADER_LENGTH, payloadLength)
+        val checksum = Checksum.finish(sum)
+
+        // a computed checksum of zero is transmitted as all ones, since zero means 'no checksum'
+        Checksum.writeShort(data, offset + 6, if (checksum == 0) 0xFFFF else checksum)
+
+        buffer.length = ipHeaderLength + udpLength
+        return buffer
+    }
 
     companion object {
+        const val TCP_HEADER_LENGTH = 20
+        const val UDP_HEADER_LENGTH = 8
+
         /**
-         * Attempts to retrieve a matching [IpPacketBuilder] from the [ConnectionCache].
-         * If no matching connection is found, a new [IpPacketBuilder] instance based on the IP version of the supplied packet is created.
-         * The created instance is written to the [ConnectionCache] before being returned.
-         *
-         * @param initialPacket [IpPacket] from which the necessary metadata is extracted to create the instance (ideally the very first packet of a new socket).
+         * Length of the timestamps option appended by [buildTcpPacket], including its two NOPs.
          */
-        fun getInstance(initialPacket: IpPacket) : IpPacketBuilder {
-            val inetLayerConnection = when(initialPacket) {
-                is IpV4Packet -> IpV4PacketBuilder(initialPacket)
-                is IpV6Packet -> IpV6PacketBuilder(initialPacket)
-                else -> throw IllegalArgumentException("Invalid IP version")
-            }
-            return inetLayerConnection
-        }
+        const val TCP_TIMESTAMPS_LENGTH = 12
+
+        private val NO_OPTIONS = ByteArray(0)
 
         /**
-         * Builds a response packet for a stray [IpPacket] based on the supplied packet's data and the supplied transport-layer [Packet.Builder].
+         * Creates a new [IpPacketBuilder] instance based on the IP version of the supplied packet.
+         * The instance is not written to the [ConnectionCache], that is done for the [TransportLayerConnection][de.tomcory.heimdall.scanner.traffic.connection.transportLayer.TransportLayerConnection] holding it.
+         *
+         * @param initialPacket [PacketView] from which the necessary metadata is extracted to create the instance (ideally the very first packet of a new socket).
          */
-        fun buildStray(strayPacket: IpPacket, payloadBuilder: Packet.Builder?): IpPacket? {
-            val strayResponse =  when(strayPacket) {
-                is IpV4Packet -> IpV4PacketBuilder.buildStray(strayPacket, payloadBuilder)
-                is IpV6Packet -> IpV6PacketBuilder.buildStray(strayPacket, payloadBuilder)
-                else -> null
+        fun getInstance(initialPacket: PacketView) : IpPacketBuilder {
+            val inetLayerConnection = when(initialPacket.ipVersion) {
+                4 -> IpV4PacketBuilder(initialPacket)
+                6 -> IpV6PacketBuilder(initialPacket)
+                else -> throw IllegalArgumentException("Invalid IP version")
             }
-            //Timber.d("Built response for stray packet: %s", strayResponse)
-            return strayResponse
+            return inetLayerConnection
         }
     }
-}
\ No newline at end of file
+}
@@ -1,85 +1,57 @@
 package de.tomcory.heimdall.scanner.traffic.connection.inetLayer
 
-import org.pcap4j.packet.IpPacket
-import org.pcap4j.packet.IpV4Packet
-import org.pcap4j.packet.IpV4Packet.IpV4Tos
-import org.pcap4j.packet.Packet
-import org.pcap4j.packet.factory.PacketFactories
-import org.pcap4j.packet.namednumber.IpVersion
-import org.pcap4j.packet.namednumber.NotApplicable
-import timber.log.Timber
-import java.net.Inet4Address
+import org.pcap4j.packet.namednumber.IpNumber
+import java.util.concurrent.atomic.AtomicInteger
 
 /**
  * Represents a connection based on IP version 4.
  *
- * @param initialPacket [IpPacket] from which the necessary metadata is extracted to create the instance (ideally the very first packet of a new socket).
+ * @param initialPacket [PacketView] from which the necessary metadata is extracted to create the instance (ideally the very first packet of a new socket).
  */
 class IpV4PacketBuilder(
-    initialPacket: IpV4Packet
+    initialPacket: PacketView
 ) : IpPacketBuilder(
-    localAddress = initialPacket.header.srcAddr,
-    remoteAddress = initialPacket.header.dstAddr,
-    transportProtocol = initialPacket.header.protocol
+    localAddress = initialPacket.getSrcAddress(),
+    remoteAddress = initialPacket.getDstAddress(),
+    transportProtocol = IpNumber.getInstance(initialPacket.protocol.toByte()),
+    localPort = initialPacket.srcPort,
+    remotePort = initialPacket.dstPort,
+    ipHeaderLength = 20
 ) {
 
     /**
      * IPv4 type of service used by this connection.
      */
-    val tos: IpV4Tos? = initialPacket.header.tos
+    val tos: Int = initialPacket.trafficClass
+
     /**
-     * IPv4 identification header value used by [buildPacket] to construct packets for this connection.
+     * IPv4 identification header value used by [writeIpHeader] to construct packets for this connection. Atomic because the inbound and
+     * outbound traffic handlers, the delayed-ACK timer and the idle connection reaper all build packets for the same connection.
      */
-    var identification: Short = 0
+    private val identification = AtomicInteger(0)
 
-    override fun buildPacket(payloadBuilder: Packet.Builder?): IpPacket {
-        val safeTos = tos ?: PacketFactories.getFactory(IpV4Tos::class.java, NotApplicable::class.java).newInstance(byteArrayOf(0), 0, 1)
-        if(tos == null) {
-            Timber.e("%s", safeTos)
-        }
+    /**
+     * Checksum of the IPv4 header template, i.e. with a total length and identification of zero.
+     */
+    private val templateChecksum: Int
 
-        return IpV4Packet.Builder()
-            .version(IpVersion.IPV4)
-            .ihl(5.toByte())
-            .tos(safeTos)
-            .identification(identification++)
-            .reservedFlag(false)
-            .dontFragmentFlag(false)
-            .moreFragmentFlag(false)
-            .fragmentOffset(0.toShort())
-            .ttl(64.toByte())
-            .protocol(transportProtocol)
-            .srcAddr(remoteAddress as Inet4Address)
-            .dstAddr(localAddress as Inet4Address)
-            .options(ArrayList())
-            .padding(ByteArray(0))
-            .payloadBuilder(payloadBuilder)
-            .correctChecksumAtBuild(true)
-            .correctLengthAtBuild(true)
-            .build()
+    init {
+        template[0] = 0x45 // version 4, IHL 5
+        template[1] = tos.toByte()
+        template[8] = 64 // TTL
+        template[9] = transportProtocol.value()
+        System.arraycopy(remoteAddressBytes, 0, template, 12, 4)
+        System.arraycopy(localAddress.address, 0, template, 16, 4)
+        templateChecksum = Checksum.finish(Checksum.add(0, template, 0, 20))
     }
 
-    companion object {
-        internal fun buildStray(strayPacket: IpV4Packet, payloadBuilder: Packet.Builder?): IpV4Packet {
-            return IpV4Packet.Builder()
-                .version(IpVersion.IPV4)
-                .ihl(5.toByte())
-                .tos(strayPacket.header.tos)
-                .identification((strayPacket.header.identification + 1).toShort())
-                .reservedFlag(false)
-                .dontFragmentFlag(false)
-                .moreFragmentFlag(false)
-                .fragmentOffset(0.toShort())
-                .ttl(64.toByte())
-                .protocol(strayPacket.header.protocol)
-                .srcAddr(strayPacket.header.dstAddr)
-                .dstAddr(strayPacket.header.srcAddr)
-                .options(ArrayList())
-                .padding(ByteArray(0))
-                .payloadBuilder(payloadBuilder)
-                .correctChecksumAtBuild(true)
-                .correctLengthAtBuild(true)
-                .build()
-        }
+    override fun writeIpHeader(data: ByteArray, transportLength: Int) {
+        val totalLength = 20 + transportLength
+        val id = identification.getAndIncrement() and 0xFFFF
+        Checksum.writeShort(data, 2, totalLength)
+        Checksum.writeShort(data, 4, id)
+
+        // the template's total length and identification are zero, so update the template's checksum for the two changed words
+        Checksum.writeShort(data, 10, Checksum.update(Checksum.update(templateChecksum, 0, totalLength), 0, id))
     }
-}
\ No newline at end of file
+}
@@ -1,63 +1,45 @@
 package de.tomcory.heimdall.scanner.traffic.connection.inetLayer
 
-import org.pcap4j.packet.IpPacket
-import org.pcap4j.packet.IpV6Packet
-import org.pcap4j.packet.IpV6Packet.IpV6FlowLabel
-import org.pcap4j.packet.IpV6Packet.IpV6TrafficClass
-import org.pcap4j.packet.Packet
-import org.pcap4j.packet.namednumber.IpVersion
-import java.net.Inet6Address
+import org.pcap4j.packet.namednumber.IpNumber
 
 /**
  * Represents a connection based on IP version 6.
  *
- * @param initialPacket [IpPacket] from which the necessary metadata is extracted to create the instance (ideally the very first packet of a new socket).
+ * @param initialPacket [PacketView] from which the necessary metadata is extracted to create the instance (ideally the very first packet of a new socket).
  */
 class IpV6PacketBuilder(
-    initialPacket: IpV6Packet
+    initialPacket: PacketView
 ) : IpPacketBuilder(
-    localAddress = initialPacket.header.srcAddr,
-    remoteAddress = initialPacket.header.dstAddr,
-    transportProtocol = initialPacket.header.protocol
+    localAddress = initialPacket.getSrcAddress(),
+    remoteAddress = initialPacket.getDstAddress(),
+    transportProtocol = IpNumber.getInstance(initialPacket.protocol.toByte()),
+    localPort = initialPacket.srcPort,
+    remotePort = initialPacket.dstPort,
+    ipHeaderLength = 40
 ) {
 
     /**
      * IPv6 traffic class used by this connection.
      */
-    val trafficClass: IpV6TrafficClass = initialPacket.header.trafficClass
+    val trafficClass: Int = initialPacket.trafficClass
 
     /**
      * IPv6 flow label used by this connection.
      */
-    val flowLabel: IpV6FlowLabel = initialPacket.header.flowLabel
+    val flowLabel: Int = initialPacket.flowLabel
 
-    override fun buildPacket(payloadBuilder: Packet.Builder?): IpPacket {
-        return IpV6Packet.Builder()
-            .version(IpVersion.IPV6)
-            .trafficClass(trafficClass)
-            .flowLabel(flowLabel)
-            .nextHeader(transportProtocol)
-            .hopLimit(64.toByte())
-            .srcAddr(remoteAddress as Inet6Address)
-            .dstAddr(localAddress as Inet6Address)
-            .payloadBuilder(payloadBuilder)
-            .correctLengthAtBuild(true)
-            .build()
+    init {
+        template[0] = (0x60 or (trafficClass shr 4)).toByte()
+        template[1] = ((trafficClass and 0x0F shl 4) or (flowLabel shr 16 and 0x0F)).toByte()
+        Checksum.writeShort(template, 2, flowLabel)
+        template[6] = transportProtocol.value()
+        template[7] = 64 // hop limit
+        System.arraycopy(remoteAddressBytes, 0, template, 8, 16)
+        System.arraycopy(localAddress.address, 0, template, 24, 16)
     }
 
-    companion object {
-        internal fun buildStray(strayPacket: IpV6Packet, payloadBuilder: Packet.Builder?): IpV6Packet {
-            return IpV6Packet.Builder()
-                .version(IpVersion.IPV6)
-                .trafficClass(strayPacket.header.trafficClass)
-                .flowLabel(strayPacket.header.flowLabel)
-                .nextHeader(strayPacket.header.nextHeader)
-                .hopLimit(64.toByte())
-                .srcAddr(strayPacket.header.dstAddr)
-                .dstAddr(strayPacket.header.srcAddr)
-                .payloadBuilder(payloadBuilder)
-                .correctLengthAtBuild(true)
-                .build()
-        }
+    override fun writeIpHeader(data: ByteArray, transportLength: Int) {
+        // IPv6 has no header checksum, only the payload length changes
+        Checksum.writeShort(data, 4, transportLength)
     }
-}
\ No newline at end of file
+}
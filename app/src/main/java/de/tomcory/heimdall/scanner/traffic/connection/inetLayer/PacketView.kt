@@ -0,0 +1,304 @@
+package de.tomcory.heimdall.scanner.traffic.connection.inetLayer
+
+import de.tomcory.heimdall.scanner.traffic.components.PacketBuffer
+import java.net.InetAddress
+import java.nio.ByteBuffer
+
+/**
+ * Flyweight accessor for the IPv4/IPv6 and TCP/UDP headers of a raw packet held in a [PacketBuffer].
+ * The view reads the header fields straight from the buffer without allocating anything, so a single instance can be reused for every packet handled by a thread.
+ * It is only valid until the buffer is returned to its pool.
+ */
+class PacketView {
+
+    private var data: ByteArray = ByteArray(0)
+
+    /**
+     * Total length of the packet in bytes.
+     */
+    var length = 0
+        private set
+
+    /**
+     * IP version of the packet (4 or 6).
+     */
+    var ipVersion = 0
+        private set
+
+    /**
+     * Length of the IP header in bytes, which is also the offset of the transport-layer header.
+     */
+    var ipHeaderLength = 0
+        private set
+
+    /**
+     * Transport protocol number (6 for TCP, 17 for UDP).
+     */
+    var protocol = 0
+        private set
+
+    /**
+     * Length of the transport-layer header in bytes, including TCP options.
+     */
+    var transportHeaderLength = 0
+        private set
+
+    val isTcp get() = protocol == PROTOCOL_TCP
+
+    val isUdp get() = protocol == PROTOCOL_UDP
+
+    /**
+     * Offset of the transport-layer payload in the underlying array.
+     */
+    val payloadOffset get() = ipHeaderLength + transportHeaderLength
+
+    /**
+     * Length of the transport-layer payload in bytes.
+     */
+    val payloadLength get() = length - payloadOffset
+
+    /**
+     * Points the view at the supplied buffer.
+     *
+     * @return false if the buffer does not hold a complete IPv4/IPv6 packet with a TCP or UDP header, in which case the view must not be used.
+     */
+    fun wrap(buffer: PacketBuffer): Boolean {
+        data = buffer.data
+        length = buffer.length
+        if (length < 1) {
+            return false
+        }
+
+        ipVersion = data[0].toInt() shr 4
+        when (ipVersion) {
+            4 -> {
+                ipHeaderLength = (data[0].toInt() and 0x0F) * 4
+                if (ipHeaderLength < 20 || length < ipHeaderLength) {
+                    return false
+                }
+                protocol = data[9].toInt() and 0xFF
+            }
+            6 -> {
+                ipHeaderLength = 40
+                if (length < ipHeaderLength) {
+                    return false
+                }
+                protocol = data[6].toInt() and 0xFF
+            }
+            else -> return false
+        }
+
+        transportHeaderLength = when (protocol) {
+            PROTOCOL_TCP -> if (length >= ipHeaderLength + 20) (data[ipHeaderLength + 12].toInt() shr 4 and 0x0F) * 4 else return false
+            PROTOCOL_UDP -> 8
+            else -> return false
+        }
+        // a TCP data offset below 5 words would put the options (and the payload) inside the fixed header
+        val minTransportHeaderLength = if (isTcp) 20 else 8
+        return transportHeaderLength >= minTransportHeaderLength && payloadOffset <= length
+    }
+
+    ////////////////////////////////////////////////////////////////////////
+    ///// IP header ///////////////////////////////////////////////////////
+    //////////////////////////////////////////////////////////////////////
+
+    private val srcAddressOffset get() = if (ipVersion == 4) 12 else 8
+
+    private val dstAddressOffset get() = if (ipVersion == 4) 16 else 24
+
+    /**
+     * Length of the IP addresses in bytes.
+     */
+    val addressLength get() = if (ipVersion == 4) 4 else 16
+
+    /**
+     * IPv4 type of service or IPv6 traffic class.
+     */
+    val trafficClass: Int
+        get() = if (ipVersion == 4) {
+            data[1].toInt() and 0xFF
+        } else {
+            (data[0].toInt() and 0x0F shl 4) or (data[1].toInt() shr 4 and 0x0F)
+        }
+
+    /**
+     * IPv6 flow label (always 0 for IPv4).
+     */
+    val flowLabel: Int
+        get() = if (ipVersion == 4) {
+            0
+        } else {
+            (data[1].toInt() and 0x0F shl 16) or (data[2].toInt() and 0xFF shl 8) or (data[3].toInt() and 0xFF)
+        }
+
+    /**
+     * IPv4 identification (always 0 for IPv6).
+     */
+    val identification: Int get() = if (ipVersion == 4) readShort(4) else 0
+
+    /**
+     * Creates an [InetAddress] from the source address. Allocates, so only use it when setting up a new connection.
+     */
+    fun getSrcAddress(): InetAddress = InetAddress.getByAddress(data.copyOfRange(srcAddressOffset, srcAddressOffset + addressLength))
+
+    /**
+     * Creates an [InetAddress] from the destination address. Allocates, so only use it when setting up a new connection.
+     */
+    fun getDstAddress(): InetAddress = InetAddress.getByAddress(data.copyOfRange(dstAddressOffset, dstAddressOffset + addressLength))
+
+    /**
+     * High 64 bits of the source address (always 0 for IPv4), read without allocating.
+     */
+    val srcAddressHigh: Long get() = if (ipVersion == 4) 0 else readLong(srcAddressOffset)
+
+    /**
+     * Low 64 bits of the source address (the whole address for IPv4), read without allocating.
+     */
+    val srcAddressLow: Long get() = if (ipVersion == 4) readInt(srcAddressOffset) else readLong(srcAddressOffset + 8)
+
+    /**
+     * High 64 bits of the destination address (always 0 for IPv4), read without allocating.
+     */
+    val dstAddressHigh: Long get() = if (ipVersion == 4) 0 else readLong(dstAddressOffset)
+
+    /**
+     * Low 64 bits of the destination address (the whole address for IPv4), read without allocating.
+     */
+    val dstAddressLow: Long get() = if (ipVersion == 4) readInt(dstAddressOffset) else readLong(dstAddressOffset + 8)
+
+    ////////////////////////////////////////////////////////////////////////
+    ///// Transport header ////////////////////////////////////////////////
+    //////////////////////////////////////////////////////////////////////
+
+    val srcPort: Int get() = readShort(ipHeaderLength)
+
+    val dstPort: Int get() = readShort(ipHeaderLength + 2)
+
+    val sequenceNumber: Long get() = readInt(ipHeaderLength + 4)
+
+    val acknowledgmentNumber: Long get() = readInt(ipHeaderLength + 8)
+
+    private val tcpFlags: Int get() = data[ipHeaderLength + 13].toInt()
+
+    val fin: Boolean get() = tcpFlags and 0x01 != 0
+
+    val syn: Boolean get() = tcpFlags and 0x02 != 0
+
+    val rst: Boolean get() = tcpFlags and 0x04 != 0
+
+    val psh: Boolean get() = tcpFlags and 0x08 != 0
+
+    val ack: Boolean get() = tcpFlags and 0x10 != 0
+
+    val window: Int get() = readShort(ipHeaderLength + 14)
+
+    /**
+     * Offset of the TCP options in the underlying array.
+     */
+    val tcpOptionsOffset get() = ipHeaderLength + 20
+
+    /**
+     * Length of the TCP options in bytes.
+     */
+    val tcpOptionsLength get() = transportHeaderLength - 20
+
+    /**
+     * Maximum segment size announced in the TCP options (only sent with SYN segments), or 0 if there is no MSS option.
+     */
+    val tcpMss: Int
+        get() = findTcpOption(TCP_OPTION_MSS, 4).let { if (it < 0) 0 else readShort(it + 2) }
+
+    /**
+     * Window scale shift announced in the TCP options (only sent with SYN segments), or -1 if there is no window scale option.
+     */
+    val tcpWindowScale: Int
+        get() = findTcpOption(TCP_OPTION_WINDOW_SCALE, 3).let { if (it < 0) -1 else data[it + 2].toInt() and 0xFF }
+
+    /**
+     * Whether the TCP options contain the SACK-permitted option (only sent with SYN segments).
+     */
+    val tcpSackPermitted: Boolean
+        get() = findTcpOption(TCP_OPTION_SACK_PERMITTED, 2) >= 0
+
+    /**
+     * Timestamp value (TSval) of the TCP timestamps option, or -1 if there is no timestamps option.
+     */
+    val tcpTimestampValue: Long
+        get() = findTcpOption(TCP_OPTION_TIMESTAMPS, 10).let { if (it < 0) -1 else readInt(it + 2) }
+
+    /**
+     * Finds the TCP option of the given kind and length.
+     *
+     * @return the offset of the option in the underlying array, or -1 if the option is missing or the options are malformed.
+     */
+    private fun findTcpOption(kind: Int, length: Int): Int {
+        var offset = tcpOptionsOffset
+        val end = offset + tcpOptionsLength
+        while (offset < end) {
+            when (val optionKind = data[offset].toInt() and 0xFF) {
+                TCP_OPTION_END -> return -1
+                TCP_OPTION_NOP -> offset++
+                else -> {
+                    if (offset + 1 >= end) {
+                        return -1
+                    }
+                    val optionLength = data[offset + 1].toInt() and 0xFF
+                    if (optionLength < 2 || offset + optionLength > end) {
+                        return -1
+                    }
+                    if (optionKind == kind && optionLength == length) {
+                        return offset
+                    }
+                    offset += optionLength
+                }
+            }
+        }
+        return -1
+    }
+
+    /**
+     * Reads a single byte of the packet as an unsigned value.
+     */
+    fun getByte(offset: Int): Int = data[offset].toInt() and 0xFF
+
+    ////////////////////////////////////////////////////////////////////////
+    ///// Payload /////////////////////////////////////////////////////////
+    //////////////////////////////////////////////////////////////////////
+
+    /**
+     * Copies the transport-layer payload into a new array.
+     */
+    fun copyPayload(): ByteArray = data.copyOfRange(payloadOffset, length)
+
+    /**
+     * Wraps the transport-layer payload in a [ByteBuffer] without copying it.
+     */
+    fun wrapPayload(): ByteBuffer = ByteBuffer.wrap(data, payloadOffset, payloadLength)
+
+    private fun readShort(offset: Int): Int {
+        return (data[offset].toInt() and 0xFF shl 8) or (data[offset + 1].toInt() and 0xFF)
+    }
+
+    private fun readInt(offset: Int): Long {
+        return ((data[offset].toLong() and 0xFF) shl 24) or
+                ((data[offset + 1].toLong() and 0xFF) shl 16) or
+                ((data[offset + 2].toLong() and 0xFF) shl 8) or
+                (data[offset + 3].toLong() and 0xFF)
+    }
+
+    private fun readLong(offset: Int): Long {
+        return (readInt(offset) shl 32) or readInt(offset + 4)
+    }
+
+    companion object {
+        const val PROTOCOL_TCP = 6
+        const val PROTOCOL_UDP = 17
+
+        const val TCP_OPTION_END = 0
+        const val TCP_OPTION_NOP = 1
+        const val TCP_OPTION_MSS = 2
+        const val TCP_OPTION_WINDOW_SCALE = 3
+        const val TCP_OPTION_SACK_PERMITTED = 4
+        const val TCP_OPTION_TIMESTAMPS = 8
+    }
+}
@@ -0,0 +1,310 @@
+package de.tomcory.heimdall.scanner.traffic.connection.transportLayer
+
+import de.tomcory.heimdall.scanner.traffic.cache.ConnectionTable
+import de.tomcory.heimdall.scanner.traffic.components.ComponentManager
+import de.tomcory.heimdall.scanner.traffic.components.DeviceWriteThread
+import de.tomcory.heimdall.scanner.traffic.components.InboundTrafficHandler
+import de.tomcory.heimdall.scanner.traffic.connection.appLayer.DnsCodec
+import de.tomcory.heimdall.scanner.traffic.connection.appLayer.DnsCodec.readShort
+import de.tomcory.heimdall.scanner.traffic.connection.appLayer.DnsCodec.writeShort
+import de.tomcory.heimdall.scanner.traffic.connection.appLayer.DnsConnection
+import de.tomcory.heimdall.scanner.traffic.connection.inetLayer.IpPacketBuilder
+import de.tomcory.heimdall.scanner.traffic.connection.inetLayer.PacketView
+import timber.log.Timber
+import java.io.IOException
+import java.net.InetSocketAddress
+import java.nio.ByteBuffer
+import java.nio.channels.DatagramChannel
+import java.util.concurrent.ThreadLocalRandom
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicReferenceArray
+
+/**
+ * Forwards the device's DNS queries over UDP through one long-lived socket per upstream resolver, instead of setting up a [UdpConnection] for every query.
+ *
+ * Queries of all apps are multiplexed on the resolver's socket by rewriting their transaction IDs: every query in flight gets an unused ID,
+ * and the answer carrying that ID is mapped back to the query's original ID and the app's port. Since the socket's port doesn't change,
+ * the IDs are picked at random and an answer is only accepted if it repeats the question of its query.
+ *
+ * Repeated A and AAAA queries are answered from the [DnsAnswerCache][de.tomcory.heimdall.scanner.traffic.metadata.DnsAnswerCache] without contacting the resolver.
+ * Popular answers are refreshed in the background shortly before they expire, so that they stay in the cache.
+ *
+ * @param queryTimeoutMillis Time after which the ID of an unanswered query may be reused.
+ */
+class DnsForwarder(
+    private val componentManager: ComponentManager,
+    private val queryTimeoutMillis: Long = 10_000
+) {
+
+    /**
+     * Query in flight, stored under its rewritten ID. Prefetch queries have a [localPort] of [PREFETCH_PORT], their answers are only cached.
+     */
+    private class PendingQuery(
+        val originalId: Int,
+        val localPort: Int,
+        val question: ByteArray,
+        val sentAt: Long
+    )
+
+    /**
+     * Socket to one upstream resolver, shared by all queries sent to it from the same local address.
+     */
+    inner class Upstream(
+        val ipPacketBuilder: IpPacketBuilder,
+        private val deviceWriter: DeviceWriteThread
+    ) {
+        val channel: DatagramChannel = DatagramChannel.open()
+
+        private val pendingQueries = AtomicReferenceArray<PendingQuery?>(0x10000)
+
+        /**
+         * Buffer for the answers read from the [channel]. Only used by the [InboundTrafficHandler] the channel is registered with.
+         */
+        private val readBuffer = ByteBuffer.allocate(componentManager.maxPacketSize)
+
+        init {
+            componentManager.vpnService?.protect(channel.socket())
+            channel.configureBlocking(false)
+            channel.connect(InetSocketAddress(ipPacketBuilder.remoteAddress, ipPacketBuilder.remotePort))
+            componentManager.nextInboundTrafficHandler().register(this)
+        }
+
+        /**
+         * Answers the query from the [DnsAnswerCache][de.tomcory.heimdall.scanner.traffic.metadata.DnsAnswerCache] if it holds an unexpired answer,
+         * and starts refreshing the answer if it is about to expire.
+         *
+         * @return false if the query has to be sent to the resolver.
+         */
+        fun answerFromCache(payload: ByteBuffer, localPort: Int): Boolean {
+            val now = componentManager.idleConnectionReaper.clockMillis
+            val entry = componentManager.dnsAnswerCache.get(payload.array(), payload.position(), payload.remaining(), now) ?: return false
+            val reply = entry.buildReply(payload.array(), payload.position(), now)
+            deviceWriter.write(ipPacketBuilder.buildUdpPacket(componentManager.inboundPacketPool, reply, 0, reply.size, localPort))
+
+            if (entry.claimPrefetch(now)) {
+                // ask for the same question again with recursion desired, the answer replaces the cache entry
+                val query = ByteArray(DnsCodec.HEADER_LENGTH + entry.question.size)
+                query[2] = 0x01
+                query[5] = 0x01
+                System.arraycopy(entry.question, 0, query, DnsCodec.HEADER_LENGTH, entry.question.size)
+                send(ByteBuffer.wrap(query), PREFETCH_PORT)
+                prefetches.incrementAndGet()
+            }
+            return true
+        }
+
+        /**
+         * Rewrites the query's ID in place and sends it to the resolver. Called by the outbound traffic handler shards.
+         */
+        fun send(payload: ByteBuffer, localPort: Int) {
+            val offset = payload.position()
+            val data = payload.array()
+            val questionLength = DnsCodec.questionLength(data, offset, payload.remaining())
+            if (questionLength < 0) {
+                Timber.w("Dropping malformed DNS query")
+                droppedQueries.incrementAndGet()
+                return
+            }
+
+            val query = PendingQuery(
+                originalId = readShort(data, offset),
+                localPort = localPort,
+                question = data.copyOfRange(offset + DnsCodec.HEADER_LENGTH, offset + DnsCodec.HEADER_LENGTH + questionLength),
+                sentAt = componentManager.idleConnectionReaper.clockMillis
+            )
+            val id = allocateId(query)
+            if (id < 0) {
+                Timber.w("No free DNS transaction ID, dropping query")
+                droppedQueries.incrementAndGet()
+                return
+            }
+            writeShort(data, offset, id)
+
+            try {
+                if (channel.write(payload) == 0) {
+                    // the socket's send buffer is full, the app's resolver retries
+                    pendingQueries.compareAndSet(id, query, null)
+                    droppedQueries.incrementAndGet()
+                } else {
+                    forwardedQueries.incrementAndGet()
+                }
+            } catch (e: IOException) {
+                Timber.e(e, "Error forwarding DNS query to ${ipPacketBuilder.remoteAddress.hostAddress}")
+                pendingQueries.compareAndSet(id, query, null)
+                droppedQueries.incrementAndGet()
+                close()
+            }
+        }
+
+        /**
+         * Reads the answers waiting on the [channel] and writes them to the device. Called by the [InboundTrafficHandler] on OP_READ.
+         */
+        fun readAnswers() {
+            while (true) {
+                readBuffer.clear()
+                val length = try {
+                    channel.read(readBuffer)
+                } catch (e: IOException) {
+                    Timber.e(e, "Error reading DNS answers from ${ipPacketBuilder.remoteAddress.hostAddress}")
+                    close()
+                    return
+                }
+                if (length <= 0) {
+                    return
+                }
+
+                val data = readBuffer.array()
+                if (length < DnsCodec.HEADER_LENGTH) {
+                    continue
+                }
+                val id = readShort(data, 0)
+                val query = pendingQueries.get(id)
+                if (query == null || !questionMatches(query, data, length) || !pendingQueries.compareAndSet(id, query, null)) {
+                    // late, duplicate or spoofed answer
+                    unmatchedAnswers.incrementAndGet()
+                    continue
+                }
+
+                writeShort(data, 0, query.originalId)
+                DnsConnection.cacheAnswers(data, 0, length, componentManager.dnsCache)
+                componentManager.dnsAnswerCache.put(data, 0, length, componentManager.idleConnectionReaper.clockMillis)
+                if (query.localPort != PREFETCH_PORT) {
+                    deviceWriter.write(ipPacketBuilder.buildUdpPacket(componentManager.inboundPacketPool, data, 0, length, query.localPort))
+                    answers.incrementAndGet()
+                }
+            }
+        }
+
+        /**
+         * Closes the socket, the next query to the resolver opens a new one.
+         */
+        fun close() {
+            removeUpstream(this)
+            try {
+                channel.close()
+            } catch (e: IOException) {
+                Timber.w(e, "Error closing DNS upstream channel")
+            }
+        }
+
+        /**
+         * Stores the query under a random unused ID, or under the ID of a query that timed out.
+         *
+         * @return the ID, or -1 if all IDs are in use.
+         */
+        private fun allocateId(query: PendingQuery): Int {
+            val start = ThreadLocalRandom.current().nextInt(0x10000)
+            for (i in 0 until MAX_ID_PROBES) {
+                val id = (start + i) and 0xFFFF
+                val current = pendingQueries.get(id)
+                if ((current == null || query.sentAt - current.sentAt > queryTimeoutMillis) && pendingQueries.compareAndSet(id, current, query)) {
+                    return id
+                }
+            }
+            return -1
+        }
+
+        private fun questionMatches(query: PendingQuery, data: ByteArray, length: Int): Boolean {
+            if (length < DnsCodec.HEADER_LENGTH + query.question.size) {
+                return false
+            }
+            for (i in query.question.indices) {
+                if (data[DnsCodec.HEADER_LENGTH + i] != query.question[i]) {
+                    return false
+                }
+            }
+            return true
+        }
+    }
+
+    /**
+     * Upstream sockets keyed on the local address (i.e. the IP version) and the resolver's address.
+     */
+    private val upstreams = ConnectionTable<Upstream>(16)
+
+    private val forwardedQueries = AtomicLong(0)
+
+    private val answers = AtomicLong(0)
+
+    private val droppedQueries = AtomicLong(0)
+
+    private val unmatchedAnswers = AtomicLong(0)
+
+    private val prefetches = AtomicLong(0)
+
+    /**
+     * Forwards a DNS query sent by the device. The packet's buffer is modified in place.
+     */
+    fun forwardQuery(queryPacket: PacketView, deviceWriter: DeviceWriteThread) {
+        if (queryPacket.payloadLength < DnsCodec.HEADER_LENGTH) {
+            droppedQueries.incrementAndGet()
+            return
+        }
+
+        val upstream = try {
+            getUpstream(queryPacket, deviceWriter)
+        } catch (e: IOException) {
+            Timber.e(e, "Error opening DNS upstream channel")
+            droppedQueries.incrementAndGet()
+            return
+        }
+        val payload = queryPacket.wrapPayload()
+        if (!upstream.answerFromCache(payload, queryPacket.srcPort)) {
+            upstream.send(payload, queryPacket.srcPort)
+        }
+    }
+
+    /**
+     * Closes all upstream sockets.
+     */
+    fun close() {
+        upstreams.values().forEach { it.close() }
+    }
+
+    private fun getUpstream(queryPacket: PacketView, deviceWriter: DeviceWriteThread): Upstream {
+        val meta = ConnectionTable.meta(queryPacket.ipVersion, PacketView.PROTOCOL_UDP, 0, queryPacket.dstPort)
+        upstreams.get(queryPacket.srcAddressHigh, queryPacket.srcAddressLow, queryPacket.dstAddressHigh, queryPacket.dstAddressLow, meta)?.let {
+            return it
+        }
+
+        // several shards may query the same resolver for the first time
+        synchronized(upstreams) {
+            upstreams.get(queryPacket.srcAddressHigh, queryPacket.srcAddressLow, queryPacket.dstAddressHigh, queryPacket.dstAddressLow, meta)?.let {
+                return it
+            }
+            val upstream = Upstream(IpPacketBuilder.getInstance(queryPacket), deviceWriter)
+            upstreams.put(queryPacket.srcAddressHigh, queryPacket.srcAddressLow, queryPacket.dstAddressHigh, queryPacket.dstAddressLow, meta, upstream)
+            Timber.d("Opened DNS upstream to ${queryPacket.getDstAddress().hostAddress}")
+            return upstream
+        }
+    }
+
+    private fun removeUpstream(upstream: Upstream) {
+        val localAddress = upstream.ipPacketBuilder.localAddress.address
+        val remoteAddress = upstream.ipPacketBuilder.remoteAddressBytes
+        upstreams.remove(
+            ConnectionTable.addressHigh(localAddress),
+            ConnectionTable.addressLow(localAddress),
+            ConnectionTable.addressHigh(remoteAddress),
+            ConnectionTable.addressLow(remoteAddress),
+            ConnectionTable.meta(if (remoteAddress.size == 4) 4 else 6, PacketView.PROTOCOL_UDP, 0, upstream.ipPacketBuilder.remotePort),
+            upstream
+        )
+    }
+
+    override fun toString(): String {
+        return "${forwardedQueries.get()} queries forwarded, ${answers.get()} answered, ${droppedQueries.get()} dropped, ${unmatchedAnswers.get()} unmatched answers, ${prefetches.get()} prefetches (${componentManager.dnsAnswerCache})"
+    }
+
+    private companion object {
+        /**
+         * Number of random IDs tried before a query is dropped.
+         */
+        const val MAX_ID_PROBES = 64
+
+        /**
+         * Port of the prefetch queries, which doesn't exist on the device.
+         */
+        const val PREFETCH_PORT = -1
+    }
+}
@@ -1,65 +1,149 @@
 package de.tomcory.heimdall.scanner.traffic.connection.transportLayer
 
 import android.net.VpnService
-import android.os.Handler
 import android.system.OsConstants
-import de.tomcory.heimdall.scanner.traffic.cache.ConnectionCache
 import de.tomcory.heimdall.scanner.traffic.components.ComponentManager
 import de.tomcory.heimdall.scanner.traffic.components.DeviceWriteThread
+import de.tomcory.heimdall.scanner.traffic.components.PacketBuffer
+import de.tomcory.heimdall.scanner.traffic.components.PacketBufferPool
+import de.tomcory.heimdall.scanner.traffic.connection.inetLayer.Checksum
 import de.tomcory.heimdall.scanner.traffic.connection.inetLayer.IpPacketBuilder
-import org.pcap4j.packet.IpPacket
-import org.pcap4j.packet.Packet
-import org.pcap4j.packet.TcpPacket
-import org.pcap4j.packet.UnknownPacket
-import org.pcap4j.packet.namednumber.TcpPort
+import de.tomcory.heimdall.scanner.traffic.connection.inetLayer.PacketView
 import timber.log.Timber
 import java.io.IOException
 import java.net.InetAddress
 import java.net.InetSocketAddress
-import java.nio.BufferOverflowException
 import java.nio.ByteBuffer
 import java.nio.channels.SelectionKey
-import java.nio.channels.Selector
 import java.nio.channels.SocketChannel
 import java.util.Arrays
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.TimeUnit
 
 /**
  * Represents a transport-layer connection using TCP.
  *
  * @param componentManager
  * @param deviceWriter
- * @param initialPacket TCP segment from which the necessary metadata is extracted to create the instance (ideally the very first segment of a new socket).
+ * @param initialPacket [PacketView] of the TCP segment from which the necessary metadata is extracted to create the instance (ideally the very first segment of a new socket).
  * @param ipPacketBuilder
  */
 class TcpConnection internal constructor(
     componentManager: ComponentManager,
-    deviceWriter: Handler,
-    initialPacket: TcpPacket,
+    deviceWriter: DeviceWriteThread,
+    initialPacket: PacketView,
     ipPacketBuilder: IpPacketBuilder,
     remoteHost: String?
 ) : TransportLayerConnection(
     deviceWriter = deviceWriter,
     componentManager = componentManager,
-    localPort = initialPacket.header.srcPort.valueAsInt(),
-    remotePort = initialPacket.header.dstPort.valueAsInt(),
+    localPort = initialPacket.srcPort,
+    remotePort = initialPacket.dstPort,
     remoteHost = remoteHost,
     ipPacketBuilder = ipPacketBuilder
 ) {
 
-    private val window = initialPacket.header.window
-    private val theirInitSeqNum = initialPacket.header.sequenceNumberAsLong
+    private val theirInitSeqNum = initialPacket.sequenceNumber
     private val ourInitSeqNum = (Math.random() * 0xFFFFFFF).toLong()
+
+    /**
+     * Sequence numbers of the client and of our side. Besides the outbound and inbound traffic handlers, the delayed-ACK timer and the idle
+     * connection reaper build segments too, so segments are built and the numbers advanced under the connection's monitor.
+     */
+    @Volatile
     private var theirSeqNum = theirInitSeqNum + 1 // SYN packets increase the client's sequence number by 1
+    @Volatile
     private var ourSeqNum = ourInitSeqNum
 
+    /**
+     * Window scaling (RFC 7323) is used if the client offers it in its SYN. The shift counts apply to all segments except the SYNs.
+     */
+    private val windowScaling = initialPacket.tcpWindowScale >= 0
+    private val clientWindowShift = if (windowScaling) minOf(initialPacket.tcpWindowScale, MAX_WINDOW_SCALE) else 0
+    private val ourWindowShift = if (windowScaling) OUR_WINDOW_SCALE else 0
+
+    /**
+     * SACK is accepted if the client offers it. The device-facing link never loses segments, so it is never actually needed.
+     */
+    private val sackPermitted = initialPacket.tcpSackPermitted
+
+    /**
+     * Timestamps (RFC 7323) are used if the client offers them in its SYN, in which case every segment but RSTs has to carry them.
+     */
+    private val timestamps = initialPacket.tcpTimestampValue >= 0
+    private val ourTimestampOffset = (Math.random() * 0xFFFFFFF).toLong()
+
+    /**
+     * Most recent timestamp value received from the client, echoed in the segments sent to the client.
+     */
+    @Volatile
+    private var timestampRecent = initialPacket.tcpTimestampValue
+
+    /**
+     * Receive window advertised to the client (before scaling).
+     */
+    private var receiveWindow = if (windowScaling) RECEIVE_WINDOW else minOf(RECEIVE_WINDOW, 0xFFFF)
+
+    /**
+     * Maximum payload size of the segments sent to the client, negotiated from the MSS option of the client's SYN and the MTU, minus the space taken by timestamps.
+     */
+    private val mss = TcpSegmenter.effectiveMss(initialPacket.tcpMss, componentManager.mtu, ipPacketBuilder.ipHeaderLength) -
+            if (timestamps) IpPacketBuilder.TCP_TIMESTAMPS_LENGTH else 0
+
+    /**
+     * Receive window most recently advertised by the client (after scaling).
+     */
+    private var clientWindow = initialPacket.window
+
+    /**
+     * Highest sequence number acknowledged by the client, i.e. everything before it has left the device write path.
+     */
+    private var clientAckNum = ourInitSeqNum
+
+    /**
+     * Whether OP_READ interest was dropped because the client's receive window is full.
+     */
+    private var readPaused = false
+
+    /**
+     * Whether the remote host closed its side of the connection, after which OP_READ interest is never re-armed. Guarded by the connection's monitor.
+     */
+    private var endOfStream = false
+
+    /**
+     * Whether a zero window was advertised to the client because too much of its data is waiting in the pending-write queue.
+     */
+    @Volatile
+    private var zeroWindowAdvertised = false
+
+    /**
+     * Number of client data segments that have not been acknowledged yet, neither by a pure ACK nor piggybacked on inbound data. Guarded by the connection's monitor.
+     */
+    private var unacknowledgedSegments = 0
+
+    /**
+     * Whether a delayed-ACK timer is pending. Guarded by the connection's monitor.
+     */
+    private var delayedAckScheduled = false
+
     override val protocol = "TCP"
+
+    override val idleTimeoutMillis: Long
+        get() = when (state) {
+            TransportLayerState.CONNECTING -> componentManager.tcpHandshakeTimeoutMillis
+            TransportLayerState.CONNECTED -> componentManager.tcpIdleTimeoutMillis
+            else -> componentManager.tcpClosingTimeoutMillis
+        }
     override val selectableChannel: SocketChannel = openChannel(ipPacketBuilder.remoteAddress, componentManager.vpnService)
-    override val selectionKey = connectChannel(componentManager.selector)
-    override val appId: Int? = componentManager.appFinder.getAppId(ipPacketBuilder.localAddress, ipPacketBuilder.remoteAddress, localPort, remotePort, OsConstants.IPPROTO_TCP)
-    override val appPackage: String? = componentManager.appFinder.getAppPackage(appId)
     override val id = createDatabaseEntity()
 
     init {
+        // resolve the app behind the connection in the background, packets are forwarded in the meantime
+        startAttribution(OsConstants.IPPROTO_TCP)
+
+        // register OP_CONNECT interest for the channel
+        registerChannel(SelectionKey.OP_CONNECT)
+
         if(id > 0) {
             Timber.d("tcp$id Creating TCP Connection to ${ipPacketBuilder.remoteAddress.hostAddress}:${remotePort} ($remoteHost)")
         }
@@ -78,43 +162,33 @@ class TcpConnection internal constructor(
         return selectableChannel
     }
 
-    private fun connectChannel(selector: Selector): SelectionKey? {
-        // register OP_READ interest for the channel
-        synchronized(ComponentManager.selectorMonitor) {
-            selector.wakeup()
-            val selectionKey = try {
-                selectableChannel.register(selector, SelectionKey.OP_CONNECT)
-            } catch (e: Exception) {
-                null
-            }
-            selectionKey?.attach(this)
-            return selectionKey
-        }
-    }
-
-    private fun writeToDevice(packet: IpPacket) {
-        deviceWriter.sendMessage(deviceWriter.obtainMessage(DeviceWriteThread.WRITE_TCP, packet))
+    private fun writeToDevice(packet: PacketBuffer) {
+        deviceWriter.write(packet)
     }
 
-    override fun unwrapOutbound(outgoingPacket: Packet) {
-        val tcpHeader = outgoingPacket.header as TcpPacket.TcpHeader
-        if (tcpHeader.ack) {
-            if (outgoingPacket.payload != null && outgoingPacket.payload.length() > 0) {
+    override fun unwrapOutbound(outgoingPacket: PacketView) {
+        if (timestamps) {
+            outgoingPacket.tcpTimestampValue.let { if (it >= 0) timestampRecent = it }
+        }
+        if (outgoingPacket.ack) {
+            updateClientWindow(outgoingPacket.acknowledgmentNumber, outgoingPacket.window shl clientWindowShift)
+            if (outgoingPacket.payloadLength > 0) {
                 handleAckData(outgoingPacket) // data was sent and needs to be forwarded
-            } else if (!tcpHeader.syn && !tcpHeader.fin) {
+            } else if (!outgoingPacket.syn && !outgoingPacket.fin) {
                 handleAckEmpty()
             }
-            if (tcpHeader.syn) {
+            if (outgoingPacket.syn) {
                 handleSynAck() // this should not happen, since we never initiate a handshake
-            } else if (tcpHeader.fin) {
+            } else if (outgoingPacket.fin) {
                 handleFinAck() // this is either the first or second packet of the closing handshake
             }
-        } else if (tcpHeader.fin) {
+        } else if (outgoingPacket.fin) {
             handleFin() // closing handshake was initiated
         }
     }
 
     override fun unwrapInbound() {
+        val selectionKey = selectionKey
         if(selectionKey == null) {
             Timber.e("tcp$id SelectionKey is null")
             state = TransportLayerState.ABORTED
@@ -127,7 +201,7 @@ class TcpConnection internal constructor(
             return
         }
         if (selectionKey.isConnectable) {
-            unwrapInboundConnectable()
+            unwrapInboundConnectable(selectionKey)
         } else if (selectionKey.isReadable) {
             unwrapInboundReadable()
         }
@@ -135,86 +209,54 @@ class TcpConnection internal constructor(
 
     override fun wrapOutbound(payload: ByteArray) {
         if (payload.isNotEmpty()) {
-            if(payload.size <= outBuffer.limit()) {
-                outBuffer.clear()
-                outBuffer.put(payload)
-                outBuffer.flip()
-
-                while (outBuffer.hasRemaining()) {
-                    try {
-                        selectableChannel.write(outBuffer)
-                    } catch (e: IOException) {
-                        Timber.e("tcp$id SocketChannel registered: ${selectableChannel.isRegistered}, connected: ${selectableChannel.isConnected}, open: ${selectableChannel.isOpen}")
-                        Timber.e(e, "tcp$id Error writing to SocketChannel, closing connection")
-                        closeHard()
-                        break
-                    } catch (e: BufferOverflowException) {
-                        Timber.e(e, "tcp$id Error writing to SocketChannel, closing connection")
-                        closeHard()
-                        break
-                    }
-                }
-            } else {
-
-                //TODO: this is a dirty hack to prevent buffer overflows for stupidly large reassembled payloads
-                val largeBuffer = ByteBuffer.wrap(payload)
-
-                while (largeBuffer.hasRemaining()) {
-                    try {
-                        selectableChannel.write(largeBuffer)
-                    } catch (e: IOException) {
-                        Timber.e("tcp$id SocketChannel registered: ${selectableChannel.isRegistered}, connected: ${selectableChannel.isConnected}, open: ${selectableChannel.isOpen}")
-                        Timber.e(e, "tcp$id Error writing to SocketChannel, closing connection")
-                        abortAndRst()
-                        break
-                    } catch (e: BufferOverflowException) {
-                        Timber.e(e, "tcp$id Error writing to SocketChannel, closing connection")
-                        abortAndRst()
-                        break
-                    }
-                }
-            }
+            writeToChannel(ByteBuffer.wrap(payload))
         }
     }
 
     override fun wrapInbound(payload: ByteArray) {
         // if the application layer returned anything, write it to the device's VPN interface
         if (payload.isNotEmpty()) {
-            if(payload.size <= componentManager.maxPacketSize) {
-                // if the payload fits into a single TCP segment, wrap and write it directly
-                val ackDataPacket = ipPacketBuilder.buildPacket(buildDataAck(payload))
-                increaseOurSeqNum(payload.size)
+            writeSegments(payload, 0, payload.size)
+        }
+    }
+
+    /**
+     * Writes inbound data to the device as segments of at most [mss] bytes, each built straight from its slice of the supplied array.
+     * The whole payload is segmented under the connection's monitor, so no other segment (e.g. a FIN) takes a sequence number from its middle.
+     */
+    private fun writeSegments(data: ByteArray, offset: Int, length: Int) {
+        synchronized(this) {
+            ourSeqNum = TcpSegmenter.segment(offset, length, mss, ourSeqNum) { segmentOffset, segmentLength, segmentSeqNum ->
+                // every data segment also acknowledges the client's data received so far
+                val ackDataPacket = buildDataAck(segmentSeqNum, data, segmentOffset, segmentLength)
+                componentManager.recordDeviceSegment(pureAck = false)
                 writeToDevice(ackDataPacket)
-            } else {
-                // if the payload exceeds the max. TCP payload size, split it into multiple segments
-                //TODO: there has to be a better way...
-                Timber.d("tcp$id Splitting large payload (${payload.size} bytes), because maxPacketSize is ${componentManager.maxPacketSize}")
-                val largeBuffer = ByteBuffer.wrap(payload)
-                while(largeBuffer.hasRemaining()) {
-                    val temp = ByteArray(minOf(largeBuffer.limit() - largeBuffer.position(), componentManager.maxPacketSize))
-                    largeBuffer.get(temp)
-                    Timber.d("tcp$id Writing split payload (${temp.size} bytes, ${largeBuffer.limit() - largeBuffer.position()} remaining)")
-                    val ackDataPacket = ipPacketBuilder.buildPacket(buildDataAck(temp))
-                    increaseOurSeqNum(payload.size)
-                    writeToDevice(ackDataPacket)
-                }
             }
         }
     }
 
-    private fun handleAckData(outgoingPacket: Packet) {
+    private fun handleAckData(outgoingPacket: PacketView) {
         if (state != TransportLayerState.CONNECTED) {
             // the connection is not ready to forward data, abort
             Timber.w("tcp$id Got ACK (data, invalid state $state)")
             abortAndRst()
         } else {
-            increaseTheirSeqNum(outgoingPacket.payload.length())
+            increaseTheirSeqNum(outgoingPacket.payloadLength)
+            bytesOut += outgoingPacket.payloadLength
+            synchronized(this) {
+                unacknowledgedSegments++
+            }
 
-            // acknowledge packet to the client by sending an empty ACK
-            writeToDevice(ipPacketBuilder.buildPacket(buildEmptyAck()))
+            if (isOutboundRelay) {
+                // opaque payloads are written to the SocketChannel straight from the packet buffer
+                writeToChannel(outgoingPacket.wrapPayload())
+            } else {
+                // pass the payload to the encryption and application layers for processing and store the result
+                passOutboundToEncryptionLayer(outgoingPacket.copyPayload())
+            }
 
-            // pass the payload to the encryption and application layers for processing and store the result
-            passOutboundToEncryptionLayer(outgoingPacket.payload)
+            // acknowledge the packet to the client, unless the ACK was already piggybacked on inbound data the payload caused
+            acknowledgeDelayed()
         }
     }
 
@@ -230,7 +272,7 @@ class TcpConnection internal constructor(
             TransportLayerState.CLOSING -> {
                 // closing handshake complete, set status to CLOSED
                 state = TransportLayerState.CLOSED
-                ConnectionCache.removeConnection(this)
+                removeFromCache()
             }
             else -> {
                 // there is no good reason for an acknowledgement in any other flow state, abort
@@ -249,9 +291,10 @@ class TcpConnection internal constructor(
     private fun handleFinAck() {
         if (state == TransportLayerState.CLOSING) {
             // connection is closing, so this must be an actual FIN ACK - acknowledge it and close the connection for good
-            increaseTheirSeqNum(1)
-            val ackResponse = ipPacketBuilder.buildPacket(buildEmptyAck())
-            writeToDevice(ackResponse)
+            synchronized(this) {
+                increaseTheirSeqNum(1)
+                sendAck()
+            }
         } else {
             // we're not expecting a FIN ACK, so we treat it like a normal FIN packet and start closing the connection
             handleFin()
@@ -263,32 +306,46 @@ class TcpConnection internal constructor(
             // the connection is already closed, abort
             abortAndRst()
         } else {
-            // close asynchronously
-            closeSoft()
-            increaseTheirSeqNum(1)
-            val finAckResponse = ipPacketBuilder.buildPacket(buildFinAck())
-            increaseOurSeqNum(1)
+            // close asynchronously, after writing the payloads that are already acknowledged but still queued
+            closeSoftAfterPendingWrites()
+            val finAckResponse = synchronized(this) {
+                increaseTheirSeqNum(1)
+                buildFinAck().also { increaseOurSeqNum(1) }
+            }
             writeToDevice(finAckResponse)
         }
     }
 
     /**
      * Handles the OP_READ event on a connection's [SocketChannel], which means that inbound data is available on the channel.
+     * Only as much data is read as fits into the client's receive window, the rest stays in the socket (see [reserveClientWindow]).
      */
     private fun unwrapInboundReadable() {
         // OP_READ event triggered
         var bytesRead: Int
         do {
+            val available = reserveClientWindow()
+            if (available <= 0) {
+                // the client's receive window is full, reading resumes once it acknowledges data
+                return
+            }
             try {
                 // read and forward the incoming data chunk by chunk (i.e. loop as long as data is read)
                 inBuffer.clear()
+                inBuffer.limit(minOf(inBuffer.capacity(), available))
                 bytesRead = selectableChannel.read(inBuffer)
                 if (bytesRead > 0) {
+                    bytesIn += bytesRead
                     inBuffer.flip()
-                    val rawData = Arrays.copyOf(inBuffer.array(), bytesRead)
-
-                    // pass the payload to the encryption layer for processing and store the result
-                    passInboundToEncryptionLayer(rawData)
+                    if (isInboundRelay) {
+                        // opaque payloads are built into packets straight from the read buffer
+                        writeSegments(inBuffer.array(), 0, bytesRead)
+                    } else {
+                        val rawData = Arrays.copyOf(inBuffer.array(), bytesRead)
+
+                        // pass the payload to the encryption layer for processing and store the result
+                        passInboundToEncryptionLayer(rawData)
+                    }
                 }
             }  catch (e: IOException) {
                 bytesRead = -1
@@ -297,17 +354,20 @@ class TcpConnection internal constructor(
 
         // SocketChannel is closed
         if (bytesRead == -1) {
-            selectionKey?.cancel()
+            // stop reading, but keep the key so that pending writes are still flushed
+            synchronized(this) {
+                endOfStream = true
+                setInterest(SelectionKey.OP_READ, false)
+            }
             if (state == TransportLayerState.CLOSING) {
                 // client and server agree that the connection is close
                 state = TransportLayerState.CLOSED
-                ConnectionCache.removeConnection(this)
+                removeFromCache()
             } else {
                 // connection closed by server, move to CLOSING state and send a FIN to initiate the local closing handshake
                 Timber.d("tcp$id SocketChannel closed, state transition $state -> CLOSING")
                 state = TransportLayerState.CLOSING
-                val finPacket = ipPacketBuilder.buildPacket(buildFin())
-                increaseOurSeqNum(1)
+                val finPacket = synchronized(this) { buildFin().also { increaseOurSeqNum(1) } }
                 writeToDevice(finPacket)
             }
         }
@@ -316,7 +376,7 @@ class TcpConnection internal constructor(
     /**
      * Handles the OP_CONNECT event on a connection's [SocketChannel], which means that the channel is connected and ready for outbound data.
      */
-    private fun unwrapInboundConnectable() {
+    private fun unwrapInboundConnectable(selectionKey: SelectionKey) {
         // complete the SocketChannel's connection process
         try {
             selectableChannel.finishConnect()
@@ -326,15 +386,15 @@ class TcpConnection internal constructor(
             return
         }
 
-        val socketChannel = selectionKey?.channel() as SocketChannel
+        val socketChannel = selectionKey.channel() as SocketChannel
 
         // make sure the SocketChannel is actually connected
         if (socketChannel.isConnected) {
             // prepare SocketChannel for incoming data and complete local handshake
-            selectionKey.interestOps(SelectionKey.OP_READ)
+            setInterest(SelectionKey.OP_CONNECT, false)
+            setInterest(SelectionKey.OP_READ, true)
             // advance the client-facing TCP handshake by sending a SYN ACK packet
-            val synAckPacket = ipPacketBuilder.buildPacket(buildSynAck())
-            increaseOurSeqNum(1)
+            val synAckPacket = synchronized(this) { buildSynAck().also { increaseOurSeqNum(1) } }
             //Timber.d("%s SocketChannel connected", id)
             writeToDevice(synAckPacket)
         } else {
@@ -343,9 +403,102 @@ class TcpConnection internal constructor(
         }
     }
 
+    /**
+     * Reopens the receive window with a window update if a zero window was advertised while the pending writes were queued.
+     */
+    override fun onPendingWritesFlushed() {
+        if (zeroWindowAdvertised) {
+            zeroWindowAdvertised = false
+            sendAck()
+        }
+    }
+
+    /**
+     * Acknowledges the client's data with delayed-ACK behaviour (RFC 1122, section 4.2.3.2): every second segment is acknowledged right away,
+     * otherwise the ACK is delayed by [ComponentManager.delayedAckMillis] in the hope that inbound data comes along to piggyback it on.
+     * The ACK sent after a single segment carries the current window, which is also how zero windows reach the client.
+     */
+    @Synchronized
+    private fun acknowledgeDelayed() {
+        if (unacknowledgedSegments >= 2 || zeroWindowAdvertised) {
+            sendAck()
+        } else if (unacknowledgedSegments > 0 && !delayedAckScheduled) {
+            try {
+                componentManager.delayedAckTimer.schedule({ onDelayedAckTimeout() }, componentManager.delayedAckMillis, TimeUnit.MILLISECONDS)
+                delayedAckScheduled = true
+            } catch (e: RejectedExecutionException) {
+                // the components are shutting down
+                sendAck()
+            }
+        }
+    }
+
+    @Synchronized
+    private fun onDelayedAckTimeout() {
+        delayedAckScheduled = false
+        if (unacknowledgedSegments > 0 && state == TransportLayerState.CONNECTED) {
+            sendAck()
+        }
+    }
+
+    /**
+     * Sends a pure ACK, acknowledging all data received from the client so far.
+     */
+    private fun sendAck() {
+        val ackPacket = synchronized(this) { buildEmptyAck() }
+        componentManager.recordDeviceSegment(pureAck = true)
+        writeToDevice(ackPacket)
+    }
+
+    /**
+     * Returns how many bytes may be sent to the client without exceeding its receive window.
+     * If the window is full, OP_READ interest is dropped, so the upstream socket's buffer (and eventually the server) is throttled instead of the device write queue filling up.
+     * Called on the [InboundTrafficHandler][de.tomcory.heimdall.scanner.traffic.components.InboundTrafficHandler] thread.
+     */
+    @Synchronized
+    private fun reserveClientWindow(): Int {
+        val inFlight = (ourSeqNum - clientAckNum) and 0xFFFFFFFFL
+        val available = (clientWindow - inFlight).toInt()
+        if (available <= 0 && !readPaused) {
+            setInterest(SelectionKey.OP_READ, false)
+            readPaused = true
+        }
+        return available
+    }
+
+    /**
+     * Updates the client's receive window from an ACK sent by the client and re-arms OP_READ interest if the window has room again.
+     * Called on the [OutboundTrafficHandler][de.tomcory.heimdall.scanner.traffic.components.OutboundTrafficHandler] thread.
+     */
+    @Synchronized
+    private fun updateClientWindow(ackNum: Long, window: Int) {
+        // ignore ACKs that are older than the latest one (sequence numbers wrap around at 2^32)
+        if ((ackNum - clientAckNum) and 0xFFFFFFFFL < 0x80000000L) {
+            clientAckNum = ackNum
+            clientWindow = window
+        }
+
+        if (readPaused && !endOfStream && clientWindow - ((ourSeqNum - clientAckNum) and 0xFFFFFFFFL) > 0) {
+            setInterest(SelectionKey.OP_READ, true)
+            readPaused = false
+        }
+    }
+
+    /**
+     * Resets idle connections that are still open towards the client, so that the app doesn't keep using a dead socket.
+     */
+    override fun closeIdle() {
+        if (state == TransportLayerState.CONNECTING || state == TransportLayerState.CONNECTED) {
+            Timber.d("tcp$id Resetting idle connection ($state)")
+            abortAndRst()
+        } else {
+            super.closeIdle()
+        }
+    }
+
     private fun abortAndRst() {
         selectionKey?.cancel()
-        val rstResponse = ipPacketBuilder.buildPacket(buildRst())
+        val rstResponse = synchronized(this) { buildRst() }
         state = TransportLayerState.ABORTED
         closeHard()
         writeToDevice(rstResponse)
@@ -354,6 +507,7 @@ class TcpConnection internal constructor(
     /**
      * Increases the client-side sequence number by the supplied amount.
      */
+    @Synchronized
     private fun increaseTheirSeqNum(increase: Int) {
         theirSeqNum += increase.toLong()
     }
@@ -361,118 +515,145 @@ class TcpConnection internal constructor(
     /**
      * Increases the server-side sequence number by the supplied amount.
      */
+    @Synchronized
     private fun increaseOurSeqNum(increase: Int) {
         ourSeqNum += increase.toLong()
     }
 
-    override fun buildPayload(rawPayload: ByteArray): TcpPacket.Builder {
-        return buildDataAck(rawPayload)
-    }
-
-    /**
-     * Constructs a [TcpPacket.Builder] with the supplied TCP flags to be used by [IpPacketBuilder.buildPacket].
-     */
-    private fun buildTcpPayload(urg: Boolean, ack: Boolean, psh: Boolean, rst: Boolean, syn: Boolean, fin: Boolean, rawPayload: ByteArray): TcpPacket.Builder {
-        val builder = TcpPacket.Builder()
-            .srcAddr(ipPacketBuilder.remoteAddress)
-            .dstAddr(ipPacketBuilder.localAddress)
-            .srcPort(TcpPort(remotePort.toShort(), ""))
-            .dstPort(TcpPort(localPort.toShort(), ""))
-            .sequenceNumber(ourSeqNum.toInt())
-            .acknowledgmentNumber(theirSeqNum.toInt())
-            .dataOffset(5.toByte())
-            .reserved(0.toByte())
-            .urg(urg)
-            .ack(ack)
-            .psh(psh)
-            .rst(rst)
-            .syn(syn)
-            .fin(fin)
-            .window(window)
-            .urgentPointer(0.toShort())
-            .padding(ByteArray(0))
-            .options(ArrayList())
-            .correctChecksumAtBuild(true)
-            .correctLengthAtBuild(true)
-            .paddingAtBuild(true)
-        if (rawPayload.isNotEmpty()) {
-            builder.payloadBuilder(UnknownPacket.newPacket(rawPayload, 0, rawPayload.size).builder)
+    /**
+     * Builds a TCP segment with the supplied TCP flags and the connection's current sequence numbers into a pooled buffer.
+     * The advertised window is scaled and the timestamps are added as negotiated in the handshake.
+     * Callers that advance [ourSeqNum] for the segment have to do so while still holding the connection's monitor.
+     *
+     * @param sequenceNumber Sequence number of the segment, [ourSeqNum] unless the segment is one of several built in one go (see [writeSegments]).
+     */
+    @Synchronized
+    private fun buildTcpPayload(urg: Boolean, ack: Boolean, psh: Boolean, rst: Boolean, syn: Boolean, fin: Boolean, rawPayload: ByteArray, payloadOffset: Int = 0, payloadLength: Int = rawPayload.size, options: ByteArray = EMPTY_PAYLOAD, sequenceNumber: Long = ourSeqNum): PacketBuffer {
+        var flags = 0
+        if (urg) flags = flags or FLAG_URG
+        if (ack) flags = flags or FLAG_ACK
+        if (psh) flags = flags or FLAG_PSH
+        if (rst) flags = flags or FLAG_RST
+        if (syn) flags = flags or FLAG_SYN
+        if (fin) flags = flags or FLAG_FIN
+
+        // whatever the segment carries, its ACK number covers all data received from the client so far
+        if (ack) {
+            unacknowledgedSegments = 0
+        }
+
+        // the window of SYN segments is never scaled
+        val window = if (syn) {
+            minOf(receiveWindow, 0xFFFF)
+        } else if (pendingWriteBytes >= componentManager.pendingWriteThreshold) {
+            // the remote host doesn't keep up, so stop the client from sending more data until the pending writes are flushed
+            zeroWindowAdvertised = true
+            0
+        } else {
+            minOf(receiveWindow ushr ourWindowShift, 0xFFFF)
         }
-        return builder
+        val timestampValue = if (timestamps && !rst) (System.nanoTime() / 1_000_000 + ourTimestampOffset) and 0xFFFFFFFFL else -1
+        return ipPacketBuilder.buildTcpPacket(componentManager.inboundPacketPool, sequenceNumber, theirSeqNum, flags, window, rawPayload, payloadOffset, payloadLength, options, timestampValue, timestampRecent)
     }
 
     /**
      * Convenience method that calls [buildTcpPayload] with the required flags to construct a SYN-ACK packet.
+     * The SYN-ACK announces our MSS and answers the window scale and SACK-permitted options offered by the client.
      */
-    private fun buildSynAck(): TcpPacket.Builder {
-        return buildTcpPayload(urg = false, ack = true, psh = false, rst = false, syn = true, fin = false, rawPayload = ByteArray(0))
+    private fun buildSynAck(): PacketBuffer {
+        val options = ByteArray(12)
+        var length = 0
+
+        options[length++] = PacketView.TCP_OPTION_MSS.toByte()
+        options[length++] = 4
+        Checksum.writeShort(options, length, componentManager.mtu - ipPacketBuilder.ipHeaderLength - IpPacketBuilder.TCP_HEADER_LENGTH)
+        length += 2
+
+        if (windowScaling) {
+            options[length++] = PacketView.TCP_OPTION_NOP.toByte()
+            options[length++] = PacketView.TCP_OPTION_WINDOW_SCALE.toByte()
+            options[length++] = 3
+            options[length++] = ourWindowShift.toByte()
+        }
+
+        if (sackPermitted) {
+            options[length++] = PacketView.TCP_OPTION_NOP.toByte()
+            options[length++] = PacketView.TCP_OPTION_NOP.toByte()
+            options[length++] = PacketView.TCP_OPTION_SACK_PERMITTED.toByte()
+            options[length++] = 2
+        }
+
+        return buildTcpPayload(urg = false, ack = true, psh = false, rst = false, syn = true, fin = false, rawPayload = EMPTY_PAYLOAD, options = options.copyOf(length))
     }
 
     /**
      * Convenience method that calls [buildTcpPayload] with the required flags to construct an ACK packet without an application-layer payload.
      */
-    private fun buildEmptyAck(): TcpPacket.Builder {
-        return buildTcpPayload(urg = false, ack = true, psh = false, rst = false, syn = false, fin = false, rawPayload = ByteArray(0))
+    private fun buildEmptyAck(): PacketBuffer {
+        return buildTcpPayload(urg = false, ack = true, psh = false, rst = false, syn = false, fin = false, rawPayload = EMPTY_PAYLOAD)
     }
 
     /**
      * Convenience method that calls [buildTcpPayload] with the required flags to construct an around the supplied application-layer payload.
      */
-    private fun buildDataAck(rawPayload: ByteArray): TcpPacket.Builder {
-        return buildTcpPayload(urg = false, ack = true, psh = true, rst = false, syn = false, fin = false, rawPayload)
+    private fun buildDataAck(sequenceNumber: Long, rawPayload: ByteArray, payloadOffset: Int = 0, payloadLength: Int = rawPayload.size): PacketBuffer {
+        return buildTcpPayload(urg = false, ack = true, psh = true, rst = false, syn = false, fin = false, rawPayload, payloadOffset, payloadLength, sequenceNumber = sequenceNumber)
     }
 
     /**
      * Convenience method that calls [buildTcpPayload] with the required flags to construct an RST packet.
      */
-    private fun buildRst(): TcpPacket.Builder {
-        return buildTcpPayload(urg = false, ack = false, psh = false, rst = true, syn = false, fin = false, rawPayload = ByteArray(0))
+    private fun buildRst(): PacketBuffer {
+        return buildTcpPayload(urg = false, ack = false, psh = false, rst = true, syn = false, fin = false, rawPayload = EMPTY_PAYLOAD)
     }
 
     /**
      * Convenience method that calls [buildTcpPayload] with the required flags to construct a FIN packet.
      */
-    private fun buildFin(): TcpPacket.Builder {
-        return buildTcpPayload(urg = false, ack = false, psh = false, rst = false, syn = false, fin = true, rawPayload = ByteArray(0))
+    private fun buildFin(): PacketBuffer {
+        return buildTcpPayload(urg = false, ack = false, psh = false, rst = false, syn = false, fin = true, rawPayload = EMPTY_PAYLOAD)
     }
 
     /**
      * Convenience method that calls [buildTcpPayload] with the required flags to construct a FIN-ACK packet.
      */
-    private fun buildFinAck(): TcpPacket.Builder {
-        return buildTcpPayload(urg = false, ack = true, psh = false, rst = false, syn = false, fin = true, rawPayload = ByteArray(0))
+    private fun buildFinAck(): PacketBuffer {
+        return buildTcpPayload(urg = false, ack = true, psh = false, rst = false, syn = false, fin = true, rawPayload = EMPTY_PAYLOAD)
     }
 
     companion object {
-        fun buildStrayRst(strayPacket: IpPacket): TcpPacket.Builder? {
-            if(strayPacket.payload is TcpPacket) {
-                val tcpPacket = strayPacket.payload as TcpPacket
-                return TcpPacket.Builder()
-                    .srcAddr(strayPacket.header.dstAddr)
-                    .dstAddr(strayPacket.header.srcAddr)
-                    .srcPort(tcpPacket.header.dstPort)
-                    .dstPort(tcpPacket.header.srcPort)
-                    .sequenceNumber(tcpPacket.header.acknowledgmentNumber)
-                    .acknowledgmentNumber(tcpPacket.header.sequenceNumber)
-                    .dataOffset(5.toByte())
-                    .reserved(0.toByte())
-                    .urg(false)
-                    .ack(false)
-                    .psh(false)
-                    .rst(true)
-                    .syn(false)
-                    .fin(false)
-                    .window(tcpPacket.header.window)
-                    .urgentPointer(0.toShort())
-                    .padding(ByteArray(0))
-                    .options(ArrayList())
-                    .correctChecksumAtBuild(true)
-                    .correctLengthAtBuild(true)
-                    .paddingAtBuild(true)
-            } else {
-                return null
-            }
+        const val FLAG_FIN = 0x01
+        const val FLAG_SYN = 0x02
+        const val FLAG_RST = 0x04
+        const val FLAG_PSH = 0x08
+        const val FLAG_ACK = 0x10
+        const val FLAG_URG = 0x20
+
+        private val EMPTY_PAYLOAD = ByteArray(0)
+
+        /**
+         * Window scale shift we announce, and the receive window we advertise with it (roughly 1 MB).
+         */
+        private const val OUR_WINDOW_SCALE = 4
+        private const val RECEIVE_WINDOW = 0xFFFF shl OUR_WINDOW_SCALE
+
+        /**
+         * Largest shift count allowed by RFC 7323.
+         */
+        private const val MAX_WINDOW_SCALE = 14
+
+        /**
+         * Builds a RST in response to a TCP packet that doesn't belong to any known connection.
+         */
+        fun buildStrayRst(strayPacket: PacketView, pool: PacketBufferPool): PacketBuffer {
+            return IpPacketBuilder.getInstance(strayPacket).buildTcpPacket(
+                pool,
+                sequenceNumber = strayPacket.acknowledgmentNumber,
+                acknowledgmentNumber = strayPacket.sequenceNumber,
+                flags = FLAG_RST,
+                window = strayPacket.window,
+                payload = EMPTY_PAYLOAD
+            )
         }
-
     }
-}
\ No newline at end of file
+}
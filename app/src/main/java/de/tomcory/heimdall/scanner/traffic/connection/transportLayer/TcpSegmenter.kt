@@ -0,0 +1,50 @@
+package de.tomcory.heimdall.scanner.traffic.connection.transportLayer
+
+import de.tomcory.heimdall.scanner.traffic.connection.inetLayer.IpPacketBuilder
+
+/**
+ * Splits inbound TCP payloads into segments the client accepts, similar to TCP segmentation offload:
+ * the payload is walked once and every segment is built straight from its slice of the source array.
+ */
+object TcpSegmenter {
+
+    /**
+     * MSS assumed for IPv4 clients that don't announce one (RFC 9293, section 3.7.1).
+     */
+    const val DEFAULT_MSS_IPV4 = 536
+
+    /**
+     * MSS assumed for IPv6 clients that don't announce one (IPv6 minimum MTU of 1280 minus the headers).
+     */
+    const val DEFAULT_MSS_IPV6 = 1220
+
+    /**
+     * Computes the MSS used for segments sent to the client: the client's MSS, capped so that every segment fits into the VPN interface's MTU.
+     *
+     * @param clientMss MSS announced in the client's SYN, or 0 if it didn't announce one.
+     * @param mtu MTU of the VPN interface.
+     * @param ipHeaderLength Length of the IP header of the segments (20 for IPv4, 40 for IPv6).
+     */
+    fun effectiveMss(clientMss: Int, mtu: Int, ipHeaderLength: Int): Int {
+        val mss = if (clientMss > 0) clientMss else if (ipHeaderLength == 20) DEFAULT_MSS_IPV4 else DEFAULT_MSS_IPV6
+        return minOf(mss, mtu - ipHeaderLength - IpPacketBuilder.TCP_HEADER_LENGTH).coerceAtLeast(1)
+    }
+
+    /**
+     * Walks the payload in slices of at most [mss] bytes and passes each slice to [emit] together with its sequence number.
+     *
+     * @return the sequence number following the last slice, i.e. [sequenceNumber] advanced by [length].
+     */
+    inline fun segment(offset: Int, length: Int, mss: Int, sequenceNumber: Long, emit: (segmentOffset: Int, segmentLength: Int, segmentSequenceNumber: Long) -> Unit): Long {
+        var segmentOffset = offset
+        var segmentSequenceNumber = sequenceNumber
+        val end = offset + length
+        while (segmentOffset < end) {
+            val segmentLength = minOf(mss, end - segmentOffset)
+            emit(segmentOffset, segmentLength, segmentSequenceNumber)
+            segmentOffset += segmentLength
+            segmentSequenceNumber += segmentLength
+        }
+        return segmentSequenceNumber
+    }
+}
@@ -1,28 +1,34 @@
 package de.tomcory.heimdall.scanner.traffic.connection.transportLayer
 
-import android.os.Handler
 import de.tomcory.heimdall.persistence.database.HeimdallDatabase
 import de.tomcory.heimdall.persistence.database.entity.Connection
 import de.tomcory.heimdall.scanner.traffic.cache.ConnectionCache
 import de.tomcory.heimdall.scanner.traffic.components.ComponentManager
+import de.tomcory.heimdall.scanner.traffic.components.DeviceWriteThread
+import de.tomcory.heimdall.scanner.traffic.components.IdleConnectionReaper
+import de.tomcory.heimdall.scanner.traffic.components.InboundTrafficHandler
 import de.tomcory.heimdall.scanner.traffic.connection.encryptionLayer.EncryptionLayerConnection
 import de.tomcory.heimdall.scanner.traffic.connection.inetLayer.IpPacketBuilder
+import de.tomcory.heimdall.scanner.traffic.connection.inetLayer.PacketView
 import kotlinx.coroutines.runBlocking
-import org.pcap4j.packet.IpPacket
-import org.pcap4j.packet.Packet
-import org.pcap4j.packet.TcpPacket
-import org.pcap4j.packet.UdpPacket
 import timber.log.Timber
 import java.nio.ByteBuffer
+import java.io.IOException
 import java.nio.channels.SelectableChannel
 import java.nio.channels.SelectionKey
 import java.nio.channels.Selector
+import java.nio.channels.SocketChannel
+import java.nio.channels.WritableByteChannel
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.TimeoutException
 
 /**
  * Base class for all transport-layer connection holders.
  */
 abstract class TransportLayerConnection protected constructor(
-    val deviceWriter: Handler,
+    val deviceWriter: DeviceWriteThread,
     val componentManager: ComponentManager,
     val localPort: Int,
     val remotePort: Int,
@@ -50,29 +56,48 @@ abstract class TransportLayerConnection protected constructor(
         ABORTED
     }
 
-    protected abstract val id: Long
-
     /**
-     * Buffer used for write operations on the connection's [SelectableChannel].
-     * Using separate buffers allows for parallel read and write operations.
+     * ID of the connection's database entry, 0 for connections that are not persisted (DNS). The entry itself is written in the background,
+     * see [createDatabaseEntity].
      */
-    protected val outBuffer: ByteBuffer = ByteBuffer.allocate(componentManager.maxPacketSize)
+    abstract val id: Long
 
     /**
      * Buffer used for read operations on the connection's [SelectableChannel].
-     * Using separate buffers allows for parallel read and write operations.
      */
     protected val inBuffer: ByteBuffer = ByteBuffer.allocate(componentManager.maxPacketSize)
 
     /**
      * The connection's transport protocol's name.
      */
-    protected abstract val protocol: String
+    abstract val protocol: String
+
+    /**
+     * How long the connection may be idle in its current state before the [IdleConnectionReaper] closes it.
+     */
+    abstract val idleTimeoutMillis: Long
+
+    /**
+     * Time of the connection's last outbound or inbound activity, in the [IdleConnectionReaper]'s clock.
+     */
+    @Volatile
+    var lastActivityMillis = componentManager.idleConnectionReaper.clockMillis
+        private set
+
+    /**
+     * The connection's [SelectableChannel]'s key as registered with the [Selector] of its [InboundTrafficHandler].
+     * Registration happens asynchronously on the handler's thread, so the key is null until then.
+     */
+    @Volatile
+    protected var selectionKey: SelectionKey? = null
+        private set
 
     /**
-     * The connection's [SelectableChannel]'s key as registered with the [Selector].
+     * The [InboundTrafficHandler] whose [Selector] the connection's channel is registered with.
      */
-    protected abstract val selectionKey: SelectionKey?
+    @Volatile
+    protected var inboundTrafficHandler: InboundTrafficHandler? = null
+        private set
 
     /**
      * The connection's outward-facing channel.
@@ -80,18 +105,71 @@ abstract class TransportLayerConnection protected constructor(
     protected abstract val selectableChannel: SelectableChannel
 
     /**
-     * AID of the app holding the connection's local port.
+     * Interest set of the connection's [selectionKey], kept here so that it can be changed before the channel is registered
+     * and from both the outbound and inbound traffic handlers. Guarded by [interestLock].
+     */
+    private var interestOps = 0
+
+    private val interestLock = Any()
+
+    /**
+     * Payloads that the [selectableChannel] did not accept because its send buffer was full, in the order they have to be written.
+     * Flushed by the [InboundTrafficHandler] once the channel is writable again. Guarded by its own monitor.
+     */
+    private val pendingWrites = ArrayDeque<ByteBuffer>()
+
+    /**
+     * Start of the current period in which writes are blocked by a full send buffer (in [System.nanoTime]).
+     */
+    private var writesBlockedSince = 0L
+
+    /**
+     * Set if the connection was closed while payloads were still waiting in the pending-write queue, see [closeSoftAfterPendingWrites].
+     * Guarded by the monitor of the queue.
      */
-    abstract val appId: Int?
+    private var closeAfterFlush = false
 
     /**
-     * Package name of the app holding the connection's local port.
+     * Number of bytes waiting in the pending-write queue.
      */
-    abstract val appPackage: String?
+    @Volatile
+    protected var pendingWriteBytes = 0
+        private set
 
     /**
-     * Indicates the connection's state.
+     * AID of the app holding the connection's local port, null until the attribution is resolved (see [awaitAppId]) or if it failed.
      */
+    @Volatile
+    var appId: Int? = null
+        private set
+
+    /**
+     * Package name of the app holding the connection's local port, set together with the [appId].
+     */
+    @Volatile
+    var appPackage: String? = null
+        private set
+
+    /**
+     * Completes with the [appId] once the attribution is resolved, see [startAttribution].
+     */
+    private val attribution = CompletableFuture<Int?>()
+
+    /**
+     * The connection's transport protocol number, set by [startAttribution].
+     */
+    private var transportProtocol = 0
+
+    /**
+     * Set once the connection is removed from the [ConnectionCache], see [createDatabaseEntity].
+     */
+    @Volatile
+    private var removed = false
+
+    /**
+     * Indicates the connection's state. Changed by the outbound and inbound traffic handlers as well as the [IdleConnectionReaper].
+     */
+    @Volatile
     var state: TransportLayerState = TransportLayerState.CONNECTING
         protected set
 
@@ -100,20 +178,179 @@ abstract class TransportLayerConnection protected constructor(
      */
     private var encryptionLayer: EncryptionLayerConnection? = null
 
-    private val isTracker = remoteHost?.let { componentManager.labelConnection(it) } ?: false
+    /**
+     * Set once outbound payloads are relayed straight to the [selectableChannel] instead of passing through the encryption and application layers.
+     * Only accessed by the outbound traffic handler shard of the connection.
+     */
+    protected var isOutboundRelay = false
+        private set
+
+    /**
+     * Set once inbound payloads are relayed straight to the device instead of passing through the encryption and application layers.
+     * Only accessed by the connection's [InboundTrafficHandler].
+     */
+    protected var isInboundRelay = false
+        private set
+
+    /**
+     * Number of payload bytes sent by the client through this connection.
+     */
+    @Volatile
+    var bytesOut = 0L
+        protected set
+
+    /**
+     * Number of payload bytes received from the remote host through this connection.
+     */
+    @Volatile
+    var bytesIn = 0L
+        protected set
+
+    /**
+     * Whether any of the hosts the remote address was resolved for is a tracker. Addresses are often shared (e.g. by CDNs), and the
+     * [remoteHost] is only the most recently resolved of them, not necessarily the one the app asked for.
+     */
+    private val isTracker = (remoteHost?.let { componentManager.labelConnection(it) } ?: false) ||
+            (ipPacketBuilder.remoteAddress.hostAddress?.let { address -> componentManager.dnsCache.getAll(address).any { componentManager.labelConnection(it) } } ?: false)
+
+    /**
+     * Hands the connection's channel to one of the [InboundTrafficHandler]s for registration with the supplied interest set.
+     */
+    protected fun registerChannel(ops: Int) {
+        synchronized(interestLock) {
+            interestOps = ops
+        }
+        componentManager.nextInboundTrafficHandler().register(this, selectableChannel, ops)
+    }
+
+    /**
+     * Called by the [InboundTrafficHandler] on its own thread once the connection's channel is registered with its [Selector].
+     */
+    fun onChannelRegistered(selectionKey: SelectionKey, handler: InboundTrafficHandler) {
+        synchronized(interestLock) {
+            this.selectionKey = selectionKey
+            this.inboundTrafficHandler = handler
+
+            // apply the changes made to the interest set while the registration was pending
+            if (selectionKey.interestOps() != interestOps) {
+                selectionKey.interestOps(interestOps)
+            }
+        }
+    }
+
+    /**
+     * Adds the operation to or removes it from the interest set of the connection's [selectionKey].
+     * Safe to call from any thread; the [InboundTrafficHandler] is woken up so that the change takes effect right away.
+     */
+    protected fun setInterest(op: Int, enabled: Boolean) {
+        synchronized(interestLock) {
+            val ops = if (enabled) interestOps or op else interestOps and op.inv()
+            if (ops == interestOps) {
+                return
+            }
+            interestOps = ops
+            val selectionKey = selectionKey ?: return
+            if (selectionKey.isValid) {
+                selectionKey.interestOps(ops)
+                if (Thread.currentThread() !== inboundTrafficHandler) {
+                    inboundTrafficHandler?.wakeup()
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the buffer's remaining bytes to the [selectableChannel] without blocking.
+     * Whatever the channel doesn't accept right away is copied to the pending-write queue and OP_WRITE interest is set, so that the
+     * [InboundTrafficHandler] flushes the queue (see [flushPendingWrites]) and the calling traffic handler can move on to other flows.
+     */
+    protected fun writeToChannel(buffer: ByteBuffer) {
+        synchronized(pendingWrites) {
+            try {
+                if (pendingWrites.isEmpty()) {
+                    while (buffer.hasRemaining() && (selectableChannel as WritableByteChannel).write(buffer) > 0) {
+                        // keep writing until the channel's send buffer is full
+                    }
+                    if (!buffer.hasRemaining()) {
+                        return
+                    }
+                    writesBlockedSince = System.nanoTime()
+                    setInterest(SelectionKey.OP_WRITE, true)
+                }
+
+                // the buffer may be reused by the caller, so queue a copy of its remaining bytes
+                val pending = ByteBuffer.allocate(buffer.remaining())
+                pending.put(buffer)
+                pending.flip()
+                pendingWrites.addLast(pending)
+                pendingWriteBytes += pending.remaining()
+            } catch (e: IOException) {
+                Timber.e(e, "${protocol.lowercase()}$id Error writing to channel, closing connection")
+                closeHard()
+            }
+        }
+    }
+
+    /**
+     * Writes as much of the pending-write queue to the [selectableChannel] as it accepts. Called by the [InboundTrafficHandler] on OP_WRITE.
+     * Once the queue is empty, OP_WRITE interest is removed and the time the writes were blocked is recorded in the [ComponentManager]'s metrics.
+     */
+    fun flushPendingWrites() {
+        val close = synchronized(pendingWrites) {
+            try {
+                while (true) {
+                    val buffer = pendingWrites.firstOrNull() ?: break
+                    pendingWriteBytes -= (selectableChannel as WritableByteChannel).write(buffer)
+                    if (buffer.hasRemaining()) {
+                        // the send buffer is full again, wait for the next OP_WRITE
+                        return
+                    }
+                    pendingWrites.removeFirst()
+                }
+            } catch (e: IOException) {
+                Timber.e(e, "${protocol.lowercase()}$id Error writing to channel, closing connection")
+                closeHard()
+                return
+            }
+            setInterest(SelectionKey.OP_WRITE, false)
+            componentManager.recordBlockedWrite(System.nanoTime() - writesBlockedSince)
+            closeAfterFlush
+        }
+        onPendingWritesFlushed()
+
+        if (close) {
+            try {
+                (selectableChannel as? SocketChannel)?.shutdownOutput()
+            } catch (e: IOException) {
+                Timber.w(e, "${protocol.lowercase()}$id Error shutting down output")
+            }
+            selectableChannel.close()
+        }
+    }
+
+    /**
+     * Called on the [InboundTrafficHandler]'s thread once the pending-write queue has been flushed completely.
+     */
+    protected open fun onPendingWritesFlushed() {}
+
+    /**
+     * Records outbound or inbound activity on the connection, which postpones its idle timeout.
+     */
+    fun markActive() {
+        lastActivityMillis = componentManager.idleConnectionReaper.clockMillis
+    }
 
     protected fun passOutboundToEncryptionLayer(payload: ByteArray) {
         if(encryptionLayer == null) {
             encryptionLayer = EncryptionLayerConnection.getInstance(id, this, componentManager, payload)
         }
         encryptionLayer?.unwrapOutbound(payload)
-    }
 
-    protected fun passOutboundToEncryptionLayer(packet: Packet) {
-        if(encryptionLayer == null) {
-            encryptionLayer = EncryptionLayerConnection.getInstance(id, this, componentManager, packet)
+        // once the connection turns out to be opaque, the remaining payloads can skip the layers
+        if(encryptionLayer?.canRelayOutbound() == true) {
+            isOutboundRelay = true
+            Timber.d("${protocol.lowercase()}$id Relaying outbound payloads")
         }
-        encryptionLayer?.unwrapOutbound(packet)
     }
 
     protected fun passInboundToEncryptionLayer(payload: ByteArray) {
@@ -122,36 +359,112 @@ abstract class TransportLayerConnection protected constructor(
         } else {
             encryptionLayer?.unwrapInbound(payload)
         }
+
+        if(encryptionLayer?.canRelayInbound() == true) {
+            isInboundRelay = true
+            Timber.d("${protocol.lowercase()}$id Relaying inbound payloads")
+        }
     }
 
-    protected fun createDatabaseEntity(): Long {
-        return if(remotePort == 53) {
-            0
-        } else {
-            runBlocking {
-                val ids = HeimdallDatabase.instance?.connectionDao?.insert(Connection(
-                    protocol = protocol,
-                    initialTimestamp = System.currentTimeMillis(),
-                    initiatorId = appId ?: -1,
-                    initiatorPkg = appPackage ?: appId.toString(),
-                    localPort = localPort,
-                    remoteHost = remoteHost ?: "",
-                    remoteIp = ipPacketBuilder.remoteAddress.hostAddress ?: "",
-                    remotePort = remotePort,
-                    isTracker = isTracker
-                ))
-
-                return@runBlocking ids?.first() ?: -1
+    /**
+     * Resolves the app holding the connection's local port on the [ComponentManager.attributionExecutor], so that the connection forwards
+     * packets in the meantime. Consumers that need the result wait for it with [awaitAppId] or continue with [onAttribution].
+     */
+    protected fun startAttribution(transportProtocol: Int) {
+        this.transportProtocol = transportProtocol
+        try {
+            componentManager.attributionExecutor.execute {
+                val aid = try {
+                    val appFinder = componentManager.appFinder
+                    appFinder.getAppId(ipPacketBuilder.localAddress, ipPacketBuilder.remoteAddress, localPort, remotePort, transportProtocol).also {
+                        appPackage = appFinder.getAppPackage(it)
+                        appId = it
+                    }
+                } catch (e: Exception) {
+                    Timber.e(e, "${protocol.lowercase()}$id Error resolving the app holding port $localPort")
+                    null
+                }
+                attribution.complete(aid)
             }
+        } catch (e: RejectedExecutionException) {
+            // the components are stopping
+            attribution.complete(null)
         }
     }
 
     /**
-     * Constructs a transport-layer payload [Packet.Builder] to be used by [IpPacketBuilder.buildPacket].
+     * Waits for the attribution of the connection to its app, see [startAttribution].
+     *
+     * @return the [appId], or null if it is not resolved within the timeout.
      */
-    abstract fun buildPayload(rawPayload: ByteArray): Packet.Builder
+    fun awaitAppId(timeoutMillis: Long): Int? {
+        // the attribution is usually resolved by the time anyone asks
+        if (attribution.isDone) {
+            return attribution.getNow(null)
+        }
+        return try {
+            attribution.get(timeoutMillis, TimeUnit.MILLISECONDS)
+        } catch (e: TimeoutException) {
+            Timber.w("${protocol.lowercase()}$id App holding port $localPort not resolved within ${timeoutMillis}ms")
+            null
+        } catch (e: InterruptedException) {
+            Thread.currentThread().interrupt()
+            null
+        }
+    }
 
-    abstract fun unwrapOutbound(outgoingPacket: Packet)
+    /**
+     * Runs the action with the [appId] once the attribution is resolved, see [startAttribution]. Unlike [awaitAppId] the caller never waits:
+     * the action runs right away if the attribution is already resolved, otherwise on the thread that resolves it.
+     */
+    fun onAttribution(action: (Int?) -> Unit) {
+        attribution.thenAccept(action)
+    }
+
+    /**
+     * Assigns the connection's database ID and writes its entry on the [ComponentManager.attributionExecutor] once the attribution is resolved,
+     * so that neither the database nor the attribution hold up the connection's packets. The traffic volume is tracked once the entry exists.
+     */
+    protected fun createDatabaseEntity(): Long {
+        if (remotePort == 53) {
+            return 0
+        }
+        val id = componentManager.nextConnectionId()
+        val initialTimestamp = System.currentTimeMillis()
+        attribution.thenAcceptAsync({ aid ->
+            try {
+                runBlocking {
+                    HeimdallDatabase.instance?.connectionDao?.insert(Connection(
+                        id = id,
+                        protocol = protocol,
+                        initialTimestamp = initialTimestamp,
+                        initiatorId = aid ?: -1,
+                        initiatorPkg = appPackage ?: aid.toString(),
+                        localPort = localPort,
+                        remoteHost = remoteHost ?: "",
+                        remoteIp = ipPacketBuilder.remoteAddress.hostAddress ?: "",
+                        remotePort = remotePort,
+                        isTracker = isTracker
+                    ))
+                }
+            } catch (e: Exception) {
+                Timber.e(e, "${protocol.lowercase()}$id Error creating the database entry")
+                return@thenAcceptAsync
+            }
+
+            componentManager.trafficVolumeWriter.register(this)
+            // the connection may have been closed while its entry was written
+            if (removed) {
+                componentManager.trafficVolumeWriter.onConnectionClosed(this)
+            }
+        }, componentManager.attributionExecutor)
+        return id
+    }
+
+    /**
+     * Handles an outbound packet of the connection. The [PacketView] is only valid for the duration of the call.
+     */
+    abstract fun unwrapOutbound(outgoingPacket: PacketView)
 
     abstract fun unwrapInbound()
 
@@ -164,7 +477,7 @@ abstract class TransportLayerConnection protected constructor(
      */
     fun closeHard() {
         closeSoft()
-        ConnectionCache.removeConnection(this)
+        removeFromCache()
     }
 
     /**
@@ -175,69 +488,117 @@ abstract class TransportLayerConnection protected constructor(
         selectableChannel.close()
     }
 
+    /**
+     * Like [closeSoft], but if payloads are still waiting in the pending-write queue (and have already been acknowledged to the client),
+     * the [SelectableChannel] is only closed once [flushPendingWrites] has written them.
+     */
+    fun closeSoftAfterPendingWrites() {
+        synchronized(pendingWrites) {
+            if (pendingWrites.isNotEmpty()) {
+                state = TransportLayerState.CLOSING
+                closeAfterFlush = true
+                return
+            }
+        }
+        closeSoft()
+    }
+
+    /**
+     * Closes a connection that exceeded its idle timeout. Called by the [IdleConnectionReaper] on its own thread.
+     */
+    open fun closeIdle() {
+        Timber.d("${protocol.lowercase()}$id Closing idle connection ($state)")
+        closeHard()
+    }
+
+    /**
+     * Removes the connection from the [ConnectionCache], stops tracking its idle time and traffic volume, and drops the cached owner of its
+     * socket (once the attribution has cached it).
+     */
+    protected fun removeFromCache() {
+        removed = true
+        ConnectionCache.removeConnection(this)
+        componentManager.idleConnectionReaper.deregister(this)
+        componentManager.trafficVolumeWriter.onConnectionClosed(this)
+        attribution.thenRun {
+            componentManager.appFinder.forgetSocket(ipPacketBuilder.localAddress, ipPacketBuilder.remoteAddress, localPort, remotePort, transportProtocol)
+        }
+    }
+
     companion object {
         /**
          * Creates a [TransportLayerConnection] instance based on the transport protocol and IP version of the supplied packet.
          *
-         * @param initialPacket [IpPacket] from which the necessary metadata is extracted to create the instance (ideally the very first packet of a new socket).
+         * @param initialPacket [PacketView] from which the necessary metadata is extracted to create the instance (ideally the very first packet of a new socket).
+         *
+         * May be called concurrently by several outbound traffic handler shards. Since all packets of a flow are dispatched to the same shard,
+         * the lookup and creation of a flow's connection never race with each other.
          */
         fun getInstance(
-            initialPacket: IpPacket,
+            initialPacket: PacketView,
             componentManager: ComponentManager,
-            deviceWriter: Handler,)
+            deviceWriter: DeviceWriteThread,)
         : TransportLayerConnection? {
 
+            // DNS queries over UDP don't get a connection of their own, they are multiplexed on one socket per resolver
+            if (initialPacket.isUdp && initialPacket.dstPort == 53) {
+                componentManager.dnsForwarder.forwardQuery(initialPacket, deviceWriter)
+                return null
+            }
+
             // if specified, query the connection cache for a matching connection
             ConnectionCache.findConnection(initialPacket)?.let {
                 return it
             }
 
-            val hostname = initialPacket.header.dstAddr.hostAddress?.let { componentManager.dnsCache.get(it) }
-
-            val connection =  when (initialPacket.payload) {
-                is TcpPacket -> {
-                    val tcpPacket = initialPacket.payload as TcpPacket
-//                    if(tcpPacket.header.dstPort.valueAsInt() == 853) {
-//                        Timber.w("Resetting DoT packet to %s:%s", initialPacket.header.dstAddr.hostAddress, tcpPacket.header.dstPort.valueAsInt())
-//                        deviceWriter.sendMessage(deviceWriter.obtainMessage(6, IpPacketBuilder.buildStray(initialPacket, TcpConnection.buildStrayRst(initialPacket))))
-//                        null
-//                    } else
-                    if(tcpPacket.header.fin || tcpPacket.header.ack || tcpPacket.header.rst) {
-                        Timber.w("Resetting unknown TCP packet to ${initialPacket.header.dstAddr.hostAddress}:${tcpPacket.header.dstPort.valueAsInt()} ($hostname)")
-                        deviceWriter.sendMessage(deviceWriter.obtainMessage(6, IpPacketBuilder.buildStray(initialPacket, TcpConnection.buildStrayRst(initialPacket))))
-                        null
-                    } else {
-                        TcpConnection(
-                            componentManager = componentManager,
-                            deviceWriter = deviceWriter,
-                            initialPacket = initialPacket.payload as TcpPacket,
-                            ipPacketBuilder = IpPacketBuilder.getInstance(initialPacket),
-                            remoteHost = hostname
-                        )
-                    }
-                }
-
-                is UdpPacket -> {
-                    val udpPacket = initialPacket.payload as UdpPacket
-                    UdpConnection(
+            val remoteAddress = initialPacket.getDstAddress()
+            val hostname = remoteAddress.hostAddress?.let { componentManager.dnsCache.get(it) }
+
+            val connection =  if(initialPacket.isTcp) {
+//                if(initialPacket.dstPort == 853) {
+//                    Timber.w("Resetting DoT packet to %s:%s", remoteAddress.hostAddress, initialPacket.dstPort)
+//                    writeStrayRst(initialPacket, componentManager, deviceWriter)
+//                    null
+//                } else
+                if(initialPacket.fin || initialPacket.ack || initialPacket.rst) {
+                    Timber.w("Resetting unknown TCP packet to ${remoteAddress.hostAddress}:${initialPacket.dstPort} ($hostname)")
+                    writeStrayRst(initialPacket, componentManager, deviceWriter)
+                    null
+                } else {
+                    TcpConnection(
                         componentManager = componentManager,
                         deviceWriter = deviceWriter,
-                        initialPacket = udpPacket,
+                        initialPacket = initialPacket,
                         ipPacketBuilder = IpPacketBuilder.getInstance(initialPacket),
                         remoteHost = hostname
                     )
                 }
-                else -> {
-                    Timber.e("Invalid transport protocol ${initialPacket.payload.javaClass}")
-                    null
-                }
+            } else if(initialPacket.isUdp) {
+                UdpConnection(
+                    componentManager = componentManager,
+                    deviceWriter = deviceWriter,
+                    initialPacket = initialPacket,
+                    ipPacketBuilder = IpPacketBuilder.getInstance(initialPacket),
+                    remoteHost = hostname
+                )
+            } else {
+                Timber.e("Invalid transport protocol ${initialPacket.protocol}")
+                null
             }
 
             if(connection != null) {
                 ConnectionCache.addConnection(connection)
+                componentManager.idleConnectionReaper.register(connection)
             }
 
             return connection
         }
+
+        /**
+         * Answers a stray TCP packet with a RST.
+         */
+        private fun writeStrayRst(strayPacket: PacketView, componentManager: ComponentManager, deviceWriter: DeviceWriteThread) {
+            deviceWriter.write(TcpConnection.buildStrayRst(strayPacket, componentManager.inboundPacketPool))
+        }
     }
 }
\ No newline at end of file
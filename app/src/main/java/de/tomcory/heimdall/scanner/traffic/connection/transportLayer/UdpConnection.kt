@@ -1,23 +1,18 @@
 package de.tomcory.heimdall.scanner.traffic.connection.transportLayer
 
 import android.net.VpnService
-import android.os.Handler
 import android.system.OsConstants
 import de.tomcory.heimdall.scanner.traffic.components.ComponentManager
 import de.tomcory.heimdall.scanner.traffic.components.DeviceWriteThread
 import de.tomcory.heimdall.scanner.traffic.connection.inetLayer.IpPacketBuilder
-import org.pcap4j.packet.Packet
-import org.pcap4j.packet.UdpPacket
-import org.pcap4j.packet.UnknownPacket
-import org.pcap4j.packet.namednumber.UdpPort
+import de.tomcory.heimdall.scanner.traffic.connection.inetLayer.PacketView
 import timber.log.Timber
 import java.io.IOException
 import java.net.InetAddress
 import java.net.InetSocketAddress
-import java.nio.BufferOverflowException
+import java.nio.ByteBuffer
 import java.nio.channels.DatagramChannel
 import java.nio.channels.SelectionKey
-import java.nio.channels.Selector
 import java.util.Arrays
 
 /**
@@ -25,31 +20,37 @@ import java.util.Arrays
  *
  * @param componentManager
  * @param deviceWriter
- * @param initialPacket UDP datagram from which the necessary metadata is extracted to create the instance (ideally the very first datagram of a new socket).
+ * @param initialPacket [PacketView] of the UDP datagram from which the necessary metadata is extracted to create the instance (ideally the very first datagram of a new socket).
  * @param ipPacketBuilder
  */
 class UdpConnection internal constructor(
     componentManager: ComponentManager,
-    deviceWriter: Handler,
-    initialPacket: UdpPacket,
+    deviceWriter: DeviceWriteThread,
+    initialPacket: PacketView,
     ipPacketBuilder: IpPacketBuilder,
     remoteHost: String?
 ) : TransportLayerConnection(
     deviceWriter = deviceWriter,
     componentManager = componentManager,
-    localPort = initialPacket.header.srcPort.valueAsInt(),
-    remotePort = initialPacket.header.dstPort.valueAsInt(),
+    localPort = initialPacket.srcPort,
+    remotePort = initialPacket.dstPort,
     remoteHost = remoteHost,
     ipPacketBuilder = ipPacketBuilder
 ) {
     override val protocol = "UDP"
+
+    override val idleTimeoutMillis: Long
+        get() = componentManager.udpIdleTimeoutMillis
     override val selectableChannel: DatagramChannel = openChannel(ipPacketBuilder.remoteAddress, componentManager.vpnService)
-    override val selectionKey = connectChannel(componentManager.selector)
-    override val appId: Int? = componentManager.appFinder.getAppId(ipPacketBuilder.localAddress, ipPacketBuilder.remoteAddress, localPort, remotePort, OsConstants.IPPROTO_UDP)
-    override val appPackage: String? = componentManager.appFinder.getAppPackage(appId)
     override val id = createDatabaseEntity()
 
     init {
+        // resolve the app behind the connection in the background, packets are forwarded in the meantime
+        startAttribution(OsConstants.IPPROTO_UDP)
+
+        // register OP_READ interest for the channel
+        registerChannel(SelectionKey.OP_READ)
+
         if(id > 0) {
             Timber.d("udp$id Creating UDP Connection to ${ipPacketBuilder.remoteAddress.hostAddress}:${remotePort} ($remoteHost)")
         }
@@ -68,64 +69,30 @@ class UdpConnection internal constructor(
         return selectableChannel
     }
 
-    private fun connectChannel(selector: Selector): SelectionKey? {
-        // register OP_READ interest for the channel
-        synchronized(ComponentManager.selectorMonitor) {
-            selector.wakeup()
-            val selectionKey = try {
-                selectableChannel.register(selector, SelectionKey.OP_READ)
-            } catch (e: Exception) {
-                Timber.e(e, "udp$id Error registering SelectableChannel")
-                null
-            }
-            selectionKey?.attach(this)
-            return selectionKey
-        }
-    }
-
-    override fun buildPayload(rawPayload: ByteArray): UdpPacket.Builder {
-        return UdpPacket.Builder()
-            .srcAddr(ipPacketBuilder.remoteAddress)
-            .dstAddr(ipPacketBuilder.localAddress)
-            .srcPort(UdpPort(remotePort.toShort(), ""))
-            .dstPort(UdpPort(localPort.toShort(), ""))
-            .correctChecksumAtBuild(true)
-            .correctLengthAtBuild(true)
-            .payloadBuilder(UnknownPacket.newPacket(rawPayload, 0, rawPayload.size).builder)
-    }
-
     override fun wrapOutbound(payload: ByteArray) {
         // if the application layer returned anything, write it to the connection's outward-facing channel
         if (payload.isNotEmpty()) {
-            outBuffer.clear()
-            outBuffer.put(payload)
-            outBuffer.flip()
-            while (outBuffer.hasRemaining()) {
-                try {
-                    selectableChannel.write(outBuffer)
-                } catch (e: IOException) {
-                    Timber.e(e, "udp$id Error writing to DatagramChannel, closing connection")
-                    closeHard()
-                    break
-                } catch (e: BufferOverflowException) {
-                    Timber.e(e, "udp$id Error writing to DatagramChannel, closing connection")
-                    closeHard()
-                    break
-                }
-            }
+            writeToChannel(ByteBuffer.wrap(payload))
         }
     }
 
     override fun wrapInbound(payload: ByteArray) {
-        val forwardPacket = ipPacketBuilder.buildPacket(buildPayload(payload))
-        deviceWriter.sendMessage(deviceWriter.obtainMessage(DeviceWriteThread.WRITE_UDP, forwardPacket))
+        val forwardPacket = ipPacketBuilder.buildUdpPacket(componentManager.inboundPacketPool, payload)
+        deviceWriter.write(forwardPacket)
     }
 
-    override fun unwrapOutbound(outgoingPacket: Packet) {
-        passOutboundToEncryptionLayer(outgoingPacket.payload)
+    override fun unwrapOutbound(outgoingPacket: PacketView) {
+        bytesOut += outgoingPacket.payloadLength
+        if (isOutboundRelay) {
+            // opaque payloads are written to the DatagramChannel straight from the packet buffer
+            writeToChannel(outgoingPacket.wrapPayload())
+        } else {
+            passOutboundToEncryptionLayer(outgoingPacket.copyPayload())
+        }
     }
 
     override fun unwrapInbound() {
+        val selectionKey = selectionKey
         if(selectionKey == null) {
             Timber.e("udp$id SelectionKey is null")
             state = TransportLayerState.ABORTED
@@ -140,11 +107,17 @@ class UdpConnection internal constructor(
                     inBuffer.clear()
                     bytesRead = selectableChannel.read(inBuffer)
                     if (bytesRead > 0) {
+                        bytesIn += bytesRead
                         inBuffer.flip()
-                        val rawData = Arrays.copyOf(inBuffer.array(), bytesRead)
+                        if (isInboundRelay) {
+                            // opaque payloads are built into packets straight from the read buffer
+                            deviceWriter.write(ipPacketBuilder.buildUdpPacket(componentManager.inboundPacketPool, inBuffer.array(), 0, bytesRead))
+                        } else {
+                            val rawData = Arrays.copyOf(inBuffer.array(), bytesRead)
 
-                        // pass the payload to the application layer for further processing
-                        passInboundToEncryptionLayer(rawData)
+                            // pass the payload to the application layer for further processing
+                            passInboundToEncryptionLayer(rawData)
+                        }
                     }
                 } catch (e: IOException) {
                     Timber.e(e, "udp$id Error reading data from DatagramChannel")
@@ -152,16 +125,6 @@ class UdpConnection internal constructor(
                 }
             } while (bytesRead > 0) //TODO: improve
 
-            // no need to keep DNS connections open after the first and only packet
-            if (remotePort == 53) {
-                try {
-                    selectableChannel.close()
-                } catch (e: IOException) {
-                    Timber.e(e, "udp$id Error closing DatagramChannel")
-                }
-                bytesRead = -1
-            }
-
             // DatagramChannel is closed, do the same for the connection
             if (bytesRead == -1) {
                 selectionKey.cancel()
@@ -1,32 +1,131 @@
 package de.tomcory.heimdall.scanner.traffic.metadata
 
+import android.content.BroadcastReceiver
 import android.content.Context
+import android.content.Intent
+import android.content.IntentFilter
 import android.content.pm.PackageManager
 import android.net.ConnectivityManager
 import android.os.Build
 import android.system.OsConstants
 import androidx.annotation.RequiresApi
 import timber.log.Timber
-import java.io.*
+import java.io.File
 import java.net.InetAddress
 import java.net.InetSocketAddress
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicLong
 
+/**
+ * Finds the app (UID and package) that owns a connection's socket.
+ *
+ * Both lookups are IPC calls (or file reads before Android Q), so their results are cached: the owner of a socket for [socketOwnerTtlMillis]
+ * or until its connection is closed (see [forgetSocket]), and the package of a UID until a package-change broadcast invalidates it.
+ *
+ * @param socketOwnerTtlMillis Time the owner of a socket is cached, 0 disables the cache.
+ * @param procNetRefreshIntervalMillis Minimum time between two reads of the /proc/net socket tables before Android Q.
+ * @param maxSocketOwners Number of socket owners cached. Once reached, the expired owners are dropped, then arbitrary ones until the cache is
+ * down to 90% of it.
+ */
 class AppFinder(
-    context: Context?,
-    private val tcp4File: File = File("/proc/net/tcp"),
-    private val tcp6File: File = File("/proc/net/tcp6"),
-    private val udp4File: File = File("/proc/net/udp"),
-    private val udp6File: File = File("/proc/net/udp6")
+    private val context: Context?,
+    tcp4File: File = File("/proc/net/tcp"),
+    tcp6File: File = File("/proc/net/tcp6"),
+    udp4File: File = File("/proc/net/udp"),
+    udp6File: File = File("/proc/net/udp6"),
+    private val socketOwnerTtlMillis: Long = 10_000,
+    procNetRefreshIntervalMillis: Long = 250,
+    private val maxSocketOwners: Int = 1024
 ) {
 
+    private class SocketOwner(val aid: Int, val expiryNanos: Long)
+
+    /**
+     * Identifies a socket in the cache. TCP sockets are told apart by their 4-tuple, since the same ephemeral port is handed out for
+     * connections to different remote endpoints. A UDP socket owns its local port whichever hosts it talks to, so only the port is used.
+     */
+    private data class SocketKey(val protocol: Int, val localPort: Int, val localAddress: InetAddress?, val remoteAddress: InetAddress?, val remotePort: Int)
+
     private val pm: PackageManager? = context?.packageManager
     private val cm: ConnectivityManager? = context?.getSystemService(Context.CONNECTIVITY_SERVICE) as ConnectivityManager?
 
+    /**
+     * Owners of the sockets listed in /proc/net, only used before Android Q.
+     */
+    private val socketIndex = ProcNetSocketIndex(tcp4File, tcp6File, udp4File, udp6File, procNetRefreshIntervalMillis)
+
+    /**
+     * Owners of recently seen sockets.
+     */
+    private val socketOwners = ConcurrentHashMap<SocketKey, SocketOwner>()
+
+    /**
+     * Number of socket owners an eviction shrinks the cache to.
+     */
+    private val evictedSocketOwners = maxSocketOwners / 10 * 9
+
+    /**
+     * Set while a thread evicts, the other threads keep caching owners instead of scanning the cache as well.
+     */
+    private val evicting = AtomicBoolean(false)
+
+    /**
+     * Packages of the UIDs seen so far, an empty string stands for a UID without a package.
+     */
+    private val packages = ConcurrentHashMap<Int, String>()
+
+    private val socketOwnerHits = AtomicLong(0)
+
+    private val socketOwnerMisses = AtomicLong(0)
+
+    /**
+     * Number of socket owners currently cached.
+     */
+    val cachedSocketOwners get() = socketOwners.size
+
+    /**
+     * Drops the cached package of a UID whose packages change, or all of them if the broadcast doesn't name the UID.
+     */
+    private val packageReceiver: BroadcastReceiver? = context?.let {
+        object : BroadcastReceiver() {
+            override fun onReceive(context: Context?, intent: Intent?) {
+                val uid = intent?.getIntExtra(Intent.EXTRA_UID, -1) ?: -1
+                if (uid >= 0) {
+                    packages.remove(uid)
+                } else {
+                    packages.clear()
+                }
+            }
+        }.also { receiver ->
+            it.registerReceiver(receiver, IntentFilter().apply {
+                addAction(Intent.ACTION_PACKAGE_ADDED)
+                addAction(Intent.ACTION_PACKAGE_REMOVED)
+                addAction(Intent.ACTION_PACKAGE_REPLACED)
+                addAction(Intent.ACTION_PACKAGE_CHANGED)
+                addDataScheme("package")
+            })
+        }
+    }
+
     fun getAppId(localAddress: InetAddress, remoteAddress: InetAddress, localPort: Int, remotePort: Int, protocol: Int): Int? {
+        val key = socketKey(localAddress, remoteAddress, localPort, remotePort, protocol)
+        val now = System.nanoTime()
+        val cached = socketOwners[key]
+        if (cached != null && cached.expiryNanos - now > 0) {
+            socketOwnerHits.incrementAndGet()
+            return cached.aid
+        }
+        socketOwnerMisses.incrementAndGet()
+
         val aid = try {
             if(Build.VERSION.SDK_INT < Build.VERSION_CODES.Q)
                 getAid(
+                    localAddress = localAddress,
+                    remoteAddress = remoteAddress,
                     localPort = localPort,
+                    remotePort = remotePort,
                     protocol = protocol)
             else
                 getAidQ(
@@ -39,12 +138,69 @@ class AppFinder(
             Timber.e(e)
             return null
         }
-        Timber.w("InitiatorId for port $localPort is $aid")
+
+        // only owners that were found are cached, the socket may not be listed yet
+        if (aid >= 0 && socketOwnerTtlMillis > 0) {
+            if (socketOwners.size >= maxSocketOwners && evicting.compareAndSet(false, true)) {
+                try {
+                    evictSocketOwners(now)
+                } finally {
+                    evicting.set(false)
+                }
+            }
+            socketOwners[key] = SocketOwner(aid, now + TimeUnit.MILLISECONDS.toNanos(socketOwnerTtlMillis))
+        }
         return aid
     }
 
+    /**
+     * Drops the cached owner of a connection's socket once the connection is closed, as its local port may be reused by another app.
+     */
+    fun forgetSocket(localAddress: InetAddress, remoteAddress: InetAddress, localPort: Int, remotePort: Int, protocol: Int) {
+        socketOwners.remove(socketKey(localAddress, remoteAddress, localPort, remotePort, protocol))
+    }
+
+    private fun socketKey(localAddress: InetAddress, remoteAddress: InetAddress, localPort: Int, remotePort: Int, protocol: Int): SocketKey {
+        return if (protocol == OsConstants.IPPROTO_TCP) {
+            SocketKey(protocol, localPort, localAddress, remoteAddress, remotePort)
+        } else {
+            SocketKey(protocol, localPort, null, null, 0)
+        }
+    }
+
+    /**
+     * Drops the expired owners and, if that is not enough, arbitrary owners until the cache is down to [evictedSocketOwners].
+     */
+    private fun evictSocketOwners(now: Long) {
+        socketOwners.values.removeIf { it.expiryNanos - now <= 0 }
+        val iterator = socketOwners.keys.iterator()
+        while (socketOwners.size > evictedSocketOwners && iterator.hasNext()) {
+            iterator.next()
+            iterator.remove()
+        }
+    }
+
     fun getAppPackage(aid: Int?): String? {
-        return if(aid != null && aid >= 0) pm?.getPackagesForUid(aid)?.get(0) else null
+        if (aid == null || aid < 0 || pm == null) {
+            return null
+        }
+        val appPackage = packages.getOrPut(aid) { pm.getPackagesForUid(aid)?.firstOrNull() ?: "" }
+        return appPackage.ifEmpty { null }
+    }
+
+    /**
+     * Stops listening for package changes.
+     */
+    fun close() {
+        try {
+            packageReceiver?.let { context?.unregisterReceiver(it) }
+        } catch (e: IllegalArgumentException) {
+            Timber.w(e, "Package receiver was not registered")
+        }
+    }
+
+    override fun toString(): String {
+        return "$cachedSocketOwners socket owners cached, ${socketOwnerHits.get()} hits, ${socketOwnerMisses.get()} misses, ${packages.size} packages cached, $socketIndex"
     }
 
     @RequiresApi(api = Build.VERSION_CODES.Q)
@@ -60,41 +216,11 @@ class AppFinder(
         return cm?.getConnectionOwnerUid(protocol, local, remote) ?: -1
     }
 
-    private fun getAid(localPort: Int, protocol: Int): Int {
-
-        // select the relevant /proc/net files based on the connection's transport protocol
-        //TODO: does the IP version matter (or do we always have to query both files)?
-        val queryFiles = when(protocol) {
-            OsConstants.IPPROTO_TCP -> arrayOf(tcp6File, tcp4File)
-            OsConstants.IPPROTO_UDP -> arrayOf(udp6File, udp4File)
+    private fun getAid(localAddress: InetAddress, remoteAddress: InetAddress, localPort: Int, remotePort: Int, protocol: Int): Int {
+        return when(protocol) {
+            OsConstants.IPPROTO_TCP -> socketIndex.findOwner(true, localAddress, localPort, remoteAddress, remotePort)
+            OsConstants.IPPROTO_UDP -> socketIndex.findOwner(false, localAddress, localPort, remoteAddress, remotePort)
             else -> throw java.lang.UnsupportedOperationException("Unsupported transport protocol")
         }
-
-        for (file in queryFiles) {
-
-            // open a reader on the file
-            val reader: BufferedReader = try {
-                BufferedReader(FileReader(file))
-            } catch (e: FileNotFoundException) {
-                Timber.e(e, "Error opening /proc/net reader")
-                return -1
-            }
-
-            // iterate over all entries to find one with a local port matching the supplied connection's
-            try {
-                for(line in reader.lines()) {
-                    val splitLine = line.replace("[ ]{2,}".toRegex(), " ").trim { it <= ' ' }
-                        .split(" ").toTypedArray()
-                    val entryPort = splitLine[1].substring(splitLine[1].indexOf(':') + 1).toInt(16)
-                    if (entryPort == localPort) {
-                        return splitLine[7].toInt()
-                    }
-                }
-            } catch (e: IOException) {
-                Timber.e(e, "Error reading from /proc/net")
-                return -1
-            }
-        }
-        return -1
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,211 @@
+package de.tomcory.heimdall.scanner.traffic.metadata
+
+import de.tomcory.heimdall.scanner.traffic.connection.appLayer.DnsCodec
+import de.tomcory.heimdall.scanner.traffic.connection.appLayer.DnsCodec.readInt
+import de.tomcory.heimdall.scanner.traffic.connection.appLayer.DnsCodec.readShort
+import de.tomcory.heimdall.scanner.traffic.connection.appLayer.DnsCodec.skipName
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Caches the answers to A and AAAA queries as raw messages, so that repeated queries can be answered without a round trip to the resolver.
+ * An answer is kept for the lowest TTL of its records (capped at [maxTtlSeconds]), and the TTLs of a cached reply are counted down by the time it spent in the cache.
+ *
+ * The answers are kept in access order, so once the cache is full the least recently used answer makes room for a new one without scanning the cache.
+ * Lookups reorder the entries, so every access locks the cache, DNS queries are rare enough for that not to matter.
+ *
+ * @param maxEntries Number of answers kept at most, the least recently used answer is dropped once it is exceeded.
+ * @param maxTtlSeconds Upper bound of the time an answer is kept.
+ */
+class DnsAnswerCache(
+    private val maxEntries: Int = 2048,
+    private val maxTtlSeconds: Long = 3600
+) {
+
+    /**
+     * Question of a cacheable query (name, type and class) with the name in lower case.
+     */
+    private class Question(val bytes: ByteArray) {
+        private val hash = bytes.contentHashCode()
+
+        override fun hashCode() = hash
+
+        override fun equals(other: Any?) = other is Question && other.bytes.contentEquals(bytes)
+    }
+
+    /**
+     * A cached answer.
+     *
+     * @property question The question the answer belongs to, with the name in lower case.
+     */
+    class Entry internal constructor(
+        val question: ByteArray,
+        private val message: ByteArray,
+        private val ttlOffsets: IntArray,
+        private val ttls: LongArray,
+        private val storedAt: Long,
+        private val ttlMillis: Long
+    ) {
+        private val hits = AtomicInteger(0)
+
+        private val prefetching = AtomicBoolean(false)
+
+        internal fun isExpired(nowMillis: Long) = nowMillis - storedAt >= ttlMillis
+
+        /**
+         * Builds the reply to a query: the cached message with the query's ID and question (keeping the case of its name) and TTLs reduced by the time the answer was cached.
+         */
+        fun buildReply(query: ByteArray, queryOffset: Int, nowMillis: Long): ByteArray {
+            hits.incrementAndGet()
+            val reply = message.copyOf()
+            reply[0] = query[queryOffset]
+            reply[1] = query[queryOffset + 1]
+            System.arraycopy(query, queryOffset + DnsCodec.HEADER_LENGTH, reply, DnsCodec.HEADER_LENGTH, question.size)
+
+            val elapsedSeconds = (nowMillis - storedAt) / 1000
+            for (i in ttlOffsets.indices) {
+                val ttl = (ttls[i] - elapsedSeconds).coerceAtLeast(0)
+                val offset = ttlOffsets[i]
+                reply[offset] = (ttl shr 24).toByte()
+                reply[offset + 1] = (ttl shr 16).toByte()
+                reply[offset + 2] = (ttl shr 8).toByte()
+                reply[offset + 3] = ttl.toByte()
+            }
+            return reply
+        }
+
+        /**
+         * Decides whether the answer should be refreshed before it expires: it has to be popular (served more than once) and in the last tenth of its lifetime.
+         * Only the first call that returns true for an entry does so, so that every entry is refreshed at most once.
+         */
+        fun claimPrefetch(nowMillis: Long): Boolean {
+            return hits.get() > 1
+                    && ttlMillis - (nowMillis - storedAt) < ttlMillis / 10
+                    && prefetching.compareAndSet(false, true)
+        }
+    }
+
+    /**
+     * Answers in access order, the least recently used first. Guarded by its own monitor.
+     */
+    private val entries = object : LinkedHashMap<Question, Entry>(16, 0.75f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<Question, DnsAnswerCache.Entry>) = size > maxEntries
+    }
+
+    private val hits = AtomicLong(0)
+
+    private val misses = AtomicLong(0)
+
+    /**
+     * Looks up the answer to a query.
+     *
+     * @return the cached answer, or null if the query is not cacheable or there is no unexpired answer.
+     */
+    fun get(query: ByteArray, offset: Int, length: Int, nowMillis: Long): Entry? {
+        val question = cacheableQuestion(query, offset, length) ?: return null
+        val entry = synchronized(entries) {
+            val entry = entries[question]
+            if (entry != null && entry.isExpired(nowMillis)) {
+                entries.remove(question)
+                null
+            } else {
+                entry
+            }
+        }
+        if (entry == null) {
+            misses.incrementAndGet()
+            return null
+        }
+        hits.incrementAndGet()
+        return entry
+    }
+
+    /**
+     * Caches an answer received from a resolver if it answers a cacheable query without errors and all its records have a TTL.
+     */
+    fun put(answer: ByteArray, offset: Int, length: Int, nowMillis: Long) {
+        val flags = readShort(answer, offset + 2)
+        if (flags and FLAG_TRUNCATED != 0 || flags and RCODE_MASK != 0 || readShort(answer, offset + 6) == 0) {
+            return
+        }
+        val question = cacheableQuestion(answer, offset, length) ?: return
+
+        // collect the positions of the TTLs of all records except the EDNS pseudo-record, whose TTL field holds flags
+        val recordCount = readShort(answer, offset + 6) + readShort(answer, offset + 8) + readShort(answer, offset + 10)
+        val ttlOffsets = IntArray(recordCount)
+        val ttls = LongArray(recordCount)
+        var ttlCount = 0
+        var minTtl = maxTtlSeconds
+        var position = DnsCodec.HEADER_LENGTH + question.bytes.size
+        val end = length
+        for (i in 0 until recordCount) {
+            position = skipName(answer, offset, position, end)
+            if (position < 0 || position + 10 > end) {
+                return
+            }
+            val type = readShort(answer, offset + position)
+            if (type != DnsCodec.TYPE_OPT) {
+                val ttl = readInt(answer, offset + position + 4)
+                ttlOffsets[ttlCount] = position + 4
+                ttls[ttlCount] = ttl
+                ttlCount++
+                minTtl = minOf(minTtl, ttl)
+            }
+            position += 10 + readShort(answer, offset + position + 8)
+        }
+        if (position > end || minTtl <= 0) {
+            return
+        }
+
+        val entry = Entry(
+            question = question.bytes,
+            message = answer.copyOfRange(offset, offset + length),
+            ttlOffsets = ttlOffsets.copyOf(ttlCount),
+            ttls = ttls.copyOf(ttlCount),
+            storedAt = nowMillis,
+            ttlMillis = minTtl * 1000
+        )
+        // replaces the question's previous answer (e.g. a prefetched refresh), or drops the least recently used answer if the cache is full
+        synchronized(entries) {
+            entries[question] = entry
+        }
+    }
+
+    override fun toString(): String {
+        val size = synchronized(entries) { entries.size }
+        return "$size answers cached, ${hits.get()} hits, ${misses.get()} misses"
+    }
+
+    private companion object {
+        const val FLAG_TRUNCATED = 0x0200
+        const val RCODE_MASK = 0x000F
+        const val OPCODE_MASK = 0x7800
+
+        /**
+         * Extracts the question of a standard query (or its answer) with a single A or AAAA question in class IN, with the name in lower case.
+         */
+        fun cacheableQuestion(message: ByteArray, offset: Int, length: Int): Question? {
+            if (length < DnsCodec.HEADER_LENGTH || readShort(message, offset + 2) and OPCODE_MASK != 0 || readShort(message, offset + 4) != 1) {
+                return null
+            }
+            val questionLength = DnsCodec.questionLength(message, offset, length)
+            if (questionLength < 0) {
+                return null
+            }
+            val questionEnd = offset + DnsCodec.HEADER_LENGTH + questionLength
+            val type = readShort(message, questionEnd - 4)
+            if ((type != DnsCodec.TYPE_A && type != DnsCodec.TYPE_AAAA) || readShort(message, questionEnd - 2) != DnsCodec.CLASS_IN) {
+                return null
+            }
+            val bytes = message.copyOfRange(offset + DnsCodec.HEADER_LENGTH, questionEnd)
+            for (i in bytes.indices) {
+                // lower-casing the length bytes as well does no harm, since labels are at most 63 bytes long
+                if (bytes[i] in 'A'.code.toByte()..'Z'.code.toByte()) {
+                    bytes[i] = (bytes[i] + 0x20).toByte()
+                }
+            }
+            return Question(bytes)
+        }
+    }
+}
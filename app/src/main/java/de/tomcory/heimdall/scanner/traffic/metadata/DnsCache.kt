@@ -1,15 +1,30 @@
 package de.tomcory.heimdall.scanner.traffic.metadata
 
 import timber.log.Timber
+import java.util.concurrent.ConcurrentHashMap
 import java.util.concurrent.TimeUnit
-import java.util.concurrent.locks.ReentrantReadWriteLock
-import kotlin.concurrent.read
-import kotlin.concurrent.write
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.LongAdder
 
+/**
+ * Hostname resolved for an IP address, valid until [expiry] (in [System.currentTimeMillis]).
+ */
 data class DnsCacheRecord(val hostname: String, val expiry: Long)
 
+/**
+ * Maps IP addresses to the hostnames they were resolved for, as seen in the DNS answers passing through the VPN.
+ * An address may be shared by many hosts (e.g. CDN addresses), so every hostname is recorded with its own TTL.
+ *
+ * The records of an address are replaced as a whole (copy-on-write) inside [ConcurrentHashMap.compute], so lookups never lock and
+ * concurrent updates only contend if they concern the same address.
+ *
+ * @param maxSize Number of addresses kept. Once exceeded, the expired records are dropped, then arbitrary addresses until the cache is down to
+ * 90% of it, so that the eviction scan runs once every few hundred new addresses instead of on every one.
+ * @param maxHostsPerAddress Number of hostnames kept per address, the ones resolved the longest time ago are dropped first.
+ */
 class DnsCache(
-    private val maxSize: Int = 1000,
+    private val maxSize: Int = 4096,
+    private val maxHostsPerAddress: Int = 16,
     private val defaultTtl: Long = 60L
 ) {
 
@@ -17,29 +32,86 @@ class DnsCache(
         Timber.d("DnsCache initialised with maxSize=$maxSize and defaultTtl=$defaultTtl")
     }
 
-    private val cache = object : LinkedHashMap<String, DnsCacheRecord>(maxSize + 1, .75f, true) {
-        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<String, DnsCacheRecord>?): Boolean {
-            return size > maxSize || (eldest?.value?.expiry ?: 0) < System.currentTimeMillis()
-        }
-    }
+    /**
+     * Records per address, the most recently resolved hostname last.
+     */
+    private val cache = ConcurrentHashMap<String, Array<DnsCacheRecord>>()
+
+    private val hits = LongAdder()
+
+    private val misses = LongAdder()
 
-    private val lock = ReentrantReadWriteLock()
+    /**
+     * Number of addresses an eviction shrinks the cache to.
+     */
+    private val evictedSize = maxSize / 10 * 9
+
+    /**
+     * Set while a thread evicts, the other threads keep adding addresses instead of scanning the cache as well.
+     */
+    private val evicting = AtomicBoolean(false)
 
     fun put(ip: String, hostname: String, ttl: Long = defaultTtl) {
-        lock.write {
-            cache[ip] = DnsCacheRecord(hostname, System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(ttl))
+        val now = System.currentTimeMillis()
+        val record = DnsCacheRecord(hostname, now + TimeUnit.SECONDS.toMillis(ttl))
+        cache.compute(ip) { _, records ->
+            if (records == null) {
+                arrayOf(record)
+            } else {
+                // drop the expired records and the hostname's previous record, and make room for the new one
+                val kept = records.filter { it.expiry > now && it.hostname != hostname }.takeLast(maxHostsPerAddress - 1)
+                (kept + record).toTypedArray()
+            }
+        }
+
+        if (cache.size > maxSize && evicting.compareAndSet(false, true)) {
+            try {
+                evict(now)
+            } finally {
+                evicting.set(false)
+            }
         }
     }
 
+    /**
+     * Returns the hostname most recently resolved for the address, or null if there is no unexpired record.
+     */
     fun get(ip: String): String? {
-        return lock.read {
-            cache[ip]?.let {
-                if (it.expiry < System.currentTimeMillis()) {
-                    cache.remove(ip)?.hostname
-                } else {
-                    it.hostname
+        val records = cache[ip]
+        if (records != null) {
+            val now = System.currentTimeMillis()
+            for (i in records.indices.reversed()) {
+                if (records[i].expiry > now) {
+                    hits.increment()
+                    return records[i].hostname
                 }
             }
         }
+        misses.increment()
+        return null
+    }
+
+    /**
+     * Returns all hostnames with an unexpired record for the address, the most recently resolved one last.
+     */
+    fun getAll(ip: String): List<String> {
+        val now = System.currentTimeMillis()
+        return cache[ip]?.filter { it.expiry > now }?.map { it.hostname } ?: emptyList()
+    }
+
+    /**
+     * Drops the addresses without unexpired records and, if that is not enough, arbitrary addresses until the cache is down to [evictedSize].
+     */
+    private fun evict(now: Long) {
+        cache.entries.removeIf { entry -> entry.value.none { it.expiry > now } }
+        val iterator = cache.keys.iterator()
+        while (cache.size > evictedSize && iterator.hasNext()) {
+            iterator.next()
+            iterator.remove()
+        }
+    }
+
+    override fun toString(): String {
+        return "${cache.size} addresses, ${hits.sum()} hits, ${misses.sum()} misses"
     }
 }
@@ -0,0 +1,371 @@
+package de.tomcory.heimdall.scanner.traffic.metadata
+
+import timber.log.Timber
+import java.io.File
+import java.io.FileInputStream
+import java.io.IOException
+import java.net.InetAddress
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Index of the sockets listed in the /proc/net socket tables, mapping every TCP and UDP socket to the UID that owns it.
+ * Used to find the app behind a connection before Android Q, which offers no API for it.
+ *
+ * The sockets are sorted by protocol and local port. Several sockets may share a port (e.g. an IPv4 and an IPv6 socket, or a listening and a
+ * connected one), so a lookup matches the connection's addresses and remote port against all of them: a socket connected to the remote
+ * endpoint wins over an unconnected one (e.g. a UDP socket that is not connected, or a listening TCP socket).
+ * The addresses are compared as IPv4 addresses if they are IPv4-mapped, since dual-stack sockets list IPv4 connections in the IPv6 tables.
+ *
+ * The index is a snapshot of all four tables, read in one pass with a byte-level parser. It is only refreshed if a lookup misses, since the
+ * sockets of a new connection may not be listed in the snapshot yet, and at most once per [minRefreshIntervalMillis].
+ *
+ * @param minRefreshIntervalMillis Minimum time between two refreshes, lookups that miss in between return -1.
+ */
+class ProcNetSocketIndex(
+    private val tcp4File: File = File("/proc/net/tcp"),
+    private val tcp6File: File = File("/proc/net/tcp6"),
+    private val udp4File: File = File("/proc/net/udp"),
+    private val udp6File: File = File("/proc/net/udp6"),
+    private val minRefreshIntervalMillis: Long = 250
+) {
+
+    /**
+     * The sockets of all tables, sorted by their key (the protocol bit and the local port), with the addresses (see [addressId]), the remote port
+     * and the UID of each socket at the same index.
+     */
+    private class Snapshot(
+        val keys: IntArray,
+        val localAddresses: LongArray,
+        val remoteAddresses: LongArray,
+        val remotePorts: IntArray,
+        val uids: IntArray,
+        val takenAtNanos: Long
+    )
+
+    private val minRefreshIntervalNanos = TimeUnit.MILLISECONDS.toNanos(minRefreshIntervalMillis)
+
+    /**
+     * The current snapshot, which starts out empty and due for a refresh.
+     */
+    @Volatile
+    private var snapshot = Snapshot(IntArray(0), LongArray(0), LongArray(0), IntArray(0), IntArray(0), System.nanoTime() - minRefreshIntervalNanos - 1)
+
+    /**
+     * Buffer the tables are read into, only used by the refreshing thread.
+     */
+    private var buffer = ByteArray(16 * 1024)
+
+    /**
+     * Sockets read by a refresh, packed as the key in the upper and the index of the socket's other fields in the lower half, so that sorting
+     * them sorts the sockets by key. Only used by the refreshing thread, like the other fields of the sockets read.
+     */
+    private var entries = LongArray(256)
+
+    private var entryLocalAddresses = LongArray(256)
+
+    private var entryRemoteAddresses = LongArray(256)
+
+    private var entryRemotePorts = IntArray(256)
+
+    private var entryUids = IntArray(256)
+
+    private var entryCount = 0
+
+    /**
+     * Address and port of the endpoint last parsed by [parseEndpoint], only used by the refreshing thread.
+     */
+    private var parsedAddress = ANY_ADDRESS
+
+    private var parsedPort = -1
+
+    private val parsedWords = IntArray(4)
+
+    private val refreshes = AtomicLong(0)
+
+    /**
+     * Finds the UID that owns the TCP or UDP socket of a connection, i.e. the socket bound to the local port that is connected to the remote
+     * endpoint or, failing that, not connected at all.
+     *
+     * @return the UID, or -1 if there is no such socket. If sockets are bound to the port but none of them matches even after a refresh, the
+     * owner of one of them is returned.
+     */
+    fun findOwner(tcp: Boolean, localAddress: InetAddress, localPort: Int, remoteAddress: InetAddress, remotePort: Int): Int {
+        val key = key(tcp, localPort)
+        val local = addressId(localAddress)
+        val remote = addressId(remoteAddress)
+        val current = snapshot
+        val uid = find(current, key, local, remote, remotePort, false)
+        return if (uid >= 0) uid else refreshAndFind(current, key, local, remote, remotePort)
+    }
+
+    @Synchronized
+    private fun refreshAndFind(missed: Snapshot, key: Int, localAddress: Long, remoteAddress: Long, remotePort: Int): Int {
+        var current = snapshot
+        // another thread may have refreshed the index while this one waited for the lock
+        if (current === missed) {
+            val now = System.nanoTime()
+            if (now - current.takenAtNanos >= minRefreshIntervalNanos) {
+                current = readSnapshot(now)
+                snapshot = current
+            }
+        }
+        return find(current, key, localAddress, remoteAddress, remotePort, true)
+    }
+
+    private fun readSnapshot(now: Long): Snapshot {
+        entryCount = 0
+        readTable(tcp6File, true)
+        readTable(tcp4File, true)
+        readTable(udp6File, false)
+        readTable(udp4File, false)
+        refreshes.incrementAndGet()
+
+        // sorting the packed entries sorts them by key, the sockets sharing a port end up next to each other
+        entries.sort(0, entryCount)
+        val keys = IntArray(entryCount)
+        val localAddresses = LongArray(entryCount)
+        val remoteAddresses = LongArray(entryCount)
+        val remotePorts = IntArray(entryCount)
+        val uids = IntArray(entryCount)
+        for (i in 0 until entryCount) {
+            keys[i] = (entries[i] ushr 32).toInt()
+            val entry = entries[i].toInt()
+            localAddresses[i] = entryLocalAddresses[entry]
+            remoteAddresses[i] = entryRemoteAddresses[entry]
+            remotePorts[i] = entryRemotePorts[entry]
+            uids[i] = entryUids[entry]
+        }
+        return Snapshot(keys, localAddresses, remoteAddresses, remotePorts, uids, now)
+    }
+
+    /**
+     * Reads a table and adds its sockets to the [entries]. A missing table (e.g. without IPv6 support) is skipped.
+     */
+    private fun readTable(file: File, tcp: Boolean) {
+        var length = 0
+        try {
+            FileInputStream(file).use { stream ->
+                // the tables report a size of 0, so they have to be read until the end
+                while (true) {
+                    if (length == buffer.size) {
+                        buffer = buffer.copyOf(buffer.size * 2)
+                    }
+                    val read = stream.read(buffer, length, buffer.size - length)
+                    if (read < 0) {
+                        break
+                    }
+                    length += read
+                }
+            }
+        } catch (e: IOException) {
+            Timber.w(e, "Error reading $file")
+            return
+        }
+        parseTable(buffer, length, tcp)
+    }
+
+    /**
+     * Parses the lines of a table, e.g.
+     * `   0: 0200000A:9C40 22D8B85D:01BB 01 00000000:00000000 00:00000000 00000000 10100        0 41263 1 ...`,
+     * where the second and third field hold the hex local and remote address and port, and the eighth field the UID.
+     */
+    private fun parseTable(data: ByteArray, length: Int, tcp: Boolean) {
+        // skip the header line
+        var i = 0
+        while (i < length && data[i] != NEWLINE) i++
+        i++
+
+        while (i < length) {
+            var field = 0
+            var localAddress = ANY_ADDRESS
+            var port = -1
+            var remoteAddress = ANY_ADDRESS
+            var remotePort = -1
+            var uid = -1
+            while (i < length && data[i] != NEWLINE) {
+                if (data[i] == SPACE) {
+                    i++
+                    continue
+                }
+                when (field) {
+                    LOCAL_ADDRESS_FIELD -> {
+                        i = parseEndpoint(data, i, length)
+                        localAddress = parsedAddress
+                        port = parsedPort
+                    }
+                    REMOTE_ADDRESS_FIELD -> {
+                        i = parseEndpoint(data, i, length)
+                        remoteAddress = parsedAddress
+                        remotePort = parsedPort
+                    }
+                    UID_FIELD -> {
+                        uid = 0
+                        while (i < length && data[i] != SPACE && data[i] != NEWLINE) {
+                            uid = uid * 10 + (data[i] - ZERO)
+                            i++
+                        }
+                    }
+                    else -> while (i < length && data[i] != SPACE && data[i] != NEWLINE) i++
+                }
+                field++
+            }
+            i++
+
+            if (port in 0..0xFFFF && remotePort in 0..0xFFFF && uid >= 0) {
+                if (entryCount == entries.size) {
+                    val size = entries.size * 2
+                    entries = entries.copyOf(size)
+                    entryLocalAddresses = entryLocalAddresses.copyOf(size)
+                    entryRemoteAddresses = entryRemoteAddresses.copyOf(size)
+                    entryRemotePorts = entryRemotePorts.copyOf(size)
+                    entryUids = entryUids.copyOf(size)
+                }
+                entryLocalAddresses[entryCount] = localAddress
+                entryRemoteAddresses[entryCount] = remoteAddress
+                entryRemotePorts[entryCount] = remotePort
+                entryUids[entryCount] = uid
+                entries[entryCount] = (key(tcp, port).toLong() shl 32) or entryCount.toLong()
+                entryCount++
+            }
+        }
+    }
+
+    /**
+     * Parses an endpoint field such as `0200000A:9C40` into [parsedAddress] and [parsedPort], which is -1 if the field is malformed.
+     * The address is printed as 32-bit words in host byte order, four of them in the IPv6 tables.
+     *
+     * @return the position after the field.
+     */
+    private fun parseEndpoint(data: ByteArray, start: Int, length: Int): Int {
+        var i = start
+        var wordCount = 0
+        var word = 0
+        var digits = 0
+        while (i < length && data[i] != COLON && data[i] != SPACE && data[i] != NEWLINE) {
+            word = word shl 4 or hexValue(data[i])
+            if (++digits == 8) {
+                if (wordCount < parsedWords.size) {
+                    parsedWords[wordCount] = word
+                }
+                wordCount++
+                word = 0
+                digits = 0
+            }
+            i++
+        }
+        parsedPort = -1
+        if (i < length && data[i] == COLON && digits == 0 && (wordCount == 1 || wordCount == 4)) {
+            parsedAddress = addressId(parsedWords, wordCount)
+            i++
+            parsedPort = 0
+            while (i < length && data[i] != SPACE && data[i] != NEWLINE) {
+                parsedPort = parsedPort shl 4 or hexValue(data[i])
+                i++
+            }
+        }
+        while (i < length && data[i] != SPACE && data[i] != NEWLINE) i++
+        return i
+    }
+
+    override fun toString(): String {
+        return "${snapshot.keys.size} sockets indexed, ${refreshes.get()} refreshes"
+    }
+
+    private companion object {
+        const val LOCAL_ADDRESS_FIELD = 1
+        const val REMOTE_ADDRESS_FIELD = 2
+        const val UID_FIELD = 7
+        const val NEWLINE = '\n'.code.toByte()
+        const val SPACE = ' '.code.toByte()
+        const val COLON = ':'.code.toByte()
+        const val ZERO = '0'.code.toByte()
+
+        /**
+         * Third word of an IPv4-mapped IPv6 address (::ffff:0:0/96) in host byte order.
+         */
+        const val IPV4_MAPPED_WORD = 0xFFFF0000.toInt()
+
+        /**
+         * Identity of the unspecified address (0.0.0.0 or ::) of unbound or unconnected sockets.
+         */
+        const val ANY_ADDRESS = 0L
+
+        fun key(tcp: Boolean, localPort: Int) = if (tcp) 0x10000 or localPort else localPort
+
+        /**
+         * Folds an address given as 32-bit words in host byte order (one for IPv4, four for IPv6) into a 64-bit identity. IPv4 addresses,
+         * including IPv4-mapped IPv6 addresses, map to their 32-bit value, so they compare equal across the IPv4 and IPv6 tables.
+         * IPv6 addresses are folded into the upper bits, distinct IPv6 addresses are practically never folded into the same identity.
+         */
+        fun addressId(words: IntArray, wordCount: Int): Long {
+            if (wordCount == 1) {
+                return words[0].toLong() and 0xFFFFFFFFL
+            }
+            if (words[0] == 0 && words[1] == 0 && words[2] == IPV4_MAPPED_WORD) {
+                return words[3].toLong() and 0xFFFFFFFFL
+            }
+            if (words[0] == 0 && words[1] == 0 && words[2] == 0 && words[3] == 0) {
+                return ANY_ADDRESS
+            }
+            val upper = (words[0].toLong() shl 32) or (words[1].toLong() and 0xFFFFFFFFL)
+            val lower = (words[2].toLong() shl 32) or (words[3].toLong() and 0xFFFFFFFFL)
+            return (upper * 31 + lower) or Long.MIN_VALUE
+        }
+
+        /**
+         * The [addressId] of an address, whose bytes are read into words in little-endian order like the host byte order of all Android ABIs.
+         */
+        fun addressId(address: InetAddress): Long {
+            val bytes = address.address
+            val words = IntArray(bytes.size / 4) { word ->
+                (bytes[word * 4].toInt() and 0xFF) or
+                        (bytes[word * 4 + 1].toInt() and 0xFF shl 8) or
+                        (bytes[word * 4 + 2].toInt() and 0xFF shl 16) or
+                        (bytes[word * 4 + 3].toInt() and 0xFF shl 24)
+            }
+            return addressId(words, words.size)
+        }
+
+        fun hexValue(c: Byte): Int {
+            return when (c) {
+                in '0'.code.toByte()..'9'.code.toByte() -> c - ZERO
+                in 'A'.code.toByte()..'F'.code.toByte() -> c - 'A'.code.toByte() + 10
+                else -> c - 'a'.code.toByte() + 10
+            }
+        }
+
+        /**
+         * Finds the owner of the socket bound to the port in the [key] that is connected to the remote endpoint, or else of one that is not connected.
+         *
+         * @param anySocket Whether to fall back to the owner of any socket bound to the port if none of them matches.
+         */
+        fun find(snapshot: Snapshot, key: Int, localAddress: Long, remoteAddress: Long, remotePort: Int, anySocket: Boolean): Int {
+            val keys = snapshot.keys
+            var index = keys.binarySearch(key)
+            if (index < 0) {
+                return -1
+            }
+            // the binary search hits any of the sockets sharing the port
+            while (index > 0 && keys[index - 1] == key) index--
+
+            var unconnectedOwner = -1
+            val firstOwner = snapshot.uids[index]
+            while (index < keys.size && keys[index] == key) {
+                val local = snapshot.localAddresses[index]
+                if (local == localAddress || local == ANY_ADDRESS) {
+                    val remote = snapshot.remoteAddresses[index]
+                    val port = snapshot.remotePorts[index]
+                    if (remote == remoteAddress && port == remotePort) {
+                        return snapshot.uids[index]
+                    }
+                    if (remote == ANY_ADDRESS && port == 0 && unconnectedOwner < 0) {
+                        unconnectedOwner = snapshot.uids[index]
+                    }
+                }
+                index++
+            }
+            return if (unconnectedOwner >= 0) unconnectedOwner else if (anySocket) firstOwner else -1
+        }
+    }
+}
@@ -13,11 +13,23 @@ class TlsPassthroughCache {
 
     private val cache = HashSet<TlsPassthroughCacheEntry>()
 
+    /**
+     * Hostnames that any app is marked for passthroughs to, which lets connections to other hosts skip the lookup of their app.
+     */
+    private val hostnames = HashSet<String>()
+
     private val lock = ReentrantReadWriteLock()
 
     fun put(initiator: Int, hostname: String) {
         lock.write {
             cache.add(TlsPassthroughCacheEntry(initiator, hostname))
+            hostnames.add(hostname)
+        }
+    }
+
+    fun containsHostname(hostname: String): Boolean {
+        return lock.read {
+            hostnames.contains(hostname)
         }
     }
 
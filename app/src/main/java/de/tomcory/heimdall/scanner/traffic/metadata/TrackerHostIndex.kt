@@ -0,0 +1,104 @@
+package de.tomcory.heimdall.scanner.traffic.metadata
+
+import android.content.Context
+import timber.log.Timber
+import java.io.IOException
+import java.nio.LongBuffer
+import java.nio.channels.FileChannel
+
+/**
+ * Read-only set of tracking hosts used to label connections.
+ *
+ * The host list is compiled at build time by the `compileTrackerHostIndex` Gradle task into a sorted array of 64-bit hashes,
+ * which is stored as an uncompressed asset and memory-mapped instead of being loaded onto the heap.
+ * Lookups are binary searches using absolute reads on the mapping, so they are lock-free and safe to call from any thread.
+ *
+ * Like the reversed-label trie it replaces, a host matches if the host itself or any of its parent domains is in the list.
+ */
+class TrackerHostIndex private constructor(private val hashes: LongBuffer) {
+
+    /**
+     * Number of hosts in the index.
+     */
+    val size get() = hashes.limit()
+
+    /**
+     * Checks whether the supplied host or one of its parent domains is a known tracking host.
+     */
+    fun contains(host: String): Boolean {
+        // the hash runs over the host name from right to left, so the hash of every parent domain is an intermediate result
+        var hash = FNV_OFFSET_BASIS
+        for (i in host.length - 1 downTo 0) {
+            val c = host[i]
+            if (c == '.' && binarySearch(hash)) {
+                return true
+            }
+            hash = (hash xor lowerCase(c).code.toLong()) * FNV_PRIME
+        }
+        return binarySearch(hash)
+    }
+
+    private fun binarySearch(hash: Long): Boolean {
+        var low = 0
+        var high = hashes.limit() - 1
+        while (low <= high) {
+            val mid = (low + high) ushr 1
+            val value = hashes.get(mid)
+            when {
+                value < hash -> low = mid + 1
+                value > hash -> high = mid - 1
+                else -> return true
+            }
+        }
+        return false
+    }
+
+    companion object {
+        const val ASSET_NAME = "tracker_hosts.idx"
+
+        // header layout (big-endian): magic, version, entry count, reserved - followed by the sorted hashes
+        private const val MAGIC = 0x48544849 // "HTHI"
+        private const val VERSION = 1
+        private const val HEADER_LENGTH = 16
+
+        // 64-bit FNV-1a, must match the hash used by the compileTrackerHostIndex task in app/build.gradle
+        private const val FNV_OFFSET_BASIS = -0x340d631b7bdddcdbL
+        private const val FNV_PRIME = 0x100000001b3L
+
+        private fun lowerCase(c: Char) = if (c in 'A'..'Z') c + ('a' - 'A') else c
+
+        /**
+         * Memory-maps the compiled index from the app's assets.
+         *
+         * @return the index, or null if the asset is missing or invalid, in which case the caller should fall back to the raw host list.
+         */
+        fun open(context: Context): TrackerHostIndex? {
+            return try {
+                val fd = context.assets.openFd(ASSET_NAME)
+                // the mapping stays valid after the stream is closed
+                fd.createInputStream().use { stream -> map(stream.channel, fd.startOffset, fd.declaredLength) }
+            } catch (e: IOException) {
+                Timber.w(e, "Tracker host index not available")
+                null
+            }
+        }
+
+        /**
+         * Memory-maps a compiled index stored in the channel's file at the supplied offset.
+         *
+         * @return the index, or null if the index is invalid.
+         */
+        fun map(channel: FileChannel, offset: Long, length: Long): TrackerHostIndex? {
+            val mapping = channel.map(FileChannel.MapMode.READ_ONLY, offset, length)
+            val count = mapping.getInt(8)
+            if (mapping.getInt(0) != MAGIC || mapping.getInt(4) != VERSION || count < 0 || HEADER_LENGTH + count * 8L > mapping.capacity()) {
+                Timber.w("Invalid tracker host index")
+                return null
+            }
+            mapping.position(HEADER_LENGTH)
+            val hashes = mapping.slice().asLongBuffer()
+            hashes.limit(count)
+            return TrackerHostIndex(hashes)
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package de.tomcory.heimdall.util
+
+import java.util.concurrent.atomic.AtomicLongArray
+
+/**
+ * Histogram with power-of-two buckets, i.e. bucket i counts the values in [2^(i-1), 2^i - 1] (bucket 0 counts zeros).
+ * Recording is cheap enough for hot paths, and the counts can be read from any thread.
+ */
+class Histogram(private val bucketCount: Int = 16) {
+
+    private val buckets = AtomicLongArray(bucketCount)
+
+    /**
+     * Counts the value in its bucket. Values beyond the largest bucket are counted in that bucket.
+     */
+    fun record(value: Int) {
+        val bucket = minOf(32 - Integer.numberOfLeadingZeros(maxOf(value, 0)), bucketCount - 1)
+        buckets.incrementAndGet(bucket)
+    }
+
+    /**
+     * Total number of recorded values.
+     */
+    val count: Long get() {
+        var count = 0L
+        for (i in 0 until bucketCount) {
+            count += buckets.get(i)
+        }
+        return count
+    }
+
+    override fun toString(): String {
+        val builder = StringBuilder("[")
+        for (i in 0 until bucketCount) {
+            val bucketCount = buckets.get(i)
+            if (bucketCount == 0L) {
+                continue
+            }
+            if (builder.length > 1) {
+                builder.append(", ")
+            }
+            val lower = if (i == 0) 0 else 1 shl (i - 1)
+            val upper = if (i == 0) 0 else (1 shl i) - 1
+            builder.append(if (lower == upper) "$lower" else "$lower-$upper").append(": ").append(bucketCount)
+        }
+        return builder.append("]").toString()
+    }
+}
@@ -0,0 +1,172 @@
+package de.tomcory.heimdall.util
+
+/**
+ * Hierarchical timer wheel. Scheduling, rescheduling and cancelling a timer are O(1), and advancing the wheel only touches the slots
+ * whose time has come, so a large number of far-off timers costs nothing until they are due.
+ *
+ * Level 0 has one slot per tick, every further level has slots that span a whole turn of the level below it. Timers are filed in the
+ * lowest level that can hold their deadline and cascade to the lower levels as the wheel turns.
+ *
+ * Not thread-safe, all calls have to be made by the thread that drives the wheel.
+ *
+ * @param tickMillis Resolution of the wheel, timers expire at most one tick late.
+ * @param startMillis Time at which the wheel starts turning, in the same clock as the deadlines.
+ * @param slotBits Log2 of the number of slots per level.
+ * @param levelCount Number of levels. Deadlines further out than 2^([slotBits] * [levelCount]) ticks are parked in the outermost level until they fit.
+ */
+class TimerWheel<T>(
+    private val tickMillis: Long,
+    startMillis: Long,
+    private val slotBits: Int = 6,
+    private val levelCount: Int = 4
+) {
+
+    /**
+     * Handle of a scheduled item. A timer can be rescheduled after it expired, which saves allocating a new one.
+     */
+    class Timer<T> internal constructor(val item: T) {
+        internal var deadlineTick = 0L
+        internal var bucket = NOT_SCHEDULED
+        internal var previous: Timer<T>? = null
+        internal var next: Timer<T>? = null
+
+        val isScheduled get() = bucket != NOT_SCHEDULED
+    }
+
+    private val slotCount = 1 shl slotBits
+
+    private val slotMask = slotCount - 1L
+
+    /**
+     * Heads of the doubly-linked timer lists, [slotCount] slots per level.
+     */
+    private val buckets = arrayOfNulls<Timer<T>>(slotCount * levelCount)
+
+    /**
+     * The last tick that has been processed.
+     */
+    private var currentTick = startMillis / tickMillis
+
+    /**
+     * Number of scheduled timers.
+     */
+    var size = 0
+        private set
+
+    /**
+     * Schedules the item to expire at the deadline (or on the next tick if the deadline has already passed).
+     */
+    fun schedule(item: T, deadlineMillis: Long): Timer<T> {
+        val timer = Timer(item)
+        insert(timer, maxOf(toTick(deadlineMillis), currentTick + 1))
+        return timer
+    }
+
+    /**
+     * Moves a scheduled timer to a new deadline, or schedules it again if it has expired or was cancelled.
+     */
+    fun reschedule(timer: Timer<T>, deadlineMillis: Long) {
+        if (timer.isScheduled) {
+            unlink(timer)
+        }
+        insert(timer, maxOf(toTick(deadlineMillis), currentTick + 1))
+    }
+
+    /**
+     * Removes the timer from the wheel. Has no effect if it is not scheduled.
+     */
+    fun cancel(timer: Timer<T>) {
+        if (timer.isScheduled) {
+            unlink(timer)
+        }
+    }
+
+    /**
+     * Turns the wheel up to the supplied time and passes every timer whose deadline has been reached to [onExpired].
+     * The callback may reschedule or cancel any timer, including the expired one.
+     *
+     * @return the number of expired timers.
+     */
+    fun advance(nowMillis: Long, onExpired: (Timer<T>) -> Unit): Int {
+        val targetTick = nowMillis / tickMillis
+        var expired = 0
+        while (currentTick < targetTick) {
+            currentTick++
+
+            // at the start of a new turn of a level, refile the timers of the next slot of the level above
+            var level = 1
+            while (level < levelCount && currentTick and (1L shl (slotBits * level)) - 1 == 0L) {
+                cascade(level)
+                level++
+            }
+
+            val bucket = (currentTick and slotMask).toInt()
+            while (true) {
+                val timer = buckets[bucket] ?: break
+                unlink(timer)
+                expired++
+                onExpired(timer)
+            }
+        }
+        return expired
+    }
+
+    private fun cascade(level: Int) {
+        val bucket = level * slotCount + (currentTick shr (slotBits * level) and slotMask).toInt()
+        while (true) {
+            val timer = buckets[bucket] ?: return
+            unlink(timer)
+            insert(timer, maxOf(timer.deadlineTick, currentTick))
+        }
+    }
+
+    private fun insert(timer: Timer<T>, deadlineTick: Long) {
+        timer.deadlineTick = deadlineTick
+
+        // file the timer in the lowest level that reaches the deadline before the level's current slot comes round again
+        var level = 0
+        while (level < levelCount && (deadlineTick shr (slotBits * level)) - (currentTick shr (slotBits * level)) > slotMask) {
+            level++
+        }
+        val slot = if (level < levelCount) {
+            deadlineTick shr (slotBits * level) and slotMask
+        } else {
+            // too far off for the wheel, park it in the outermost slot that is processed last and refile it from there
+            level = levelCount - 1
+            (currentTick shr (slotBits * level)) + slotMask and slotMask
+        }
+
+        val bucket = level * slotCount + slot.toInt()
+        val head = buckets[bucket]
+        timer.bucket = bucket
+        timer.previous = null
+        timer.next = head
+        head?.previous = timer
+        buckets[bucket] = timer
+        size++
+    }
+
+    private fun unlink(timer: Timer<T>) {
+        val previous = timer.previous
+        val next = timer.next
+        if (previous == null) {
+            buckets[timer.bucket] = next
+        } else {
+            previous.next = next
+        }
+        next?.previous = previous
+        timer.previous = null
+        timer.next = null
+        timer.bucket = NOT_SCHEDULED
+        size--
+    }
+
+    /**
+     * Rounds up, so that timers never expire early.
+     */
+    private fun toTick(millis: Long) = (millis + tickMillis - 1) / tickMillis
+
+    private companion object {
+        const val NOT_SCHEDULED = -1
+    }
+}
@@ -0,0 +1,206 @@
+package de.tomcory.heimdall.scanner.traffic.cache
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertSame
+import org.junit.Assert.assertTrue
+import org.junit.Ignore
+import org.junit.Test
+import java.util.Arrays
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+
+class ConnectionTableTest {
+
+    /**
+     * Stands in for a connection, identified by its remote address and ports.
+     */
+    private class Flow(val remoteAddress: ByteArray, val protocol: Int, val localPort: Int, val remotePort: Int) {
+        val localAddress = if (remoteAddress.size == 4) byteArrayOf(10, 0, 0, 2) else byteArrayOf(0xFD.toByte(), 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 2)
+        val meta = ConnectionTable.meta(if (remoteAddress.size == 4) 4 else 6, protocol, localPort, remotePort)
+
+        /**
+         * The key the cache used to compute from the flow's remote address, protocol and ports.
+         */
+        val intKey = Arrays.hashCode(remoteAddress) xor (protocol shl 16) xor (localPort shl 8) xor remotePort
+    }
+
+    private fun ConnectionTable<Flow>.put(flow: Flow) = put(
+        ConnectionTable.addressHigh(flow.localAddress), ConnectionTable.addressLow(flow.localAddress),
+        ConnectionTable.addressHigh(flow.remoteAddress), ConnectionTable.addressLow(flow.remoteAddress), flow.meta, flow
+    )
+
+    private fun ConnectionTable<Flow>.get(flow: Flow) = get(
+        ConnectionTable.addressHigh(flow.localAddress), ConnectionTable.addressLow(flow.localAddress),
+        ConnectionTable.addressHigh(flow.remoteAddress), ConnectionTable.addressLow(flow.remoteAddress), flow.meta
+    )
+
+    private fun ConnectionTable<Flow>.remove(flow: Flow) = remove(
+        ConnectionTable.addressHigh(flow.localAddress), ConnectionTable.addressLow(flow.localAddress),
+        ConnectionTable.addressHigh(flow.remoteAddress), ConnectionTable.addressLow(flow.remoteAddress), flow.meta, flow
+    )
+
+    /**
+     * Creates [count] distinct flows, a quarter of them IPv6, spread over a few remote hosts like real traffic.
+     */
+    private fun createFlows(count: Int): List<Flow> {
+        return List(count) { i ->
+            val host = i % 97
+            val remoteAddress = if (i % 4 == 3) {
+                byteArrayOf(0x2A, 0x00, 0x14, 0x50, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, host.toByte())
+            } else {
+                byteArrayOf(142.toByte(), 250.toByte(), 0, host.toByte())
+            }
+            Flow(remoteAddress, if (i % 5 == 0) 17 else 6, 32768 + i, if (i % 3 == 0) 80 else 443)
+        }
+    }
+
+    @Test
+    fun keepsFlowsApartThatCollideUnderTheIntKey() {
+        val remoteAddress = byteArrayOf(93, 184.toByte(), 216.toByte(), 34)
+        val first = Flow(remoteAddress, 6, 40001, 443)
+        val second = Flow(remoteAddress, 6, 40000, 187)
+        assertEquals(first.intKey, second.intKey)
+
+        val table = ConnectionTable<Flow>()
+        assertNull(table.put(first))
+        assertNull(table.put(second))
+        assertSame(first, table.get(first))
+        assertSame(second, table.get(second))
+        assertEquals(2, table.size)
+    }
+
+    @Test
+    fun distinguishesIpVersionsAndProtocols() {
+        val table = ConnectionTable<Flow>()
+        val v4 = Flow(byteArrayOf(0, 0, 0, 1), 6, 1000, 53)
+        val v6 = Flow(byteArrayOf(0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 1), 6, 1000, 53)
+        val udp = Flow(byteArrayOf(0, 0, 0, 1), 17, 1000, 53)
+        table.put(v4)
+        table.put(v6)
+        table.put(udp)
+        assertSame(v4, table.get(v4))
+        assertSame(v6, table.get(v6))
+        assertSame(udp, table.get(udp))
+    }
+
+    @Test
+    fun findsAllFlowsAcrossResizesAndRemovals() {
+        val table = ConnectionTable<Flow>(16)
+        val flows = createFlows(10_000)
+        flows.forEach { assertNull(table.put(it)) }
+        assertEquals(flows.size, table.size)
+        flows.forEach { assertSame(it, table.get(it)) }
+
+        // removing every other flow leaves tombstones that must not break the probe sequences of the remaining flows
+        flows.filterIndexed { i, _ -> i % 2 == 0 }.forEach { assertTrue(table.remove(it)) }
+        flows.forEachIndexed { i, flow -> if (i % 2 == 0) assertNull(table.get(flow)) else assertSame(flow, table.get(flow)) }
+        assertEquals(flows.size / 2, table.size)
+        assertEquals(flows.size / 2, table.values().size)
+
+        // a remove with a value the key doesn't map to has no effect
+        val stale = Flow(flows[1].remoteAddress, flows[1].protocol, flows[1].localPort, flows[1].remotePort)
+        assertFalse(table.remove(stale))
+        assertSame(flows[1], table.get(flows[1]))
+
+        // churn reuses the tombstones instead of growing the table forever
+        repeat(11) { round ->
+            flows.filterIndexed { i, _ -> i % 2 == 0 }.forEach { if (round % 2 == 0) table.put(it) else table.remove(it) }
+        }
+        flows.forEach { assertSame(it, table.get(it)) }
+
+        table.clear()
+        assertEquals(0, table.size)
+        flows.forEach { assertNull(table.get(it)) }
+    }
+
+    @Test
+    fun readersNeverSeeAnotherFlowWhileTheTableChanges() {
+        val table = ConnectionTable<Flow>(16)
+        val flows = createFlows(4_000)
+        val stable = flows.subList(0, 1_000)
+        val churning = flows.subList(1_000, flows.size)
+        stable.forEach { table.put(it) }
+
+        val done = AtomicBoolean(false)
+        val errors = AtomicInteger(0)
+        val readers = List(3) {
+            Thread {
+                while (!done.get()) {
+                    stable.forEach { if (table.get(it) !== it) errors.incrementAndGet() }
+                    churning.forEach { flow -> table.get(flow)?.let { if (it !== flow) errors.incrementAndGet() } }
+                }
+            }.apply { start() }
+        }
+
+        repeat(50) {
+            churning.forEach { table.put(it) }
+            churning.forEach { table.remove(it) }
+        }
+        done.set(true)
+        readers.forEach { it.join() }
+
+        assertEquals(0, errors.get())
+        assertEquals(stable.size, table.size)
+    }
+
+    /**
+     * Microbenchmark of lookups of 10k flows in the table and in the Int-keyed map the cache used before, including the check the cache needed to
+     * rule out collisions. Only prints the results, the timings are too noisy for assertions.
+     */
+    @Ignore("benchmark")
+    @Test
+    fun benchmarkLookupsAgainstIntKeyedMap() {
+        val flows = createFlows(10_000)
+        val table = ConnectionTable<Flow>()
+        val map = ConcurrentHashMap<Int, Flow>()
+        flows.forEach {
+            table.put(it)
+            map[it.intKey] = it
+        }
+
+        // the lookups only see what a packet provides: the raw 5-tuple
+        val localHigh = LongArray(flows.size) { ConnectionTable.addressHigh(flows[it].localAddress) }
+        val localLow = LongArray(flows.size) { ConnectionTable.addressLow(flows[it].localAddress) }
+        val remoteHigh = LongArray(flows.size) { ConnectionTable.addressHigh(flows[it].remoteAddress) }
+        val remoteLow = LongArray(flows.size) { ConnectionTable.addressLow(flows[it].remoteAddress) }
+        val meta = LongArray(flows.size) { flows[it].meta }
+        val intKeys = IntArray(flows.size) { flows[it].intKey }
+
+        fun lookUpTable(): Int {
+            var found = 0
+            for (i in flows.indices) {
+                if (table.get(localHigh[i], localLow[i], remoteHigh[i], remoteLow[i], meta[i]) != null) found++
+            }
+            return found
+        }
+
+        fun lookUpMap(): Int {
+            var found = 0
+            for (i in flows.indices) {
+                val flow = map[intKeys[i]] ?: continue
+                if (flow.meta == meta[i] && ConnectionTable.addressLow(flow.remoteAddress) == remoteLow[i] && ConnectionTable.addressHigh(flow.remoteAddress) == remoteHigh[i]) found++
+            }
+            return found
+        }
+
+        val rounds = 200
+        repeat(rounds) { lookUpTable(); lookUpMap() } // warm-up
+
+        var tableFound = 0
+        var start = System.nanoTime()
+        repeat(rounds) { tableFound = lookUpTable() }
+        val tableNanos = (System.nanoTime() - start).toDouble() / (rounds * flows.size)
+
+        var mapFound = 0
+        start = System.nanoTime()
+        repeat(rounds) { mapFound = lookUpMap() }
+        val mapNanos = (System.nanoTime() - start).toDouble() / (rounds * flows.size)
+
+        println("ConnectionTable: %.1f ns/lookup (%d of %d flows found)".format(tableNanos, tableFound, flows.size))
+        println("ConcurrentHashMap<Int>: %.1f ns/lookup (%d of %d flows found, %d lost to key collisions)".format(mapNanos, mapFound, flows.size, flows.size - map.size))
+        assertEquals(flows.size, tableFound)
+    }
+}
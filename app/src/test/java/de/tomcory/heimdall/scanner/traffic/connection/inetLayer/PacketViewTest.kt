@@ -0,0 +1,54 @@
+package de.tomcory.heimdall.scanner.traffic.connection.inetLayer
+
+import de.tomcory.heimdall.scanner.traffic.components.PacketBufferPool
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class PacketViewTest {
+
+    private val pool = PacketBufferPool(4, 1500)
+
+    /**
+     * Wraps an IPv4 packet from 10.0.0.2 to 93.184.216.34 carrying the supplied transport header and payload.
+     */
+    private fun wrap(protocol: Int, transport: ByteArray): Pair<PacketView, Boolean> {
+        val length = 20 + transport.size
+        val packet = byteArrayOf(
+            0x45, 0x00, (length shr 8).toByte(), length.toByte(), 0x00, 0x00, 0x40, 0x00, 0x40, protocol.toByte(), 0x00, 0x00,
+            10, 0, 0, 2, 93, 184.toByte(), 216.toByte(), 34
+        ) + transport
+        val buffer = pool.acquire()
+        System.arraycopy(packet, 0, buffer.data, 0, packet.size)
+        buffer.length = packet.size
+        val view = PacketView()
+        return view to view.wrap(buffer)
+    }
+
+    private fun tcpHeader(dataOffset: Int) = ByteArray(20).also { it[12] = (dataOffset shl 4).toByte() } + ByteArray(8)
+
+    @Test
+    fun wrapsTcpWithOptions() {
+        val (view, wrapped) = wrap(PacketView.PROTOCOL_TCP, tcpHeader(7))
+        assertTrue(wrapped)
+        assertEquals(28, view.transportHeaderLength)
+        assertEquals(8, view.tcpOptionsLength)
+        assertEquals(0, view.payloadLength)
+    }
+
+    @Test
+    fun rejectsTcpDataOffsetsBelowTheFixedHeader() {
+        for (dataOffset in 0..4) {
+            assertFalse(wrap(PacketView.PROTOCOL_TCP, tcpHeader(dataOffset)).second)
+        }
+    }
+
+    @Test
+    fun wrapsUdp() {
+        val (view, wrapped) = wrap(PacketView.PROTOCOL_UDP, ByteArray(8) + ByteArray(4))
+        assertTrue(wrapped)
+        assertEquals(8, view.transportHeaderLength)
+        assertEquals(4, view.payloadLength)
+    }
+}
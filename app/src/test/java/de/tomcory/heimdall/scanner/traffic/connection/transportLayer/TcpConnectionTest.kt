@@ -0,0 +1,203 @@
+package de.tomcory.heimdall.scanner.traffic.connection.transportLayer
+
+import de.tomcory.heimdall.scanner.traffic.components.BusySpinParkWaitStrategy
+import de.tomcory.heimdall.scanner.traffic.components.ComponentManager
+import de.tomcory.heimdall.scanner.traffic.components.DeviceWriteThread
+import de.tomcory.heimdall.scanner.traffic.components.FanInPacketQueue
+import de.tomcory.heimdall.scanner.traffic.connection.inetLayer.IpPacketBuilder
+import de.tomcory.heimdall.scanner.traffic.connection.inetLayer.PacketView
+import org.junit.After
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Assert.fail
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import java.io.ByteArrayOutputStream
+import java.io.File
+import java.io.FileOutputStream
+import java.net.InetSocketAddress
+import java.nio.ByteBuffer
+import java.nio.channels.ServerSocketChannel
+import java.nio.channels.SocketChannel
+
+/**
+ * Drives a [TcpConnection] to a local server with segments built as if sent by the device, and reads the segments the connection
+ * writes back to the device from its [DeviceWriteThread]'s queue, which is never started. The payloads are zeros, which the
+ * connection relays as opaque data.
+ */
+@RunWith(RobolectricTestRunner::class)
+class TcpConnectionTest {
+
+    private lateinit var server: ServerSocketChannel
+    private lateinit var componentManager: ComponentManager
+    private val deviceQueue = FanInPacketQueue(4096, BusySpinParkWaitStrategy())
+    private val deviceView = PacketView()
+    private val sink = File.createTempFile("device", null)
+
+    @Before
+    fun setUp() {
+        server = ServerSocketChannel.open()
+        // a small receive buffer makes the connection's writes back up quickly
+        server.socket().receiveBufferSize = 4096
+        server.bind(InetSocketAddress("127.0.0.1", 0))
+        // zero-window ACKs as soon as anything waits in the pending-write queue
+        componentManager = ComponentManager(null, FileOutputStream(sink), null, pendingWriteThreshold = 1, outboundShardCount = 1, inboundSelectorCount = 1)
+    }
+
+    @After
+    fun tearDown() {
+        componentManager.stopComponents()
+        server.close()
+        sink.delete()
+    }
+
+    /**
+     * Builds an IPv4 TCP SYN without options from 127.0.0.1:[srcPort] to 127.0.0.1:[dstPort].
+     */
+    private fun buildSyn(srcPort: Int, dstPort: Int): PacketView {
+        val packet = byteArrayOf(
+            // IPv4 header
+            0x45, 0x00, 0x00, 0x28, 0x00, 0x00, 0x40, 0x00, 0x40, 0x06, 0x00, 0x00,
+            127, 0, 0, 1, 127, 0, 0, 1,
+            // TCP header
+            (srcPort shr 8).toByte(), srcPort.toByte(), (dstPort shr 8).toByte(), dstPort.toByte(),
+            (CLIENT_ISN shr 24).toByte(), (CLIENT_ISN shr 16).toByte(), (CLIENT_ISN shr 8).toByte(), CLIENT_ISN.toByte(),
+            0x00, 0x00, 0x00, 0x00,
+            0x50, 0x02, 0xFF.toByte(), 0xFF.toByte(), 0x00, 0x00, 0x00, 0x00
+        )
+        val buffer = componentManager.outboundPacketPool.acquire()
+        System.arraycopy(packet, 0, buffer.data, 0, packet.size)
+        buffer.length = packet.size
+        val view = PacketView()
+        assertTrue(view.wrap(buffer))
+        return view
+    }
+
+    /**
+     * A connection whose handshake with both the server and the device is complete.
+     */
+    private inner class Flow {
+        val syn = buildSyn(CLIENT_PORT, server.socket().localPort)
+        val connection = TcpConnection(
+            componentManager,
+            DeviceWriteThread("DeviceWriteThread", FileOutputStream(sink), deviceQueue, componentManager.inboundPacketPool),
+            syn,
+            IpPacketBuilder.getInstance(syn),
+            null
+        )
+
+        // builds segments from the device to the server, i.e. with the roles of the SYN's addresses swapped
+        private val deviceBuilder = IpPacketBuilder.getInstance(buildSyn(server.socket().localPort, CLIENT_PORT))
+        private val view = PacketView()
+
+        val accepted: SocketChannel
+        var deviceSeqNum = CLIENT_ISN + 1
+        var connectionSeqNum: Long
+
+        init {
+            val synAck = nextDeviceSegment()
+            assertTrue(synAck.syn && synAck.ack)
+            assertEquals(deviceSeqNum, synAck.acknowledgmentNumber)
+            connectionSeqNum = synAck.sequenceNumber + 1
+            accepted = server.accept()
+            send(TcpConnection.FLAG_ACK)
+        }
+
+        fun send(flags: Int, payload: ByteArray = ByteArray(0)) {
+            val buffer = deviceBuilder.buildTcpPacket(componentManager.outboundPacketPool, deviceSeqNum, connectionSeqNum, flags, 0xFFFF, payload)
+            assertTrue(view.wrap(buffer))
+            connection.unwrapOutbound(view)
+            componentManager.outboundPacketPool.release(buffer)
+            deviceSeqNum += payload.size
+        }
+    }
+
+    /**
+     * Waits for the next segment the connection writes to the device. The returned view is valid until the next call, its buffer is not
+     * released to the pool, which allocates new buffers once it runs out.
+     */
+    private fun nextDeviceSegment(): PacketView {
+        val deadline = System.nanoTime() + 5_000_000_000
+        while (System.nanoTime() < deadline) {
+            val buffer = deviceQueue.poll()
+            if (buffer == null) {
+                Thread.sleep(1)
+                continue
+            }
+            assertTrue(deviceView.wrap(buffer))
+            return deviceView
+        }
+        fail("No segment written to the device")
+        throw IllegalStateException()
+    }
+
+    @Test
+    fun flushesAcknowledgedWritesBeforeClosingOnFin() {
+        val flow = Flow()
+
+        // send data until the writes back up and the connection closes the device's window
+        var sent = 0
+        var windowClosed = false
+        while (!windowClosed) {
+            assertTrue("the writes never backed up", sent < 64 * 1024 * 1024)
+            flow.send(TcpConnection.FLAG_ACK or TcpConnection.FLAG_PSH, ByteArray(1400))
+            sent += 1400
+            while (deviceQueue.depth > 0) {
+                windowClosed = windowClosed || nextDeviceSegment().window == 0
+            }
+        }
+
+        // everything was acknowledged to the device, so it has to reach the server even though the device closes right away
+        flow.send(TcpConnection.FLAG_ACK or TcpConnection.FLAG_FIN)
+        var finAck = nextDeviceSegment()
+        while (!finAck.fin) {
+            finAck = nextDeviceSegment()
+        }
+        assertEquals(flow.deviceSeqNum + 1, finAck.acknowledgmentNumber)
+
+        val input = flow.accepted.socket().apply { soTimeout = 5_000 }.getInputStream()
+        val buffer = ByteArray(64 * 1024)
+        var received = 0
+        while (true) {
+            val read = input.read(buffer)
+            if (read == -1) {
+                break
+            }
+            received += read
+        }
+        assertEquals(sent, received)
+    }
+
+    @Test
+    fun segmentsInboundDataWithContinuousSequenceNumbers() {
+        val flow = Flow()
+        // the connection is only relayed once the device has sent something
+        flow.send(TcpConnection.FLAG_ACK or TcpConnection.FLAG_PSH, ByteArray(100))
+
+        val data = ByteArray(20_000) { (it % 251).toByte() }
+        flow.accepted.write(ByteBuffer.wrap(data))
+
+        val reassembled = ByteArrayOutputStream()
+        var expectedSeqNum = flow.connectionSeqNum
+        while (reassembled.size() < data.size) {
+            val segment = nextDeviceSegment()
+            if (segment.payloadLength == 0) {
+                // a pure ACK of the device's data
+                continue
+            }
+            assertEquals(expectedSeqNum, segment.sequenceNumber)
+            assertTrue(segment.payloadLength <= TcpSegmenter.DEFAULT_MSS_IPV4)
+            reassembled.write(segment.copyPayload())
+            expectedSeqNum += segment.payloadLength
+        }
+        assertArrayEquals(data, reassembled.toByteArray())
+    }
+
+    companion object {
+        private const val CLIENT_PORT = 40000
+        private const val CLIENT_ISN = 0x10000000L
+    }
+}
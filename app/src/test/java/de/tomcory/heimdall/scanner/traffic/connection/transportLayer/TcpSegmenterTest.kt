@@ -0,0 +1,84 @@
+package de.tomcory.heimdall.scanner.traffic.connection.transportLayer
+
+import de.tomcory.heimdall.scanner.traffic.components.PacketBufferPool
+import de.tomcory.heimdall.scanner.traffic.connection.inetLayer.IpPacketBuilder
+import de.tomcory.heimdall.scanner.traffic.connection.inetLayer.PacketView
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.io.ByteArrayOutputStream
+
+class TcpSegmenterTest {
+
+    private val pool = PacketBufferPool(16, 1500)
+
+    /**
+     * Builds an IPv4 TCP SYN from 10.0.0.2:40000 to 93.184.216.34:443 with an MSS option.
+     */
+    private fun buildSyn(mss: Int): PacketView {
+        val packet = byteArrayOf(
+            // IPv4 header
+            0x45, 0x00, 0x00, 0x2C, 0x00, 0x00, 0x40, 0x00, 0x40, 0x06, 0x00, 0x00,
+            10, 0, 0, 2, 93, 184.toByte(), 216.toByte(), 34,
+            // TCP header with a data offset of 6 (one option word)
+            0x9C.toByte(), 0x40, 0x01, 0xBB.toByte(), 0x00, 0x00, 0x10, 0x00, 0x00, 0x00, 0x00, 0x00,
+            0x60, 0x02, 0xFF.toByte(), 0xFF.toByte(), 0x00, 0x00, 0x00, 0x00,
+            // MSS option
+            0x02, 0x04, (mss shr 8).toByte(), mss.toByte()
+        )
+        val buffer = pool.acquire()
+        System.arraycopy(packet, 0, buffer.data, 0, packet.size)
+        buffer.length = packet.size
+        val view = PacketView()
+        assertTrue(view.wrap(buffer))
+        return view
+    }
+
+    @Test
+    fun parsesMssFromSyn() {
+        val syn = buildSyn(1200)
+        assertEquals(1200, syn.tcpMss)
+        assertEquals(1200, TcpSegmenter.effectiveMss(syn.tcpMss, 1500, syn.ipHeaderLength))
+    }
+
+    @Test
+    fun capsMssToMtu() {
+        assertEquals(1460, TcpSegmenter.effectiveMss(8960, 1500, 20))
+        assertEquals(1440, TcpSegmenter.effectiveMss(8960, 1500, 40))
+        assertEquals(TcpSegmenter.DEFAULT_MSS_IPV4, TcpSegmenter.effectiveMss(0, 1500, 20))
+        assertEquals(TcpSegmenter.DEFAULT_MSS_IPV6, TcpSegmenter.effectiveMss(0, 1500, 40))
+    }
+
+    @Test
+    fun splitSegmentsHaveContinuousSequenceNumbers() {
+        val syn = buildSyn(1000)
+        val builder = IpPacketBuilder.getInstance(syn)
+        val mss = TcpSegmenter.effectiveMss(syn.tcpMss, 1500, syn.ipHeaderLength)
+        val payload = ByteArray(4321) { it.toByte() }
+        val initialSequenceNumber = 0xFFFFF000L // close to the wrap-around
+
+        val reassembled = ByteArrayOutputStream()
+        var expectedSequenceNumber = initialSequenceNumber
+        var segmentCount = 0
+        val view = PacketView()
+
+        val nextSequenceNumber = TcpSegmenter.segment(0, payload.size, mss, initialSequenceNumber) { offset, length, sequenceNumber ->
+            val buffer = builder.buildTcpPacket(pool, sequenceNumber, 1, TcpConnection.FLAG_ACK or TcpConnection.FLAG_PSH, 65535, payload, offset, length)
+            assertTrue(view.wrap(buffer))
+
+            assertEquals(expectedSequenceNumber and 0xFFFFFFFFL, view.sequenceNumber)
+            assertTrue(view.payloadLength in 1..mss)
+            reassembled.write(view.copyPayload())
+
+            expectedSequenceNumber += view.payloadLength
+            segmentCount++
+            pool.release(buffer)
+        }
+
+        assertEquals(5, segmentCount)
+        assertEquals(initialSequenceNumber + payload.size, nextSequenceNumber)
+        assertEquals(expectedSequenceNumber, nextSequenceNumber)
+        assertArrayEquals(payload, reassembled.toByteArray())
+    }
+}
@@ -0,0 +1,153 @@
+package de.tomcory.heimdall.scanner.traffic.metadata
+
+import android.content.Intent
+import android.net.Uri
+import android.os.Build
+import android.os.Looper
+import android.system.OsConstants
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Ignore
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.RuntimeEnvironment
+import org.robolectric.Shadows.shadowOf
+import org.robolectric.annotation.Config
+import java.io.File
+import java.net.InetAddress
+
+@RunWith(RobolectricTestRunner::class)
+@Config(sdk = [Build.VERSION_CODES.P])
+class AppFinderTest {
+
+    @get:Rule
+    val folder = TemporaryFolder()
+
+    private val localAddress = InetAddress.getByName("10.0.0.2")
+
+    private val remoteAddress = InetAddress.getByName("93.184.216.34")
+
+    /**
+     * Writes a /proc/net socket table listing a socket on each of the ports, owned by the UID it maps to.
+     */
+    private fun writeSocketTable(file: File, owners: Map<Int, Int>) {
+        file.printWriter().use { writer ->
+            writer.println("  sl  local_address rem_address   st tx_queue rx_queue tr tm->when retrnsmt   uid  timeout inode")
+            owners.entries.forEachIndexed { i, (port, uid) ->
+                writer.println("%4d: 0200000A:%04X 22D8B85D:01BB 01 00000000:00000000 00:00000000 00000000 %5d        0 %d 1 0000000000000000 20 4 30 10 -1".format(i, port, uid, 100000 + i))
+            }
+        }
+    }
+
+    private fun createSocketTable(owners: Map<Int, Int>) = folder.newFile().also { writeSocketTable(it, owners) }
+
+    /**
+     * Creates a finder without context that reads the IPv4 TCP and UDP sockets from [tcp4File] and [udp4File] on every miss, the IPv6 socket
+     * tables are empty.
+     */
+    private fun createFinder(tcp4File: File, udp4File: File = createSocketTable(emptyMap()), socketOwnerTtlMillis: Long = 10_000, maxSocketOwners: Int = 1024): AppFinder {
+        return AppFinder(null, tcp4File, createSocketTable(emptyMap()), udp4File, createSocketTable(emptyMap()), socketOwnerTtlMillis, 0, maxSocketOwners)
+    }
+
+    private fun AppFinder.getAppId(localPort: Int, remotePort: Int = 443, protocol: Int = OsConstants.IPPROTO_TCP) = getAppId(localAddress, remoteAddress, localPort, remotePort, protocol)
+
+    private fun AppFinder.forgetSocket(localPort: Int, remotePort: Int = 443, protocol: Int = OsConstants.IPPROTO_TCP) = forgetSocket(localAddress, remoteAddress, localPort, remotePort, protocol)
+
+    @Test
+    fun cachesTheOwnersOfSockets() {
+        val sockets = createSocketTable(mapOf(40000 to 10100))
+        val finder = createFinder(sockets)
+        assertEquals(10100, finder.getAppId(40000))
+
+        // the connection's later lookups are answered from the cache until the connection is closed
+        // (the lookup of the new socket makes the finder read the table again)
+        writeSocketTable(sockets, mapOf(40000 to 10200, 40001 to 10300))
+        assertEquals(10300, finder.getAppId(40001))
+        assertEquals(10100, finder.getAppId(40000))
+        finder.forgetSocket(40000)
+        assertEquals(10200, finder.getAppId(40000))
+    }
+
+    @Test
+    fun tellsApartConnectionsThatShareALocalPort() {
+        val tcpSockets = createSocketTable(mapOf(40000 to 10100))
+        val udpSockets = createSocketTable(mapOf(40000 to 10500))
+        val finder = createFinder(tcpSockets, udpSockets)
+        assertEquals(10100, finder.getAppId(40000))
+        assertEquals(10500, finder.getAppId(40000, protocol = OsConstants.IPPROTO_UDP))
+
+        // another app's TCP connection to a different remote endpoint gets the same ephemeral port, the UDP socket keeps its port
+        writeSocketTable(tcpSockets, mapOf(40000 to 10200, 40001 to 10300))
+        writeSocketTable(udpSockets, mapOf(40000 to 10600))
+        assertEquals(10300, finder.getAppId(40001))
+        assertEquals(10200, finder.getAppId(40000, remotePort = 8443))
+        assertEquals(10500, finder.getAppId(40000, remotePort = 8443, protocol = OsConstants.IPPROTO_UDP))
+    }
+
+    @Test
+    fun boundsTheSocketOwnerCache() {
+        val owners = (0 until 300).associate { 32768 + it to 10000 + it }
+        val finder = createFinder(createSocketTable(owners), maxSocketOwners = 100)
+        for ((port, uid) in owners) {
+            assertEquals(uid, finder.getAppId(port))
+            assertTrue(finder.cachedSocketOwners <= 100)
+        }
+    }
+
+    @Test
+    fun doesNotCacheSocketsWithoutOwner() {
+        val sockets = createSocketTable(emptyMap())
+        val finder = createFinder(sockets)
+        assertEquals(-1, finder.getAppId(40000))
+
+        writeSocketTable(sockets, mapOf(40000 to 10100))
+        assertEquals(10100, finder.getAppId(40000))
+    }
+
+    @Test
+    fun dropsCachedPackagesWhenPackagesChange() {
+        val context = RuntimeEnvironment.getApplication()
+        val packageManager = shadowOf(context.packageManager)
+        packageManager.setPackagesForUid(10100, "com.example.first")
+        val finder = AppFinder(context)
+        assertEquals("com.example.first", finder.getAppPackage(10100))
+
+        packageManager.setPackagesForUid(10100, "com.example.second")
+        assertEquals("com.example.first", finder.getAppPackage(10100))
+
+        context.sendBroadcast(Intent(Intent.ACTION_PACKAGE_REPLACED, Uri.parse("package:com.example.second")).putExtra(Intent.EXTRA_UID, 10100))
+        shadowOf(Looper.getMainLooper()).idle()
+        assertEquals("com.example.second", finder.getAppPackage(10100))
+        finder.close()
+    }
+
+    /**
+     * Benchmark of the attribution of new flows with and without the socket owner cache, on a device with 300 sockets where the flows reuse
+     * 50 local ports (e.g. a UDP socket talking to many hosts). Only prints the results, the timings are too noisy for assertions.
+     */
+    @Ignore("benchmark")
+    @Test
+    fun benchmarkFlowSetupWithAndWithoutCache() {
+        val owners = (0 until 300).associate { 32768 + it to 10000 + it % 20 }
+        val ports = IntArray(5_000) { 32768 + 250 + it % 50 }
+        val sockets = createSocketTable(owners)
+        val cached = createFinder(createSocketTable(emptyMap()), sockets)
+        val uncached = createFinder(createSocketTable(emptyMap()), sockets, socketOwnerTtlMillis = 0)
+
+        fun setUpFlows(finder: AppFinder): Long {
+            val start = System.nanoTime()
+            for ((i, port) in ports.withIndex()) {
+                finder.getAppPackage(finder.getAppId(port, remotePort = 1024 + i, protocol = OsConstants.IPPROTO_UDP))
+            }
+            return (System.nanoTime() - start) / ports.size
+        }
+
+        repeat(30) { setUpFlows(cached); setUpFlows(uncached) } // warm-up
+        println("With cache: ${setUpFlows(cached)} ns/flow ($cached)")
+        println("Without cache: ${setUpFlows(uncached)} ns/flow")
+        assertEquals(owners[ports[0]], cached.getAppId(ports[0], protocol = OsConstants.IPPROTO_UDP))
+    }
+}
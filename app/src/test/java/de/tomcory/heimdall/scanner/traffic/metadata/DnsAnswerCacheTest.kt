@@ -0,0 +1,79 @@
+package de.tomcory.heimdall.scanner.traffic.metadata
+
+import de.tomcory.heimdall.scanner.traffic.connection.appLayer.DnsCodec
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNotNull
+import org.junit.Assert.assertNull
+import org.junit.Test
+import java.io.ByteArrayOutputStream
+
+class DnsAnswerCacheTest {
+
+    private fun question(host: String): ByteArray {
+        val out = ByteArrayOutputStream()
+        host.split(".").forEach { label ->
+            out.write(label.length)
+            out.write(label.toByteArray())
+        }
+        out.write(byteArrayOf(0, 0, DnsCodec.TYPE_A.toByte(), 0, DnsCodec.CLASS_IN.toByte()))
+        return out.toByteArray()
+    }
+
+    private fun query(host: String): ByteArray {
+        return byteArrayOf(0x12, 0x34, 0x01, 0x00, 0, 1, 0, 0, 0, 0, 0, 0) + question(host)
+    }
+
+    /**
+     * Builds the answer to a query for [host] with a single A record at [address].
+     */
+    private fun answer(host: String, ttl: Int, address: Byte = 1): ByteArray {
+        val record = byteArrayOf(
+            0xC0.toByte(), DnsCodec.HEADER_LENGTH.toByte(), 0, DnsCodec.TYPE_A.toByte(), 0, DnsCodec.CLASS_IN.toByte(),
+            (ttl shr 24).toByte(), (ttl shr 16).toByte(), (ttl shr 8).toByte(), ttl.toByte(),
+            0, 4, 10, 0, 0, address
+        )
+        return byteArrayOf(0x12, 0x34, 0x81.toByte(), 0x80.toByte(), 0, 1, 0, 1, 0, 0, 0, 0) + question(host) + record
+    }
+
+    private fun DnsAnswerCache.put(answer: ByteArray, nowMillis: Long) = put(answer, 0, answer.size, nowMillis)
+
+    private fun DnsAnswerCache.get(host: String, nowMillis: Long): DnsAnswerCache.Entry? {
+        val query = query(host)
+        return get(query, 0, query.size, nowMillis)
+    }
+
+    @Test
+    fun replacesAnswersWhenFull() {
+        val cache = DnsAnswerCache(maxEntries = 2)
+        cache.put(answer("a.example", 60), 0)
+        cache.put(answer("b.example", 60), 0)
+
+        // a refresh of a cached question must not be dropped or push out another answer
+        cache.put(answer("a.example", 60, address = 2), 1_000)
+        val query = query("a.example")
+        val reply = cache.get("a.example", 1_000)!!.buildReply(query, 0, 1_000)
+        assertEquals(2.toByte(), reply.last())
+        assertNotNull(cache.get("b.example", 1_000))
+    }
+
+    @Test
+    fun evictsTheLeastRecentlyUsedAnswer() {
+        val cache = DnsAnswerCache(maxEntries = 2)
+        cache.put(answer("a.example", 60), 0)
+        cache.put(answer("b.example", 60), 0)
+        assertNotNull(cache.get("a.example", 0))
+
+        cache.put(answer("c.example", 60), 0)
+        assertNull(cache.get("b.example", 0))
+        assertNotNull(cache.get("a.example", 0))
+        assertNotNull(cache.get("c.example", 0))
+    }
+
+    @Test
+    fun expiresAnswersAfterTheirTtl() {
+        val cache = DnsAnswerCache()
+        cache.put(answer("a.example", 60), 0)
+        assertNotNull(cache.get("a.example", 59_999))
+        assertNull(cache.get("a.example", 60_000))
+    }
+}
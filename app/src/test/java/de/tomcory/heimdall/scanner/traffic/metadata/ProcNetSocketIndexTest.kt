@@ -0,0 +1,94 @@
+package de.tomcory.heimdall.scanner.traffic.metadata
+
+import org.junit.Assert.assertEquals
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.io.File
+import java.net.InetAddress
+
+class ProcNetSocketIndexTest {
+
+    @get:Rule
+    val folder = TemporaryFolder()
+
+    private val header = "  sl  local_address                         remote_address                        st tx_queue rx_queue tr tm->when retrnsmt   uid  timeout inode"
+
+    private fun createTable(vararg lines: String): File {
+        return folder.newFile().apply { writeText((listOf(header) + lines).joinToString("\n", postfix = "\n")) }
+    }
+
+    private fun ProcNetSocketIndex.findOwner(tcp: Boolean, localAddress: String, localPort: Int, remoteAddress: String, remotePort: Int): Int {
+        return findOwner(tcp, InetAddress.getByName(localAddress), localPort, InetAddress.getByName(remoteAddress), remotePort)
+    }
+
+    @Test
+    fun indexesTheSocketsOfAllTables() {
+        val index = ProcNetSocketIndex(
+            tcp4File = createTable(
+                "   0: 0100007F:13AD 00000000:0000 0A 00000000:00000000 00:00000000 00000000  1000        0 20433 1 0000000000000000 100 0 0 10 0",
+                "   1: 0200000A:9C40 22D8B85D:01BB 01 00000000:00000000 02:000005C5 00000000 10100        0 41263 1 0000000000000000 20 4 30 10 -1"
+            ),
+            tcp6File = createTable(
+                "   0: 0000000000000000FFFF00000200000A:A1B2 0000000000000000FFFF000022D8B85D:01BB 01 00000000:00000000 00:00000000 00000000 10123        0 5521 1 0000000000000000 21 4 28 10 -1"
+            ),
+            udp4File = createTable(
+                "  312: 0200000A:9C40 08080808:0035 01 00000000:00000000 00:00000000 00000000 10200        0 7712 2 0000000000000000 0"
+            ),
+            udp6File = createTable(
+                "  101: 00000000000000000000000000000000:14E9 00000000000000000000000000000000:0000 07 00000000:00000000 00:00000000 00000000 1021        0 1188 2 0000000000000000 0"
+            )
+        )
+
+        assertEquals(1000, index.findOwner(true, "127.0.0.1", 5037, "127.0.0.1", 50000))
+        assertEquals(10100, index.findOwner(true, "10.0.0.2", 40000, "93.184.216.34", 443))
+        assertEquals(10123, index.findOwner(true, "10.0.0.2", 0xA1B2, "93.184.216.34", 443))
+        // the same port in the UDP tables belongs to another socket
+        assertEquals(10200, index.findOwner(false, "10.0.0.2", 40000, "8.8.8.8", 53))
+        assertEquals(1021, index.findOwner(false, "10.0.0.2", 5353, "224.0.0.251", 5353))
+        assertEquals(-1, index.findOwner(false, "10.0.0.2", 5037, "8.8.8.8", 53))
+    }
+
+    @Test
+    fun matchesSocketsSharingThePortOnTheirEndpoints() {
+        val index = ProcNetSocketIndex(
+            tcp4File = createTable(
+                "   0: 0200000A:9C40 22D8B85D:01BB 01 00000000:00000000 00:00000000 00000000 10100        0 41263 1 0000000000000000 20 4 30 10 -1",
+                "   1: 00000000:9C40 00000000:0000 0A 00000000:00000000 00:00000000 00000000  1000        0 20433 1 0000000000000000 100 0 0 10 0",
+                "   2: 0200000A:9C40 23D8B85D:01BB 01 00000000:00000000 00:00000000 00000000 10200        0 41264 1 0000000000000000 20 4 30 10 -1"
+            ),
+            tcp6File = createTable(
+                "   0: B80D0120000000000000000002000000:9C40 00280626010020020000000001000000:01BB 01 00000000:00000000 00:00000000 00000000 10123        0 5521 1 0000000000000000 21 4 28 10 -1"
+            ),
+            udp4File = createTable(),
+            udp6File = createTable()
+        )
+
+        assertEquals(10100, index.findOwner(true, "10.0.0.2", 40000, "93.184.216.34", 443))
+        assertEquals(10200, index.findOwner(true, "10.0.0.2", 40000, "93.184.216.35", 443))
+        assertEquals(10123, index.findOwner(true, "2001:db8::2", 40000, "2606:2800:220:1::1", 443))
+        // a connection matching none of the connected sockets was accepted by the listening one
+        assertEquals(1000, index.findOwner(true, "10.0.0.2", 40000, "1.2.3.4", 80))
+    }
+
+    @Test
+    fun refreshesOnMissesAtMostOncePerInterval() {
+        val tcp4File = createTable()
+        val rateLimited = ProcNetSocketIndex(tcp4File, createTable(), createTable(), createTable(), minRefreshIntervalMillis = 60_000)
+        val unlimited = ProcNetSocketIndex(tcp4File, createTable(), createTable(), createTable(), minRefreshIntervalMillis = 0)
+        assertEquals(-1, rateLimited.findOwner(true, "10.0.0.2", 40000, "93.184.216.34", 443))
+        assertEquals(-1, unlimited.findOwner(true, "10.0.0.2", 40000, "93.184.216.34", 443))
+
+        tcp4File.writeText("$header\n   0: 0200000A:9C40 22D8B85D:01BB 01 00000000:00000000 00:00000000 00000000 10100        0 41263 1 0000000000000000 20 4 30 10 -1\n")
+        assertEquals(-1, rateLimited.findOwner(true, "10.0.0.2", 40000, "93.184.216.34", 443))
+        assertEquals(10100, unlimited.findOwner(true, "10.0.0.2", 40000, "93.184.216.34", 443))
+    }
+
+    @Test
+    fun skipsMissingTables() {
+        val tcp4File = createTable("   0: 0200000A:9C40 22D8B85D:01BB 01 00000000:00000000 00:00000000 00000000 10100        0 41263 1 0000000000000000 20 4 30 10 -1")
+        val missing = File(folder.root, "missing")
+        val index = ProcNetSocketIndex(tcp4File, missing, missing, missing)
+        assertEquals(10100, index.findOwner(true, "10.0.0.2", 40000, "93.184.216.34", 443))
+    }
+}
@@ -0,0 +1,126 @@
+package de.tomcory.heimdall.scanner.traffic.metadata
+
+import de.tomcory.heimdall.util.Trie
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Ignore
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.io.DataOutputStream
+import java.io.File
+import java.io.RandomAccessFile
+import java.util.Locale
+import java.util.TreeSet
+
+class TrackerHostIndexTest {
+
+    @get:Rule
+    val folder = TemporaryFolder()
+
+    /**
+     * Compiles a host list into an index file the way the compileTrackerHostIndex task in app/build.gradle does.
+     */
+    private fun compile(hostList: File): File {
+        val hashes = TreeSet<Long>()
+        hostList.forEachLine { line ->
+            val host = line.trim().lowercase(Locale.ROOT)
+            if (host.isNotEmpty() && !host.startsWith("#")) {
+                var hash = java.lang.Long.parseUnsignedLong("cbf29ce484222325", 16)
+                for (i in host.length - 1 downTo 0) {
+                    hash = (hash xor host[i].code.toLong()) * 0x100000001b3L
+                }
+                hashes.add(hash)
+            }
+        }
+        return folder.newFile().apply {
+            DataOutputStream(outputStream().buffered()).use { out ->
+                out.writeInt(0x48544849)
+                out.writeInt(1)
+                out.writeInt(hashes.size)
+                out.writeInt(0)
+                hashes.forEach { out.writeLong(it) }
+            }
+        }
+    }
+
+    private fun map(index: File): TrackerHostIndex {
+        return RandomAccessFile(index, "r").use { TrackerHostIndex.map(it.channel, 0, index.length())!! }
+    }
+
+    /**
+     * Builds the trie the index replaces, as ComponentManager does when the index is missing.
+     */
+    private fun buildTrie(hostList: File): Trie<String> {
+        val trie = Trie<String> { it.split(".").reversed() }
+        hostList.forEachLine { trie.insert(it, it) }
+        return trie
+    }
+
+    @Test
+    fun matchesHostsAndTheirParentDomainsLikeTheTrie() {
+        val hostList = folder.newFile().apply { writeText("# tracking hosts\ndoubleclick.net\nads.example.com\nTracker.IO\n") }
+        val index = map(compile(hostList))
+        val trie = buildTrie(hostList)
+        assertEquals(3, index.size)
+
+        val tracking = listOf("doubleclick.net", "stats.g.doubleclick.net", "ads.example.com", "cdn.ads.example.com", "ADS.Example.com")
+        val notTracking = listOf("example.com", "www.example.com", "notdoubleclick.net", "net", "doubleclick.net.example.org")
+        tracking.forEach { assertTrue(it, index.contains(it)) }
+        notTracking.forEach { assertFalse(it, index.contains(it)) }
+        (tracking + notTracking).filter { it == it.lowercase() }.forEach { assertEquals(it, trie.search(it) != null, index.contains(it)) }
+
+        // the compiled list is lower-cased, the trie's isn't
+        assertTrue(index.contains("tracker.io"))
+    }
+
+    @Test
+    fun rejectsInvalidIndexes() {
+        val invalid = folder.newFile().apply { writeBytes(ByteArray(16) { 1 }) }
+        RandomAccessFile(invalid, "r").use { assertEquals(null, TrackerHostIndex.map(it.channel, 0, invalid.length())) }
+    }
+
+    /**
+     * Startup comparison of mapping the index and building the trie from a synthetic list of 80k hosts, which is about the size of common
+     * tracking host lists (res/raw/adhosts is not part of the repository). Only prints the results, the timings are too noisy for assertions.
+     */
+    @Ignore("benchmark")
+    @Test
+    fun benchmarkStartupAgainstTrie() {
+        val tlds = listOf("com", "net", "org", "io", "de", "co.uk")
+        val hostList = folder.newFile().apply {
+            printWriter().use { writer ->
+                for (i in 0 until 80_000) {
+                    val domain = "tracker${i % 20_000}.${tlds[i % tlds.size]}"
+                    writer.println(if (i < 20_000) domain else "s${i / 20_000}-${i % 997}.$domain")
+                }
+            }
+        }
+        val indexFile = compile(hostList)
+        val lookups = List(10_000) { "cdn$it.tracker${it * 7 % 40_000}.${tlds[it % tlds.size]}" }
+
+        repeat(3) { // warm-up
+            val warmIndex = map(indexFile)
+            val warmTrie = buildTrie(hostList)
+            lookups.forEach { warmIndex.contains(it); warmTrie.search(it) }
+        }
+        var start = System.nanoTime()
+        val index = map(indexFile)
+        val mapMicros = (System.nanoTime() - start) / 1000
+        start = System.nanoTime()
+        val trie = buildTrie(hostList)
+        val trieMicros = (System.nanoTime() - start) / 1000
+
+        start = System.nanoTime()
+        val indexHits = lookups.count { index.contains(it) }
+        val indexLookupNanos = (System.nanoTime() - start) / lookups.size
+        start = System.nanoTime()
+        val trieHits = lookups.count { trie.search(it) != null }
+        val trieLookupNanos = (System.nanoTime() - start) / lookups.size
+
+        println("Index: mapped ${index.size} hosts in $mapMicros us, $indexLookupNanos ns/lookup")
+        println("Trie: built from ${hostList.length() / 1024} KiB in $trieMicros us, $trieLookupNanos ns/lookup")
+        assertEquals(trieHits, indexHits)
+    }
+}
@@ -0,0 +1,110 @@
+package de.tomcory.heimdall.util
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class TimerWheelTest {
+
+    /**
+     * Advances the wheel one tick at a time up to [untilMillis] and records the time at which each item expired.
+     */
+    private fun <T> TimerWheel<T>.expiryTimes(fromMillis: Long, untilMillis: Long, tickMillis: Long = 1): Map<T, Long> {
+        val expiries = HashMap<T, Long>()
+        var now = fromMillis
+        while (now < untilMillis) {
+            now += tickMillis
+            advance(now) { timer -> assertNull(expiries.put(timer.item, now)) }
+        }
+        return expiries
+    }
+
+    @Test
+    fun expiresTimersAtTheirExactTick() {
+        val wheel = TimerWheel<String>(10, 0)
+        wheel.schedule("on tick", 50)
+        wheel.schedule("between ticks", 55)
+
+        assertEquals(0, wheel.advance(49) {})
+        assertEquals(1, wheel.advance(50) { assertEquals("on tick", it.item) })
+
+        // deadlines between two ticks are rounded up, a timer never expires early
+        assertEquals(0, wheel.advance(59) {})
+        assertEquals(1, wheel.advance(60) { assertEquals("between ticks", it.item) })
+        assertEquals(0, wheel.size)
+    }
+
+    @Test
+    fun cascadesTimersAcrossLevelBoundaries() {
+        // 4 slots per level and 3 levels, so the wheel covers 64 ticks and most deadlines start out in a higher level
+        val start = 5L
+        val wheel = TimerWheel<Long>(1, start, slotBits = 2, levelCount = 3)
+        for (deadline in start + 1..start + 63) {
+            wheel.schedule(deadline, deadline)
+        }
+
+        val expiries = wheel.expiryTimes(start, start + 64)
+        assertEquals(63, expiries.size)
+        expiries.forEach { (deadline, expiry) -> assertEquals(deadline, expiry) }
+        assertEquals(0, wheel.size)
+    }
+
+    @Test
+    fun holdsDeadlinesBeyondTheRangeOfTheWheel() {
+        // the default wheel covers 2^24 ticks
+        val range = 1L shl 24
+        val wheel = TimerWheel<Long>(1, 0)
+        val deadlines = longArrayOf(range - 1, range, range + 1_000, 3 * range + 7)
+        deadlines.forEach { wheel.schedule(it, it) }
+
+        for (deadline in deadlines) {
+            assertEquals(0, wheel.advance(deadline - 1) {})
+            assertEquals(1, wheel.advance(deadline) { assertEquals(deadline, it.item) })
+        }
+        assertEquals(0, wheel.size)
+    }
+
+    @Test
+    fun allowsReschedulingAndCancellingWhileAdvancing() {
+        val wheel = TimerWheel<String>(1, 0)
+        val timers = HashMap<String, TimerWheel.Timer<String>>()
+        listOf("rescheduled", "into the past", "first", "second").forEach { timers[it] = wheel.schedule(it, 5) }
+        timers["cancelled"] = wheel.schedule("cancelled", 7)
+
+        var rescheduledIntoThePast = false
+        var rescheduled = false
+        val expired = ArrayList<String>()
+        val onExpired: (TimerWheel.Timer<String>) -> Unit = { timer ->
+            expired += timer.item
+            when (timer.item) {
+                "rescheduled" -> if (!rescheduled) {
+                    rescheduled = true
+                    wheel.reschedule(timer, 10)
+                    wheel.cancel(timers.getValue("cancelled"))
+                }
+                // a deadline that has already passed moves the timer to the next tick, not back into the slot being processed
+                "into the past" -> if (!rescheduledIntoThePast) {
+                    rescheduledIntoThePast = true
+                    wheel.reschedule(timer, 0)
+                }
+                // whichever of the two expires first cancels the other one, which shares its slot
+                "first" -> wheel.cancel(timers.getValue("second"))
+                "second" -> wheel.cancel(timers.getValue("first"))
+            }
+        }
+
+        assertEquals(3, wheel.advance(5, onExpired))
+        assertEquals(1, expired.count { it == "first" || it == "second" })
+        assertTrue(timers.getValue("rescheduled").isScheduled)
+        assertFalse(timers.getValue("cancelled").isScheduled)
+
+        expired.clear()
+        assertEquals(1, wheel.advance(6, onExpired))
+        assertEquals(listOf("into the past"), expired)
+        assertEquals(0, wheel.advance(9, onExpired))
+        assertEquals(1, wheel.advance(10, onExpired))
+        assertEquals(0, wheel.size)
+    }
+}